@@ -0,0 +1,119 @@
+import benchmarks.ServerFixture;
+import prefs.Prefs;
+import protocol.*;
+import transport.*;
+
+import java.io.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/*
+    сервер с сеансами в памяти - реализация ServerFixture для тестов производительности;
+    регистрация и авторизация сеансов выполняются обычными командами клиента,
+    так что сервер проходит тот же путь, что и при подключении по сети
+ */
+public class InProcessServer implements ServerFixture {
+    private static final String LOGIN = "bench";
+    // наибольшее время ожидания ответа сервера при подключении сеанса, с
+    private static final int REPLY_TIMEOUT = 10;
+
+    private Server server;
+    private final List<MemoryTransport> transports = new ArrayList<>();
+    private ClientHandler first;
+    private PrintStream err;
+    private File db;
+
+    @Override public void start(int sessions, String protocol) throws Exception {
+        // журнал событий сервера - только в файл: вывод на консоль исказил бы измерения
+        err = System.err;
+        System.setErr(new PrintStream(OutputStream.nullOutputStream()));
+        // БД без таблицы пользователей - сервер работает с простым сервисом авторизации
+        db = File.createTempFile("bench", ".db");
+        server = Server.embedded(new ServerOptions(new String[] { "db.location=" + db.getPath() }));
+        Protocol p = Protocol.of(protocol);
+        for (int i = 0; i < sessions; i++) {
+            String login = LOGIN + i;
+            MemoryTransport t = new MemoryTransport(p);
+            ClientHandler c = new ClientHandler(server, t);
+            // учетная запись уже может существовать - отказ в регистрации не ошибка
+            t.request(c, Prefs.getCommand(Prefs.COM_REGISTER, login, login, login),
+                    Prefs.SRV_REG_ACCEPT, Prefs.SRV_REG_FAULT);
+            t.request(c, Prefs.getCommand(Prefs.COM_AUTHORIZE, login, login), Prefs.SRV_AUTH_OK);
+            t.recording = false;
+            transports.add(t);
+            if (first == null) first = c;
+        }
+        // список пользователей рассылается по окончании промежутка объединения изменений
+        server.notifyObservers();
+    }
+
+    @Override public void broadcast(String message) { server.sendBroadcastMsg(first, message); }
+
+    @Override public void receive(String line) { first.onMessage(TextCodec.parse(line)); }
+
+    @Override public long delivered() {
+        long bytes = 0;
+        for (MemoryTransport t : transports) bytes += t.bytes.sum();
+        return bytes;
+    }
+
+    @Override public void stop() {
+        server.shutdown();
+        db.delete();
+        new File(db.getPath() + "-wal").delete();
+        new File(db.getPath() + "-shm").delete();
+        System.setErr(err);
+    }
+
+    /*
+        соединение в памяти: кадры не передаются по сети, а помещаются в очередь исходящих
+        и сразу извлекаются из нее - как это сделал бы "писатель" соединения
+     */
+    private static final class MemoryTransport implements Transport {
+        private final Protocol protocol;
+        private final OutboundQueue queue =
+                new OutboundQueue(1024, OutboundQueue.OverflowPolicy.DROP_OLDEST, 0);
+        private final List<Frame> batch = new ArrayList<>();
+        private final LongAdder bytes = new LongAdder();
+        // ответы сервера - пока сеанс подключается
+        private final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+        volatile boolean recording = true;
+        private SessionListener listener;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        MemoryTransport(Protocol protocol) { this.protocol = protocol; }
+
+        // отправить серверу команду и дождаться одного из ожидаемых ответов
+        void request(ClientHandler c, String command, String ... expected) throws Exception {
+            c.onMessage(TextCodec.parse(command));
+            while (true) {
+                String reply = replies.poll(REPLY_TIMEOUT, TimeUnit.SECONDS);
+                if (reply == null) throw new TimeoutException(command);
+                for (String e : expected)
+                    if (reply.startsWith(Prefs.getCommand(e))) return;
+            }
+        }
+
+        @Override public void start(SessionListener listener) { this.listener = listener; }
+
+        @Override public void send(Frame frame) throws IOException {
+            if (recording) replies.add(frame.text());
+            queue.offer(frame);
+            synchronized (batch) {
+                queue.drainTo(batch, Integer.MAX_VALUE);
+                for (Frame f : batch) bytes.add(f.length(protocol));
+                batch.clear();
+            }
+        }
+
+        @Override public void setTimeout(int seconds) {}
+
+        @Override public void close() {
+            if (closed.compareAndSet(false, true)) listener.onClosed();
+        }
+
+        @Override public OutboundQueue getOutboundQueue() { return queue; }
+    }
+}
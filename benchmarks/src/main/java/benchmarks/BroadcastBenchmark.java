@@ -0,0 +1,38 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+    рассылка сообщения всем (Server.sendBroadcastMsg) N сеансам в памяти:
+    кодирование кадра, постановка его в очереди исходящих всех сеансов,
+    запись в общий журнал и в журнал событий сервера
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({ "10", "100", "1000" })
+    int sessions;
+
+    @Param({ "text", "binary" })
+    String protocol;
+
+    private ServerFixture server;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = ServerFixture.load();
+        server.start(sessions, protocol);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() { server.stop(); }
+
+    @Benchmark
+    public void broadcast() { server.broadcast("сообщение для всех в чате"); }
+}
@@ -0,0 +1,72 @@
+package benchmarks;
+
+import prefs.Prefs;
+import protocol.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+    команды: формирование (Prefs.getCommand), разбор строки текстового протокола
+    и кадра двоичного, а также обработка полученной строки обработчиком клиента
+    (ClientHandler) - от разбора до отправки ответа
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+    @Benchmark
+    public String getCommand() { return Prefs.getCommand(Prefs.COM_PRIVATE_MSG, "bench1", "сообщение"); }
+
+    @Benchmark
+    public String getExitCommand() { return Prefs.getExitCommand(); }
+
+    // строка команды и она же - кадром двоичного протокола
+    @State(Scope.Benchmark)
+    public static class Line {
+        @Param({ "/auth Login Password", "/w bench1 private message", "/nick nickname",
+                "/history 100 50", "plain message for everyone" })
+        String line;
+
+        ByteBuffer frame;
+
+        @Setup
+        public void setUp() throws IOException {
+            frame = ByteBuffer.wrap(BinaryCodec.encode(TextCodec.parse(line)));
+        }
+    }
+
+    @Benchmark
+    public Message parseText(Line l) { return TextCodec.parse(l.line); }
+
+    @Benchmark
+    public Message decodeBinary(Line l) throws IOException { return BinaryCodec.decode(l.frame.duplicate()); }
+
+    // сервер с двумя сеансами: первый отправляет строки, второй - получатель личных сообщений
+    @State(Scope.Benchmark)
+    public static class Session {
+        @Param({ "/w bench1 private message", "plain message for everyone" })
+        String received;
+
+        ServerFixture server;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            server = ServerFixture.load();
+            server.start(2, Protocol.TEXT.getName());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() { server.stop(); }
+    }
+
+    @Benchmark
+    public void handle(Session s) { s.server.receive(s.received); }
+}
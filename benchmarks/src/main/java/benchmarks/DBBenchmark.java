@@ -0,0 +1,87 @@
+package benchmarks;
+
+import authentification.service.DB;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.sql.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+    поиск пользователей в БД (DB) - во временном файле SQLite с 1000 и 100000 учетных записей:
+    авторизация (логин и пароль), проверка занятости никнейма
+    и поиск отсутствующего логина (отсекается фильтром имен, до запроса к БД не доходит)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DBBenchmark {
+    private static final String CREATE =
+            "create table users (id integer primary key autoincrement, login text, pwd text, nickname text);";
+    private static final String INSERT = "INSERT INTO users (login, pwd, nickname) VALUES (?, ?, ?);";
+
+    @Param({ "1000", "100000" })
+    int users;
+
+    private File file;
+    private DB db;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        file = File.createTempFile("bench", ".db");
+        try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + file.getPath())) {
+            c.setAutoCommit(false);
+            try (Statement st = c.createStatement()) { st.execute(CREATE); }
+            try (PreparedStatement ps = c.prepareStatement(INSERT)) {
+                for (int i = 0; i < users; i++) {
+                    ps.setString(1, "login" + i);
+                    ps.setString(2, "pwd" + i);
+                    ps.setString(3, "nick" + i);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            c.commit();
+        }
+        db = new DB("sqlite", file.getPath(), 0, 1000, 5);
+        if (!db.isServiceActive()) throw new IllegalStateException(file.getPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        db.close();
+        file.delete();
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+    }
+
+    // номер искомого пользователя - свой у каждого потока
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int next(int bound) {
+            next = (next + 7919) % bound;
+            return next;
+        }
+    }
+
+    @Benchmark
+    public String getNickname(Cursor c) {
+        int i = c.next(users);
+        return db.getNickname("login" + i, "pwd" + i);
+    }
+
+    @Benchmark
+    public boolean alreadyRegistered(Cursor c) { return db.alreadyRegistered("nick" + c.next(users)); }
+
+    @Benchmark
+    public String getNicknameAbsent(Cursor c) { return db.getNickname("absent" + c.next(users), "pwd"); }
+}
@@ -0,0 +1,69 @@
+package benchmarks;
+
+import prefs.EventLogger;
+import prefs.Prefs;
+import history.Journal;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+    последние строки истории пользователя (то, что делает readLastLines обработчика
+    клиента при входе в чат) при истории в 1 и 100 МБ;
+    cached = false - строки каждый раз читаются из файла, true - из памяти журнала
+
+    файлы истории (history/history_history<N>mb.txt) создаются при первом запуске
+    и используются повторно
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+    private static final int LINES = 100;
+    // строк за одно ожидание записи при заполнении истории
+    private static final int FILL_STEP = 10000;
+
+    @Param({ "1", "100" })
+    int megabytes;
+
+    @Param({ "false", "true" })
+    boolean cached;
+
+    private Journal journal;
+    private String login;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        EventLogger logger = new EventLogger(HistoryBenchmark.class.getName(), null);
+        journal = new Journal(50, 1000, 0, 0, 64 * 1024 * 1024,
+                cached ? LINES : 0, 64 * 1024 * 1024, logger);
+        login = "history" + megabytes + "mb";
+        fill(login, megabytes * 1024L * 1024L);
+    }
+
+    // дописать в историю строки до заданного размера
+    private void fill(String login, long size) {
+        long bytes = new File(Journal.getFileName(login)).length();
+        for (int n = 0; bytes < size; n++) {
+            String line = String.format(Prefs.MSG_CURRENT_TIME, "12:34:56",
+                    "[ bench" + n % 100 + " ]: строка истории номер " + n);
+            journal.append(login, line);
+            bytes += line.length();
+            if (n % FILL_STEP == FILL_STEP - 1) journal.sync(60000);
+        }
+        journal.sync(60000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() { journal.close(); }
+
+    @Benchmark
+    public String readLastLines() throws IOException { return journal.readLast(login, LINES, 1000); }
+}
@@ -0,0 +1,64 @@
+package benchmarks;
+
+import authentification.UserData;
+import authentification.mapping.IdentityMap;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+    поиск в кэше пользователей (IdentityMap) по логину и никнейму -
+    при каждой авторизации, регистрации и смене никнейма;
+    обращения к кэшу синхронизированы - отдельно измеряется поиск из нескольких потоков
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdentityMapBenchmark {
+    @Param({ "1000", "100000" })
+    int entries;
+
+    private IdentityMap map;
+    private String[] logins, nicknames;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        map = new IdentityMap(entries, 0);
+        logins = new String[entries];
+        nicknames = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            logins[i] = "login" + i;
+            nicknames[i] = "nick" + i;
+            map.addById(i + 1, new UserData(logins[i], "pwd" + i, nicknames[i]));
+        }
+    }
+
+    // номер искомого пользователя - свой у каждого потока
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int next(int bound) {
+            // шаг - простое число, так что обращения разбросаны по всему кэшу
+            next = (next + 7919) % bound;
+            return next;
+        }
+    }
+
+    @Benchmark
+    public UserData getByLogin(Cursor c) { return map.getByLogin(logins[c.next(entries)]); }
+
+    @Benchmark
+    public UserData getByNickname(Cursor c) { return map.getByNickname(nicknames[c.next(entries)]); }
+
+    @Benchmark
+    public UserData getByLoginMissing() { return map.getByLogin("absent"); }
+
+    @Benchmark
+    @Threads(4)
+    public UserData getByLoginContended(Cursor c) { return map.getByLogin(logins[c.next(entries)]); }
+}
@@ -0,0 +1,82 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.sql.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+    сравнение регистрации пользователя за три обращения к БД (как было в DB.registerUser:
+    SELECT - проверка, INSERT, SELECT - получение id) и за одно (INSERT с уникальным
+    указателем по логину и getGeneratedKeys) - во временном файле SQLite;
+    каждый вызов регистрирует нового пользователя
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistrationBenchmark {
+    private static final String CREATE =
+            "create table users (id integer primary key autoincrement, login text, pwd text, nickname text);";
+    private static final String CREATE_INDEX = "create unique index users_login on users (login);";
+    private static final String FIND = "select * from users where login = ? and pwd = ? Limit 1;";
+    private static final String INSERT = "INSERT INTO users (login, pwd, nickname) VALUES (?, ?, ?);";
+
+    private File file;
+    private Connection c;
+    private PreparedStatement find, insert, insertReturningKey;
+    private long next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        file = File.createTempFile("bench", ".db");
+        c = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+        try (Statement st = c.createStatement()) {
+            st.execute(CREATE);
+            st.execute(CREATE_INDEX);
+        }
+        find = c.prepareStatement(FIND);
+        insert = c.prepareStatement(INSERT);
+        insertReturningKey = c.prepareStatement(INSERT, Statement.RETURN_GENERATED_KEYS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        c.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public int threeRoundTrips() throws SQLException {
+        String login = "a" + next++;
+        find.setString(1, login);
+        find.setString(2, login);
+        try (ResultSet rs = find.executeQuery()) { if (rs.next()) return 0; }
+        insert.setString(1, login);
+        insert.setString(2, login);
+        insert.setString(3, login);
+        if (insert.executeUpdate() == 0) return 0;
+        try (ResultSet rs = find.executeQuery()) { return rs.next() ? rs.getInt(1) : 0; }
+    }
+
+    @Benchmark
+    public long oneRoundTrip() throws SQLException {
+        String login = "b" + next++;
+        insertReturningKey.setString(1, login);
+        insertReturningKey.setString(2, login);
+        insertReturningKey.setString(3, login);
+        try {
+            if (insertReturningKey.executeUpdate() == 0) return 0;
+            try (ResultSet rs = insertReturningKey.getGeneratedKeys()) { return rs.next() ? rs.getLong(1) : 0; }
+        } catch (SQLException ex) {
+            // логин занят - нарушено ограничение уникальности
+            return 0;
+        }
+    }
+}
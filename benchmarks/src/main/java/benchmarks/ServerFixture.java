@@ -0,0 +1,33 @@
+package benchmarks;
+
+/*
+    встроенный сервер для тестов производительности
+
+    классы сервера (Server, ClientHandler) находятся в пакете по умолчанию, недоступном
+    из именованных пакетов, а JMH требует именованного; поэтому реализация (InProcessServer)
+    лежит в пакете по умолчанию и загружается по имени, а тесты обращаются к ней
+    через этот интерфейс - без отражения во время измерений
+ */
+public interface ServerFixture {
+    /**
+     * запустить сервер без приема подключений и подключить к нему авторизованные сеансы
+     * (учетные записи bench0, bench1 ... регистрируются при первом запуске)
+     * @param protocol формат, в котором сеансы получают сообщения (text, binary)
+     **/
+    void start(int sessions, String protocol) throws Exception;
+
+    // сообщение всем - от имени первого сеанса
+    void broadcast(String message);
+
+    // строка, полученная сервером от первого сеанса, - разбор и обработка
+    void receive(String line);
+
+    // байты, отправленные всем сеансам
+    long delivered();
+
+    void stop();
+
+    static ServerFixture load() throws ReflectiveOperationException {
+        return (ServerFixture)Class.forName("InProcessServer").getDeclaredConstructor().newInstance();
+    }
+}
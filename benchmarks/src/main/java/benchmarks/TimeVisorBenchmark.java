@@ -0,0 +1,41 @@
+package benchmarks;
+
+import prefs.Prefs;
+import prefs.TimeVisor;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+    дата и время (TimeVisor) - для каждой строки истории и каждого сообщения;
+    getCurrentBytes - то, что берет для строки журнала обработчик клиента (строку
+    собирает поток журнала), timeStampedLine - прежнее оформление через String.format
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimeVisorBenchmark {
+    @Benchmark
+    public String getCurrentTime() { return TimeVisor.getCurrentTime(); }
+
+    @Benchmark
+    public String getCurrentDate() { return TimeVisor.getCurrentDate(); }
+
+    @Benchmark
+    public void getCurrentBytes(Blackhole bh) {
+        bh.consume(TimeVisor.getCurrentDateBytes());
+        bh.consume(TimeVisor.getCurrentTimeBytes());
+    }
+
+    @Benchmark
+    public long getDay() { return TimeVisor.getDay(); }
+
+    @Benchmark
+    public String timeStampedLine() {
+        return String.format(Prefs.MSG_CURRENT_TIME, TimeVisor.getCurrentTime(), "[ bench0 ]: сообщение");
+    }
+}
@@ -18,6 +18,7 @@ import javafx.stage.StageStyle;
 import javafx.stage.Modality;
 
 import javafx.beans.value.ChangeListener;
+import javafx.collections.ObservableList;
 
 import java.net.URL;
 import java.net.Socket;
@@ -28,7 +29,7 @@ import java.io.IOException;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 
-import java.util.ResourceBundle;
+import java.util.*;
 
 public class Controller implements Initializable {
     @FXML HBox authPanel;
@@ -51,7 +52,8 @@ public class Controller implements Initializable {
     public boolean serverRunning;
     private boolean clientRunning;
 
-    private boolean dateLogged;
+    // день, дата которого уже выведена
+    private long loggedDay = -1;
     // флаг почти равен по смыслу authorized, но позволяет не добавлять
     // лишний перенос строки при получении истории сообщений
     private boolean anyExceptHistory;
@@ -65,6 +67,9 @@ public class Controller implements Initializable {
 
     private String history = "";
 
+    // ники из списка пользователей - для быстрой проверки при применении его изменений
+    private final Set<String> clientNames = new HashSet<>();
+
     // изменить признак авторизации пользователя
     public void changeUserState(boolean authorized) {
         this.authorized = authorized;
@@ -95,13 +100,12 @@ public class Controller implements Initializable {
         // при получении истории дата уже записана (в последней строке)
         if (authorized)
             if (anyExceptHistory) {
-                if (TimeVisor.dateChanged()) dateLogged = false;
-                if (!dateLogged) {
-                    textArea.appendText("Сегодня " + TimeVisor.getCurrentDate() + "\n");
-                    dateLogged = true;
+                if (loggedDay != TimeVisor.getDay()) {
+                    textArea.appendText(String.format(Prefs.MSG_CURRENT_DATE, TimeVisor.getCurrentDate()));
+                    loggedDay = TimeVisor.getDay();
                 }
             } else
-                dateLogged = true;
+                loggedDay = TimeVisor.getDay();
         if (anyExceptHistory)
             textArea.appendText((authorized ? TimeVisor.getCurrentTime() + "\t" : "") + message + "\n");
         else
@@ -212,14 +216,16 @@ public class Controller implements Initializable {
                         if (str.startsWith(Prefs.COM_ID)) {
                             //команда выхода
                             if (str.equals(Prefs.getExitCommand())) break;
-                            //список пользователей
-                            if (str.startsWith(Prefs.getCommand(Prefs.COM_CLIENT_LIST))) {
-                                Platform.runLater(() -> {
-                                    clientList.getItems().clear();
-                                    String[] token = str.split(" ");
-                                    for (int i = 1; i < token.length; i++)
-                                        clientList.getItems().add(token[i]);
-                                });
+                            //список пользователей и его изменения
+                            if (str.startsWith(Prefs.getCommand(Prefs.COM_CLIENT_LIST)) ||
+                                str.startsWith(Prefs.getCommand(Prefs.COM_CLIENT_JOIN)) ||
+                                str.startsWith(Prefs.getCommand(Prefs.COM_CLIENT_LEAVE)) ||
+                                str.startsWith(Prefs.getCommand(Prefs.COM_CLIENT_RENAME)))
+                                Platform.runLater(() -> updateClientList(str));
+                            //страница более ранней истории (ответ на /history) - в начало
+                            if (str.startsWith(Prefs.getCommand(Prefs.SRV_HISTORY_PAGE))) {
+                                String[] s = str.split(" ", 4);
+                                if (s.length == 4) Platform.runLater(() -> textArea.insertText(0, s[3]));
                             }
                             //попытка смены никнейма
                             if (str.startsWith(Prefs.getCommand(Prefs.SRV_CHANGE_OK))) {
@@ -249,6 +255,49 @@ public class Controller implements Initializable {
         }
     }
 
+    /*
+        сервер присылает полный список пользователей (/clientlist, продолжение которого,
+        если он не поместился в одно сообщение, приходит командами /join) только при входе,
+        а далее - только изменения: кто вошел (/join), вышел (/leave) или сменил ник (/rename);
+        изменения применяются к списку целиком, а не по одному нику
+     */
+    private void updateClientList(String str) {
+        String[] token = str.split(" ");
+        ObservableList<String> items = clientList.getItems();
+        switch (token[0].substring(Prefs.COM_ID.length())) {
+            case Prefs.COM_CLIENT_LIST:
+                clientNames.clear();
+                List<String> all = new ArrayList<>();
+                for (int i = 1; i < token.length; i++)
+                    if (clientNames.add(token[i])) all.add(token[i]);
+                items.setAll(all);
+                break;
+            case Prefs.COM_CLIENT_JOIN:
+                List<String> joined = new ArrayList<>();
+                for (int i = 1; i < token.length; i++)
+                    if (clientNames.add(token[i])) joined.add(token[i]);
+                items.addAll(joined);
+                break;
+            case Prefs.COM_CLIENT_LEAVE:
+                Set<String> left = new HashSet<>(Arrays.asList(token).subList(1, token.length));
+                clientNames.removeAll(left);
+                items.removeAll(left);
+                break;
+            case Prefs.COM_CLIENT_RENAME:
+                // ники меняются одновременно - пары "прежний новый" могут ссылаться друг на друга
+                Map<String, String> renamed = new HashMap<>();
+                for (int i = 1; i + 1 < token.length; i += 2) renamed.put(token[i], token[i + 1]);
+                clientNames.removeAll(renamed.keySet());
+                for (int i = 0; i < items.size(); i++) {
+                    String newNick = renamed.get(items.get(i));
+                    if (newNick != null) {
+                        items.set(i, newNick);
+                        clientNames.add(newNick);
+                    }
+                }
+        }
+    }
+
     @FXML public void sendMsg(/*ActionEvent actionEvent*/) {
         try {
             out.writeUTF(textField.getText());
@@ -0,0 +1,79 @@
+/*
+    пакет содержит генератор нагрузки - клиент без окна, имитирующий
+    множество пользователей чата для измерения задержек и пропускной способности сервера
+*/
+package load;
+
+import java.io.IOException;
+
+import java.nio.channels.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+    поток ввода-вывода генератора: один селектор обслуживает множество сеансов
+    (так же, как EventLoop сервера), поэтому тысячи сеансов не требуют тысяч потоков;
+    полученные сообщения разбираются прямо в нем - это лишь поиск отметки времени
+ */
+class IoLoop implements Runnable {
+    private final Selector selector;
+    private final Thread thread;
+
+    // сеансы, ожидающие подключения и отправки данных -
+    // обращаться к селектору можно только из его потока
+    private final Queue<Session> connects = new ConcurrentLinkedQueue<>();
+    private final Queue<Session> flushes = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean running = true;
+
+    IoLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void connect(Session session) {
+        connects.add(session);
+        selector.wakeup();
+    }
+
+    // попросить поток селектора отправить накопленные в сеансе сообщения
+    void requestFlush(Session session) {
+        flushes.add(session);
+        selector.wakeup();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override public void run() {
+        try {
+            while (running) {
+                selector.select();
+
+                Session s;
+                while ((s = connects.poll()) != null) s.connect(selector);
+                while ((s = flushes.poll()) != null) s.flush();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    s = (Session) key.attachment();
+                    if (key.isValid() && key.isConnectable()) s.finishConnect();
+                    if (key.isValid() && key.isReadable()) s.read();
+                    if (key.isValid() && key.isWritable()) s.flush();
+                }
+            }
+        } catch (IOException | ClosedSelectorException ex) { ex.printStackTrace(); }
+        finally {
+            for (SelectionKey key : selector.keys()) ((Session) key.attachment()).close();
+            try { selector.close(); }
+            catch (IOException ignored) {}
+        }
+    }
+}
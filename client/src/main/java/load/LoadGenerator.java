@@ -0,0 +1,274 @@
+/*
+    пакет содержит генератор нагрузки - клиент без окна, имитирующий
+    множество пользователей чата для измерения задержек и пропускной способности сервера
+*/
+package load;
+
+import prefs.Prefs;
+import metrics.Histogram;
+import protocol.Protocol;
+
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    генератор нагрузки: тысячи одновременных сеансов с локальным сервером,
+    говорящих на том же протоколе, что и окно клиента
+
+    запуск (окно клиента и JavaFX не нужны):
+        java -cp client/target/classes:common/target/classes load.LoadGenerator [параметр=значение ...]
+    например,
+        java load.LoadGenerator sessions=5000 join.rate=500 msg.rate=0.2 private.share=0.3
+        java load.LoadGenerator sessions=200 msg.rate=5 nick.rate=0.05 duration=120
+        java load.LoadGenerator sessions=1000 proto=binary
+
+    сеансы подключаются с заданной частотой и сразу начинают отправлять сообщения;
+    когда подключены все, начинается измерение: задержка доставки сообщений всем
+    (включая их отправителей) и личных сообщений - по времени отправки в их тексте,
+    число отправленных и доставленных сообщений в секунду;
+    время подключения и авторизации учитывается для всех сеансов
+ */
+public class LoadGenerator {
+    // сервер
+    public static final String HOST = "host";
+    public static final String PORT = "port";
+    // формат обмена: text (по умолчанию) или binary
+    public static final String PROTO = "proto";
+    // число сеансов и частота их подключения, в секунду
+    public static final String SESSIONS = "sessions";
+    public static final String JOIN_RATE = "join.rate";
+    // частота сообщений одного сеанса, в секунду, и доля личных среди них
+    public static final String MSG_RATE = "msg.rate";
+    public static final String PRIVATE_SHARE = "private.share";
+    // частота смен никнейма одного сеанса, в секунду
+    public static final String NICK_RATE = "nick.rate";
+    // размер сообщения (без отметки времени), символов
+    public static final String MSG_SIZE = "msg.size";
+    // длительность измерения и промежуток между промежуточными сводками, с
+    public static final String DURATION = "duration";
+    public static final String REPORT = "report";
+    // число потоков ввода-вывода
+    public static final String IO_THREADS = "io.threads";
+    // начало логинов сеансов (логин и пароль сеанса - <login><номер>)
+    public static final String LOGIN = "login";
+
+    // наибольшее время ожидания подключения всех сеансов и их отключения, с
+    private static final int JOIN_TIMEOUT = Prefs.TIMEOUT, QUIT_TIMEOUT = 5;
+
+    private final Map<String, String> options = new HashMap<>();
+
+    private final InetSocketAddress address;
+    private final Protocol protocol;
+    private final int sessionCount;
+    private final double joinRate, msgRate, privateShare, nickRate;
+    private final String filler;
+
+    private final Session[] sessions;
+    private final IoLoop[] loops;
+    private final ScheduledExecutorService driver;
+    private volatile boolean stopping;
+
+    // время подключения и авторизации - за все время работы, задержки - только за время измерения
+    private final Histogram connectTime = new Histogram("подключение"),
+            authTime = new Histogram("авторизация");
+    private volatile Histogram broadcastLatency = new Histogram("доставка всем"),
+            privateLatency = new Histogram("доставка личных");
+
+    private final AtomicInteger chatting = new AtomicInteger(), open = new AtomicInteger();
+    private final LongAdder broadcastsSent = new LongAdder(), broadcastsDelivered = new LongAdder(),
+            privateSent = new LongAdder(), privateDelivered = new LongAdder(),
+            renames = new LongAdder(), renameFailures = new LongAdder(),
+            connectFailures = new LongAdder(), authFailures = new LongAdder(), disconnects = new LongAdder();
+
+    public LoadGenerator(String[] args) throws IOException {
+        for (String arg : args) {
+            int i = arg.indexOf('=');
+            if (i > 0) options.put(arg.substring(0, i).toLowerCase(), arg.substring(i + 1));
+        }
+        address = new InetSocketAddress(options.getOrDefault(HOST, "localhost"), getInt(PORT, Prefs.PORT));
+        protocol = Protocol.of(options.get(PROTO));
+        sessionCount = Math.max(1, getInt(SESSIONS, 1000));
+        joinRate = Math.max(0.1, getDouble(JOIN_RATE, 200));
+        msgRate = Math.max(0, getDouble(MSG_RATE, 0.5));
+        privateShare = Math.min(1, Math.max(0, getDouble(PRIVATE_SHARE, 0.2)));
+        nickRate = Math.max(0, getDouble(NICK_RATE, 0.01));
+        filler = " " + "x".repeat(Math.max(0, getInt(MSG_SIZE, 64)));
+
+        String login = options.getOrDefault(LOGIN, "load");
+        loops = new IoLoop[Math.max(1, getInt(IO_THREADS, 2))];
+        for (int i = 0; i < loops.length; i++) loops[i] = new IoLoop("load-io-" + i);
+        sessions = new Session[sessionCount];
+        for (int i = 0; i < sessionCount; i++) sessions[i] = new Session(this, loops[i % loops.length], login + i);
+        AtomicInteger threads = new AtomicInteger();
+        driver = Executors.newScheduledThreadPool(2, r -> {
+            Thread t = new Thread(r, "load-driver-" + threads.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private int getInt(String name, int defaultValue) {
+        try { return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue; }
+        catch (NumberFormatException ex) { return defaultValue; }
+    }
+
+    private double getDouble(String name, double defaultValue) {
+        try { return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue; }
+        catch (NumberFormatException ex) { return defaultValue; }
+    }
+
+    public void run() {
+        int duration = Math.max(1, getInt(DURATION, 60)), report = Math.max(1, getInt(REPORT, 5));
+        System.out.println(String.format(Prefs.MSG_LOAD_STARTED, address, protocol.getName(), sessionCount,
+                joinRate, msgRate, privateShare * 100, nickRate, duration));
+
+        // подключение с заданной частотой
+        long start = System.nanoTime(), period = (long)(1e9 / joinRate), nextReport = start + report * 1_000_000_000L;
+        for (int i = 0; i < sessionCount; i++) {
+            parkUntil(start + i * period);
+            open.incrementAndGet();
+            loops[i % loops.length].connect(sessions[i]);
+            if (System.nanoTime() >= nextReport) {
+                System.out.println(String.format(Prefs.MSG_LOAD_JOINING, i + 1, chatting.get()));
+                nextReport += report * 1_000_000_000L;
+            }
+        }
+        // ожидание авторизации всех сеансов (не дождавшиеся ее учитываются в итогах)
+        long deadline = System.nanoTime() + JOIN_TIMEOUT * 1_000_000_000L;
+        while (chatting.get() + failures() < sessionCount && System.nanoTime() < deadline)
+            LockSupport.parkNanos(100_000_000);
+        System.out.println(String.format(Prefs.MSG_LOAD_MEASURING, chatting.get(), sessionCount,
+                (System.nanoTime() - start) / 1e9));
+
+        // измерение - задержки учитываются заново
+        broadcastLatency = new Histogram(broadcastLatency.getDescription());
+        privateLatency = new Histogram(privateLatency.getDescription());
+        long[] base = snapshot(), previous = base;
+        long measureStart = System.nanoTime(), end = measureStart + duration * 1_000_000_000L;
+        for (long t = measureStart + report * 1_000_000_000L; t < end; t += report * 1_000_000_000L) {
+            parkUntil(t);
+            long[] now = snapshot();
+            long[] q = broadcastLatency.quantiles(0.5, 0.99);
+            System.out.println(String.format(Prefs.MSG_LOAD_PROGRESS, chatting.get(),
+                    (now[0] - previous[0]) / (double)report, (now[2] - previous[2]) / (double)report,
+                    (now[1] - previous[1] + now[3] - previous[3]) / (double)report, q[0] / 1e6, q[1] / 1e6));
+            previous = now;
+        }
+        parkUntil(end);
+        long[] total = snapshot();
+        double seconds = (System.nanoTime() - measureStart) / 1e9;
+        int inChat = chatting.get();
+
+        stop();
+        report(inChat, base, total, seconds);
+    }
+
+    // отправленные и доставленные сообщения всем, отправленные и доставленные личные
+    private long[] snapshot() {
+        return new long[] { broadcastsSent.sum(), broadcastsDelivered.sum(), privateSent.sum(), privateDelivered.sum() };
+    }
+
+    private long failures() { return connectFailures.sum() + authFailures.sum() + disconnects.sum(); }
+
+    private static void parkUntil(long nanoTime) {
+        long left;
+        while ((left = nanoTime - System.nanoTime()) > 0) LockSupport.parkNanos(left);
+    }
+
+    // завершение: сеансы отправляют команду выхода и ждут ответного /end сервера
+    private void stop() {
+        stopping = true;
+        driver.shutdownNow();
+        for (Session s : sessions)
+            if (s.state == Session.State.CHATTING) s.quit();
+        long deadline = System.nanoTime() + QUIT_TIMEOUT * 1_000_000_000L;
+        while (open.get() > 0 && System.nanoTime() < deadline) LockSupport.parkNanos(10_000_000);
+        for (IoLoop loop : loops) loop.shutdown();
+    }
+
+    private void report(int inChat, long[] base, long[] total, double seconds) {
+        System.out.println(String.format(Prefs.MSG_LOAD_REPORT_HEADER, seconds));
+        System.out.println(String.format(Prefs.MSG_LOAD_SESSIONS, inChat, sessionCount,
+                connectFailures.sum(), authFailures.sum(), disconnects.sum()));
+        long sent = total[0] - base[0], delivered = total[1] - base[1];
+        System.out.println(String.format(Prefs.MSG_LOAD_BROADCASTS, sent, sent / seconds, delivered, delivered / seconds));
+        System.out.println(String.format(Prefs.MSG_LOAD_PRIVATE, total[2] - base[2], total[3] - base[3]));
+        System.out.println(String.format(Prefs.MSG_LOAD_RENAMES, renames.sum(), renameFailures.sum()));
+        for (Histogram h : new Histogram[] { connectTime, authTime, broadcastLatency, privateLatency }) {
+            long[] q = h.quantiles(0.5, 0.9, 0.99, 0.999);
+            System.out.println(String.format(Prefs.MSG_LOAD_HISTOGRAM, h.getDescription(), h.getCount(),
+                    q[0] / 1e6, q[1] / 1e6, q[2] / 1e6, q[3] / 1e6, h.getMaxNanos() / 1e6));
+        }
+    }
+
+    // ------------------------------ для сеансов ------------------------------
+    InetSocketAddress getAddress() { return address; }
+    Protocol getProtocol() { return protocol; }
+    Histogram connectTime() { return connectTime; }
+    Histogram authTime() { return authTime; }
+    boolean isStopping() { return stopping; }
+    String getFiller() { return filler; }
+    double getNickRate() { return nickRate; }
+    double getPrivateShare() { return privateShare; }
+    // частота всех действий сеанса - сообщений и смен никнейма
+    double getActionRate() { return msgRate + nickRate; }
+
+    void joined(Session s) {
+        chatting.incrementAndGet();
+        scheduleNext(s);
+    }
+
+    // следующее действие - через экспоненциально распределенный промежуток
+    void scheduleNext(Session s) {
+        double rate = getActionRate();
+        if (rate <= 0 || stopping) return;
+        long delay = (long)(-Math.log(1 - ThreadLocalRandom.current().nextDouble()) / rate * 1e9);
+        try { driver.schedule(s::act, delay, TimeUnit.NANOSECONDS); }
+        catch (RejectedExecutionException ignored) {} // генератор уже завершает работу
+    }
+
+    // получатель личного сообщения - случайный другой сеанс в чате
+    Session randomPeer(Session from) {
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Session s = sessions[r.nextInt(sessions.length)];
+            if (s != from && s.state == Session.State.CHATTING) return s;
+        }
+        return null;
+    }
+
+    void broadcastSent() { broadcastsSent.increment(); }
+    void privateSent() { privateSent.increment(); }
+    void renamed() { renames.increment(); }
+    void renameFailed() { renameFailures.increment(); }
+
+    void broadcastDelivered(long nanos) {
+        broadcastsDelivered.increment();
+        broadcastLatency.record(nanos);
+    }
+
+    void privateDelivered(long nanos) {
+        privateDelivered.increment();
+        privateLatency.record(nanos);
+    }
+
+    // сеанс закрыт - при завершении работы это ожидаемо, иначе - учитывается как сбой
+    void closed(Session.State was) {
+        open.decrementAndGet();
+        if (was == Session.State.CHATTING) chatting.decrementAndGet();
+        if (stopping) return;
+        switch (was) {
+            case CONNECTING: connectFailures.increment(); break;
+            case CHATTING: disconnects.increment(); break;
+            default: authFailures.increment();
+        }
+    }
+
+    public static void main(String[] args) throws IOException { new LoadGenerator(args).run(); }
+}
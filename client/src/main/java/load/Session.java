@@ -0,0 +1,253 @@
+/*
+    пакет содержит генератор нагрузки - клиент без окна, имитирующий
+    множество пользователей чата для измерения задержек и пропускной способности сервера
+*/
+package load;
+
+import prefs.Prefs;
+import protocol.*;
+
+import java.io.*;
+
+import java.net.StandardSocketOptions;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    сеанс имитируемого пользователя: те же команды, что отправляет окно клиента
+    (/reg, /auth, /w, /nick, обычные сообщения и /end), в том же текстовом формате
+    или (proto=binary) в двоичном - запросив его первым сообщением (/proto binary);
+
+    подключившись, сеанс регистрируется (учетная запись может уже существовать - отказ
+    в регистрации не ошибка) и авторизуется, после чего через случайные промежутки
+    (экспоненциально распределенные - как у независимых пользователей) отправляет
+    сообщения всем, личные сообщения или меняет никнейм;
+    каждое сообщение несет время отправки - получатели вычисляют задержку доставки
+    (генератор работает в одном процессе, поэтому время у всех сеансов общее)
+
+    состояние меняется только в потоке ввода-вывода, действия выполняет планировщик
+ */
+final class Session {
+    enum State { CONNECTING, NEGOTIATING, REGISTERING, AUTHORIZING, CHATTING, CLOSED }
+
+    // отметка времени отправки в тексте сообщения: ~t<System.nanoTime()>~
+    private static final String MARK = "~t", MARK_END = "~";
+    // начало текста сообщения всем и личного сообщения от другого пользователя
+    private static final String BROADCAST_PREFIX = "[ ";
+    private static final String PRIVATE_PREFIX =
+            Prefs.MESSAGE_HEADER_PATTERN.substring(0, Prefs.MESSAGE_HEADER_PATTERN.indexOf("%s")) + "от ";
+
+    private final LoadGenerator load;
+    private final IoLoop loop;
+    final String login;
+    volatile String nickname;
+    volatile State state = State.CONNECTING;
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    // формат обмена - двоичный, только когда сервер подтвердил переход на него
+    private volatile Protocol protocol = Protocol.TEXT;
+    // кадр сервера не длиннее текстового кадра; двоичное представление того же
+    // сообщения может оказаться на несколько байт длиннее (заголовок и длины аргументов)
+    private final ByteBuffer in =
+            ByteBuffer.allocate(FrameCodec.HEADER_LENGTH + FrameCodec.MAX_PAYLOAD_LENGTH + 64);
+    private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private long connectStart, authStart;
+    // ожидается ответ на смену никнейма - следующая смена только после него
+    private volatile boolean renaming;
+    private int renames;
+
+    Session(LoadGenerator load, IoLoop loop, String login) {
+        this.load = load;
+        this.loop = loop;
+        this.login = login;
+        nickname = login;
+    }
+
+    // ------------------------------ поток ввода-вывода ------------------------------
+    void connect(Selector selector) {
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            connectStart = System.nanoTime();
+            boolean connected = channel.connect(load.getAddress());
+            key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+            if (connected) onConnected();
+        } catch (IOException ex) { close(); }
+    }
+
+    void finishConnect() {
+        try {
+            if (!channel.finishConnect()) return;
+            key.interestOps(SelectionKey.OP_READ);
+            onConnected();
+        } catch (IOException ex) { close(); }
+    }
+
+    private void onConnected() {
+        load.connectTime().recordSince(connectStart);
+        if (load.getProtocol() == Protocol.TEXT) {
+            register();
+            return;
+        }
+        state = State.NEGOTIATING;
+        send(new Message(Opcode.PROTOCOL, load.getProtocol().getName()));
+    }
+
+    private void register() {
+        state = State.REGISTERING;
+        send(new Message(Opcode.REGISTER, login, login, login));
+    }
+
+    void read() {
+        try {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            Message m;
+            // формат может смениться посреди прочитанного - каждый кадр разбирается в текущем
+            while (state != State.CLOSED && (m = decode()) != null) onMessage(m);
+            in.compact();
+        } catch (IOException ex) { close(); }
+    }
+
+    private Message decode() throws IOException {
+        if (protocol == Protocol.BINARY) return BinaryCodec.decode(in);
+        String text = FrameCodec.decode(in);
+        return text == null ? null : TextCodec.parse(text);
+    }
+
+    private void onMessage(Message m) {
+        if (m.opcode() != Opcode.TEXT) {
+            switch (m.opcode()) {
+                case PROTOCOL_OK:
+                    if (state != State.NEGOTIATING) break;
+                    // сервер, не знающий запрошенного формата, отвечает текстовым
+                    protocol = Protocol.of(m.size() > 0 ? m.arg(0) : null);
+                    register();
+                    break;
+                case REG_ACCEPT:
+                case REG_FAULT:
+                    if (state != State.REGISTERING) break;
+                    state = State.AUTHORIZING;
+                    authStart = System.nanoTime();
+                    send(new Message(Opcode.AUTHORIZE, login, login));
+                    break;
+                case AUTH_OK:
+                    load.authTime().recordSince(authStart);
+                    if (m.size() > 0) nickname = m.arg(0);
+                    state = State.CHATTING;
+                    load.joined(this);
+                    break;
+                case CHANGE_OK:
+                    if (m.size() > 0) nickname = m.arg(0);
+                    renaming = false;
+                    break;
+                case CHANGE_FAULT:
+                    load.renameFailed();
+                    renaming = false;
+                    break;
+                case QUIT:
+                    close();
+                    break;
+                default:
+                    // список пользователей и его изменения генератору не нужны
+            }
+            return;
+        }
+        if (state != State.CHATTING || m.size() == 0) return;
+        String text = m.arg(0);
+        long sent = sentAt(text);
+        if (sent == 0) return;
+        // эхо собственного личного сообщения ("для ...") не считается доставкой
+        if (text.startsWith(PRIVATE_PREFIX)) load.privateDelivered(System.nanoTime() - sent);
+        else if (text.startsWith(BROADCAST_PREFIX)) load.broadcastDelivered(System.nanoTime() - sent);
+    }
+
+    private static long sentAt(String text) {
+        int i = text.indexOf(MARK);
+        if (i < 0) return 0;
+        int j = text.indexOf(MARK_END, i + MARK.length());
+        try { return j < 0 ? 0 : Long.parseLong(text, i + MARK.length(), j, 10); }
+        catch (NumberFormatException ex) { return 0; }
+    }
+
+    void flush() {
+        flushRequested.set(false);
+        if (state == State.CLOSED || key == null || !channel.isConnected()) return;
+        try {
+            ByteBuffer b;
+            while ((b = out.peek()) != null) {
+                channel.write(b);
+                if (b.hasRemaining()) break;
+                out.poll();
+            }
+            key.interestOps(out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException ex) { close(); }
+    }
+
+    void close() {
+        if (state == State.CLOSED) return;
+        State was = state;
+        state = State.CLOSED;
+        out.clear();
+        try { if (channel != null) channel.close(); }
+        catch (IOException ignored) {}
+        load.closed(was);
+    }
+
+    // ------------------------------ любой поток ------------------------------
+    // поставить сообщение в очередь сеанса - отправит его поток ввода-вывода
+    void send(Message m) {
+        try {
+            out.add(ByteBuffer.wrap(protocol == Protocol.BINARY
+                    ? BinaryCodec.encode(m)
+                    : FrameCodec.encode(m.toText())));
+        } catch (IOException ex) { return; }
+        if (flushRequested.compareAndSet(false, true)) loop.requestFlush(this);
+    }
+
+    // очередное действие пользователя - выполняется планировщиком
+    void act() {
+        if (state != State.CHATTING || load.isStopping()) return;
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        if (r.nextDouble() * load.getActionRate() < load.getNickRate()) {
+            if (!renaming) rename();
+        } else if (r.nextDouble() < load.getPrivateShare()) {
+            Session to = load.randomPeer(this);
+            if (to != null) {
+                send(new Message(Opcode.PRIVATE_MSG, to.nickname, payload()));
+                load.privateSent();
+            }
+        } else {
+            send(new Message(Opcode.TEXT, payload()));
+            load.broadcastSent();
+        }
+        load.scheduleNext(this);
+    }
+
+    private void rename() {
+        String newNick;
+        do newNick = login + "_" + ++renames;
+        while (newNick.equals(nickname));
+        renaming = true;
+        send(new Message(Opcode.CHANGE_NICK, newNick));
+        load.renamed();
+    }
+
+    private String payload() {
+        return MARK + System.nanoTime() + MARK_END + load.getFiller();
+    }
+
+    void quit() { send(new Message(Opcode.QUIT)); }
+}
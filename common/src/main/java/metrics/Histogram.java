@@ -0,0 +1,104 @@
+package metrics;
+
+import java.util.concurrent.atomic.*;
+
+/*
+    гистограмма длительностей в духе HdrHistogram
+
+    значения (наносекунды) раскладываются по интервалам, ширина которых растет вместе
+    со значением: на каждую степень двойки приходится SUB интервалов одинаковой ширины,
+    так что относительная погрешность не превышает 1/SUB при любом порядке величины;
+    запись - вычисление номера интервала и увеличение счетчика, без выделения памяти;
+    счетчики разнесены по нескольким полосам (по номеру потока) - потоки, одновременно
+    записывающие значения, реже соперничают за одни и те же ячейки;
+    класс общий для сервера (реестр Metrics) и клиента (генератор нагрузки)
+ */
+public final class Histogram implements HistogramMXBean {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    // наибольшее учитываемое значение - 2^40 нс (около 18 минут), большие считаются равными ему
+    private static final int MAX_BITS = 40;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+    private static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB;
+    private static final int STRIPES =
+            Math.min(8, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors())));
+
+    private final String description;
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+    private final LongAdder total = new LongAdder(), sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public Histogram(String description) { this.description = description; }
+
+    public void record(long nanos) {
+        long v = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        int stripe = (int)Thread.currentThread().getId() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKETS + index(v));
+        total.increment();
+        sum.add(v);
+        max.accumulate(v);
+    }
+
+    // длительность от startNanos (System.nanoTime()) до текущего момента
+    public void recordSince(long startNanos) { record(System.nanoTime() - startNanos); }
+
+    // первые SUB значений - по одному в интервале, далее - SUB интервалов на степень двойки
+    private static int index(long v) {
+        if (v < SUB) return (int)v;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return (shift + 1) * SUB + (int)(v >>> shift) - SUB;
+    }
+
+    // середина интервала
+    private static long value(int index) {
+        if (index < SUB) return index;
+        int shift = index / SUB - 1;
+        return ((long)(SUB + index % SUB) << shift) + (1L << shift >> 1);
+    }
+
+    /**
+     * значения, не превышаемые заданными долями записанных
+     * @param quantiles доли (по возрастанию), например 0.5, 0.99
+     * @return значения в наносекундах
+     **/
+    public long[] quantiles(double ... quantiles) {
+        long[] buckets = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long c = counts.get(i);
+            buckets[i % BUCKETS] += c;
+            n += c;
+        }
+        long[] result = new long[quantiles.length];
+        long seen = 0;
+        for (int i = 0, q = 0; i < BUCKETS && q < quantiles.length; i++) {
+            seen += buckets[i];
+            while (q < quantiles.length && buckets[i] > 0 && seen >= Math.ceil(quantiles[q] * n))
+                result[q++] = Math.min(value(i), max.get());
+        }
+        return result;
+    }
+
+    public long getTotalNanos() { return sum.sum(); }
+
+    public long getMaxNanos() { return max.get(); }
+
+    @Override public String getDescription() { return description; }
+
+    @Override public long getCount() { return total.sum(); }
+
+    @Override public double getMean() {
+        long n = total.sum();
+        return n == 0 ? 0 : sum.sum() / 1e3 / n;
+    }
+
+    @Override public double getP50() { return quantiles(0.5)[0] / 1e3; }
+
+    @Override public double getP90() { return quantiles(0.9)[0] / 1e3; }
+
+    @Override public double getP99() { return quantiles(0.99)[0] / 1e3; }
+
+    @Override public double getP999() { return quantiles(0.999)[0] / 1e3; }
+
+    @Override public double getMax() { return max.get() / 1e3; }
+}
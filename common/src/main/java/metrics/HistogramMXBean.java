@@ -0,0 +1,13 @@
+package metrics;
+
+// гистограмма длительностей в JMX; значения - в микросекундах
+public interface HistogramMXBean {
+    String getDescription();
+    long getCount();
+    double getMean();
+    double getP50();
+    double getP90();
+    double getP99();
+    double getP999();
+    double getMax();
+}
@@ -1,45 +1,47 @@
 package prefs;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+
+import java.text.MessageFormat;
 
 import java.util.logging.*;
 
+/*
+    журнал событий - лишь оболочка над общим для процесса асинхронным журналом (LogPipeline):
+    экземпляр ничего не открывает и не закрывает, а запись стоит только постановки в очередь,
+    поэтому создавать экземпляры можно сколько угодно, но достаточно одного на класс
+ */
 public class EventLogger extends Logger {
-    Formatter frm = new Formatter() {
-        @Override public String format(LogRecord r) {
-            return TimeVisor.getCurrentDate() + " " +
-                    TimeVisor.getCurrentTime() + " " +
-                    r.getLevel() + ": " + r.getMessage() + "\n";
-        }
-    };
-
     public EventLogger(String name, String resourceBundleName) {
         super(name, resourceBundleName);
         setUseParentHandlers(false);
+    }
 
-        Handler console = new ConsoleHandler();
-        console.setFormatter(frm);
-        addHandler(console);
-
-        try {
-            File folder = new File(Prefs.logFolder);
-            if (folder.exists() ? folder.isDirectory() : folder.mkdir()) {
-                // не понятно пока, как нужно так управлять записью в логи (когда она производится
-                // из нескольких потоков - сервера и обработчиков запросов клиентов), чтобы они не
-                // получались разбитыми на разные куски
-                Handler file = new FileHandler(Prefs.logFolder + "\\log_%g.log", 10 * 1024, 20, true);
-                file.setFormatter(frm);
-                addHandler(file);
-            }
-        } catch (IOException ex) { ex.printStackTrace(); }
+    // info, warning и прочие сводятся к этому методу - без создания LogRecord
+    @Override public void log(Level level, String msg) {
+        if (isLoggable(level)) LogPipeline.get().append(level, msg);
+    }
+
+    // запись с параметрами ({0}, {1}...) и исключением - как у стандартных обработчиков
+    @Override public void log(LogRecord r) {
+        if (!isLoggable(r.getLevel())) return;
+        String msg = r.getMessage();
+        Object[] params = r.getParameters();
+        if (msg != null && params != null && params.length > 0)
+            try { msg = MessageFormat.format(msg, params); }
+            catch (IllegalArgumentException ignored) {} // не шаблон - выводится как есть
+        if (r.getThrown() != null) {
+            StringWriter trace = new StringWriter();
+            r.getThrown().printStackTrace(new PrintWriter(trace));
+            msg = (msg == null ? "" : msg + System.lineSeparator()) + trace.toString().stripTrailing();
+        }
+        LogPipeline.get().append(r.getLevel(), msg);
     }
 
     public void logError(Exception ex) { log(Level.SEVERE, ex.getMessage()); }
     public void logError(String errorMessage) { log(Level.SEVERE, errorMessage); }
 
-    // возможно, этот метод лишний - если закрытие обработчиков логирования
-    // происходит автоматически при завершении работы, но поскольку уверенности
-    // в этом нет, в создающих обработчики классах его стоит вызывать принудительно
-    public void closeHandlers() { for (Handler h : getHandlers()) h.close(); }
-}
\ No newline at end of file
+    // дождаться вывода уже сделанных записей - при завершении работы
+    // (выводятся они и без этого, в том числе при завершении процесса)
+    public void closeHandlers() { LogPipeline.get().flush(); }
+}
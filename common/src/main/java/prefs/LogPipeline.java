@@ -0,0 +1,224 @@
+package prefs;
+
+import java.io.*;
+
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/*
+    единый для процесса асинхронный журнал событий
+
+    прежде каждый экземпляр EventLogger (в том числе по одному на каждое соединение)
+    открывал собственные ConsoleHandler и FileHandler (с файлом блокировки),
+    а при отключении клиента закрывал их - при частых подключениях файлы журнала
+    постоянно открывались и закрывались, а строки разных обработчиков перемешивались;
+
+    теперь записи помещаются в заранее выделенный кольцевой буфер - для вызывающего это
+    лишь захват ячейки и заполнение ее полей, - а единственный поток забирает все
+    накопившиеся записи и выводит их одной операцией на консоль и в файл;
+    файл ограничен по размеру: заполненный становится log_1.log, прежний log_1 - log_2
+    и т. д., самый старый удаляется; при переполнении буфера записи не ждут,
+    а отбрасываются (с подсчетом);
+
+    набор файлов занимается блокировкой файла log.lck на все время работы процесса -
+    другой процесс, запущенный в той же папке, ведет свой набор (log-1_0.log, ...
+    с блокировкой log-1.lck), и записи и ротации процессов не смешиваются
+ */
+final class LogPipeline {
+    // размер кольцевого буфера (степень двойки), записей
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+    // наибольшее число записей, выводимых за раз
+    private static final int MAX_BATCH = 1024;
+    // наибольший размер файла журнала и число хранимых файлов
+    private static final long MAX_FILE_BYTES = 1024 * 1024;
+    private static final int GENERATIONS = 20;
+    // наибольшее число процессов, одновременно ведущих журнал в одной папке
+    private static final int MAX_OWNERS = 100;
+    // наибольшее время ожидания новых записей (и вывода при сбросе), мс
+    private static final long IDLE_MILLIS = 100, FLUSH_MILLIS = 1000;
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm:ss");
+
+    private static final LogPipeline INSTANCE = new LogPipeline();
+
+    static LogPipeline get() { return INSTANCE; }
+
+    // ячейка буфера; sequence - номер опубликованной в ней записи
+    private static final class Slot {
+        volatile long sequence = -1;
+        long time;
+        Level level;
+        String message;
+    }
+
+    private final Slot[] ring = new Slot[CAPACITY];
+    // номер следующей захватываемой ячейки
+    private final AtomicLong claimed = new AtomicLong();
+    // номер следующей записи, которую заберет поток вывода, и число уже выведенных
+    private volatile long consumed, written;
+    private volatile boolean sleeping;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread consumer;
+
+    // метка времени форматируется не чаще раза в секунду - только в потоке вывода
+    private long stampSecond = -1;
+    private String stamp;
+
+    private File folder;
+    // имя набора файлов журнала ("log" или "log-N") и блокировка, занимающая его
+    private String base;
+    private FileChannel lock;
+    private OutputStream file;
+    private long fileBytes;
+
+    private LogPipeline() {
+        for (int i = 0; i < CAPACITY; i++) ring[i] = new Slot();
+        consumer = new Thread(this::run, "log-writer");
+        consumer.setDaemon(true);
+        consumer.start();
+        // записи, сделанные перед завершением процесса, не должны теряться
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+    }
+
+    // поставить запись в очередь; при переполнении буфера запись отбрасывается
+    void append(Level level, String message) {
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - consumed >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+        Slot s = ring[(int)seq & MASK];
+        s.time = System.currentTimeMillis();
+        s.level = level;
+        s.message = message;
+        s.sequence = seq;
+        if (sleeping) LockSupport.unpark(consumer);
+    }
+
+    // дождаться вывода всех записей, поставленных в очередь до вызова
+    void flush() {
+        long target = claimed.get(), deadline = System.nanoTime() + FLUSH_MILLIS * 1_000_000;
+        while (written < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(consumer);
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    private void run() {
+        StringBuilder sb = new StringBuilder(64 * 1024);
+        long next = 0, reported = 0;
+        while (true) {
+            int n = 0;
+            Slot s;
+            while (n < MAX_BATCH && (s = ring[(int)next & MASK]).sequence == next) {
+                format(sb, s.time, s.level, s.message);
+                s.message = null;
+                next++;
+                n++;
+            }
+            if (n > 0) {
+                // ячейки свободны - поля записей уже скопированы
+                consumed = next;
+                long lost = dropped.sum();
+                if (lost > reported) {
+                    format(sb, System.currentTimeMillis(), Level.WARNING,
+                            String.format(Prefs.MSG_LOG_DROPPED, lost - reported));
+                    reported = lost;
+                }
+                write(sb);
+                sb.setLength(0);
+                written = next;
+                continue;
+            }
+            sleeping = true;
+            if (ring[(int)next & MASK].sequence != next)
+                LockSupport.parkNanos(IDLE_MILLIS * 1_000_000);
+            sleeping = false;
+        }
+    }
+
+    private void format(StringBuilder sb, long time, Level level, String message) {
+        if (time / 1000 != stampSecond) {
+            stampSecond = time / 1000;
+            stamp = TIME_FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()));
+        }
+        sb.append(stamp).append(' ').append(level).append(": ").append(message).append('\n');
+    }
+
+    private void write(StringBuilder sb) {
+        System.err.print(sb);
+        byte[] b = sb.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (file != null && fileBytes > 0 && fileBytes + b.length > MAX_FILE_BYTES) rotate();
+            if (file == null) open();
+            if (file != null) {
+                file.write(b);
+                file.flush();
+                fileBytes += b.length;
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            close();
+        }
+    }
+
+    private File generation(int g) { return new File(folder, base + "_" + g + ".log"); }
+
+    private void open() throws IOException {
+        if (folder == null) {
+            File f = new File(Prefs.logFolder);
+            if (!(f.exists() ? f.isDirectory() : f.mkdirs())) return;
+            folder = f;
+        }
+        if (lock == null && !acquire()) return;
+        File current = generation(0);
+        fileBytes = current.length();
+        file = new FileOutputStream(current, true);
+    }
+
+    // занять первый свободный набор файлов; блокировка снимается при завершении процесса
+    private boolean acquire() throws IOException {
+        for (int u = 0; u < MAX_OWNERS; u++) {
+            String name = u == 0 ? "log" : "log-" + u;
+            FileChannel ch = FileChannel.open(new File(folder, name + ".lck").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock l = null;
+            try { l = ch.tryLock(); }
+            catch (IOException | OverlappingFileLockException ignored) {}
+            if (l != null) {
+                lock = ch;
+                base = name;
+                return true;
+            }
+            ch.close();
+        }
+        return false;
+    }
+
+    // заполненный файл сдвигается на одно поколение, самый старый удаляется
+    private void rotate() {
+        close();
+        generation(GENERATIONS - 1).delete();
+        for (int g = GENERATIONS - 2; g >= 0; g--) generation(g).renameTo(generation(g + 1));
+    }
+
+    private void close() {
+        if (file == null) return;
+        try { file.close(); }
+        catch (IOException ignored) {}
+        file = null;
+        fileBytes = 0;
+    }
+}
@@ -3,6 +3,7 @@ package prefs;
 public class Prefs {
     public static final int PORT = 8189; // порт подключения
     public static final int TIMEOUT = 120; // время на прохождение авторизации, секунды
+    public static final int MAX_HISTORY_PAGE = 1000; // наибольшее число строк в странице истории
 
     // название проекта
     public static final String TITLE = "Chatty";
@@ -11,11 +12,20 @@ public class Prefs {
 
     // команды сервера
     public static final String COM_QUIT = "end";
+    public static final String COM_STATS = "stats"; // сводка показателей - в консоли сервера
     public static final String COM_AUTHORIZE = "auth";
     public static final String COM_REGISTER = "reg";
     public static final String COM_PRIVATE_MSG = "w";
     public static final String COM_CLIENT_LIST = "clientlist";
+    // изменения списка пользователей
+    public static final String COM_CLIENT_JOIN = "join";
+    public static final String COM_CLIENT_LEAVE = "leave";
+    public static final String COM_CLIENT_RENAME = "rename";
     public static final String COM_CHANGE_NICK = "nick";
+    // выбор протокола - первым сообщением после подключения, например /proto binary
+    public static final String COM_PROTOCOL = "proto";
+    // страница истории: /history <сколько последних строк пропустить> <сколько строк прислать>
+    public static final String COM_HISTORY = "history";
 
     // ответы сервера на запросы
     public static final String SRV_AUTH_OK = "auth_ok";
@@ -23,12 +33,18 @@ public class Prefs {
     public static final String SRV_REG_FAULT = "reg_fault";
     public static final String SRV_CHANGE_OK = "change_ok";
     public static final String SRV_CHANGE_FAULT = "change_fault";
+    public static final String SRV_PROTOCOL_OK = "proto_ok";
+    // /history_page <пропущено строк> <прислано строк> <строки>
+    public static final String SRV_HISTORY_PAGE = "history_page";
 
     // сообщения сервера
     public static final String MSG_SERVER_STARTED = "Запуск сервера произведен";
     public static final String MSG_CLIENT_CONNECTED = "Соединение с новым клиентом установлено";
     public static final String MSG_SERVER_SHUTDOWN_CMD = "Команда для завершения работы - " + getExitCommand();
+    public static final String MSG_SERVER_STATS_CMD = "Команда для вывода показателей работы - " + getStatsCommand();
     public static final String MSG_SERVER_SHUTDOWN = "Завершена работа сервера";
+    public static final String MSG_VIRTUAL_THREADS_UNAVAILABLE =
+            "Виртуальные потоки не поддерживаются данной версией Java, используется пул потоков";
 
     // шаблон заголовка сообщения в чате
     public static final String MESSAGE_HEADER_PATTERN = "[ личное сообщение %s %s ]: %s";
@@ -42,6 +58,14 @@ public class Prefs {
     public static final String WRONG_REGISTRATION_LOGGED = "Отказ при попытке регистрации:\n%s";
     public static final String ERR_LOG_CREATION = "Ошибка создания файла журнала клиента %s";
     public static final String ERR_LOG_FOLDER_CREATION = "Невозможно создать папку с журналами клиента %s";
+    public static final String ERR_WRONG_HISTORY_REQUEST = "Неверный запрос истории: %s %s";
+    public static final String ERR_JOURNAL_FILE = "Ошибка записи в журнал %s";
+    public static final String ERR_JOURNAL_SYNC = "Журнал клиента %s не записан вовремя - история может быть неполной";
+    public static final String ERR_DB_POOL_TIMEOUT = "Нет свободного соединения с БД (ожидание %d мс)";
+    public static final String ERR_DB_POOL_CLOSED = "Пул соединений с БД закрыт";
+    public static final String ERR_DB_WRITER_TIMEOUT = "Запрос к БД не выполнен вовремя (ожидание %d мс)";
+    public static final String ERR_DB_WRITER_CLOSED = "Запись в БД прекращена";
+    public static final String ERR_AUTH_BUSY = "Сервер перегружен, повторите попытку позже";
     public static final String ERR_ALREADY_LOGGED_IN = "Учетная запись уже используется пользователем %s";
     public static final String ERR_ALREADY_REGISTERED = "Пользователь с никнеймом %s уже зарегистрирован";
     public static final String ERR_ALREADY_REGISTERED_LOGGED = "Отказ в смене никнейма:\n%s";
@@ -53,19 +77,71 @@ public class Prefs {
     public static final String MSG_LOGGED_OUT = "Произведен выход из чата";
     public static final String MSG_CLIENT_CONNECTION_CLOSED = "Соединение с клиентом %s завершено";
     public static final String MSG_LOGGED_OUT_LOGGED = "Клиент \"%s\" вышел из чата";
+    public static final String MSG_OUTBOUND_QUEUE_STATS =
+            "Исходящие сообщения клиента %s: отправлено %d (записей в сокет - %d), " +
+            "наибольшая длина очереди %d, отброшено %d";
+    public static final String MSG_JOURNAL_STATS =
+            "Журналы: записано строк в личные журналы %d, в общий - %d, записей в файлы - %d, " +
+            "сбросов на диск - %d";
+    public static final String MSG_HISTORY_CACHE_STATS =
+            "Кэш истории: попаданий %d, промахов %d (попаданий %.1f%%), вытеснено %d, занято %d байт";
+    public static final String MSG_DB_POOL_STATS =
+            "Соединения с БД: выдано %d, среднее ожидание %.2f мс, наибольшее %.2f мс, отказов %d, " +
+            "соединений %d из %d";
+    public static final String MSG_DB_WRITER_STATS =
+            "Запись в БД: запросов %d, транзакций %d (в среднем %.1f запросов), " +
+            "пакетов executeBatch %d, повторов по одному запросу %d, ошибок %d";
+    public static final String MSG_AUTH_STAGE_STATS =
+            "Авторизация: запросов %d, обращений к сервису %d, отказов (очередь заполнена) %d; " +
+            "ожидание в очереди: среднее %.2f мс, наибольшее %.2f мс; " +
+            "обращение к сервису: среднее %.2f мс, наибольшее %.2f мс";
+    public static final String MSG_NAME_FILTER_STATS =
+            "Фильтр имен: отсеяно без запроса к БД %d, из кэша отсутствующих %d, " +
+            "проверено по БД %d (из них свободных %d, занесено в кэш отсутствующих %d)";
+    public static final String MSG_IDENTITY_MAP_STATS =
+            "Кэш пользователей: попаданий %d, промахов %d (попаданий %.1f%%), вытеснено %d, " +
+            "хранится %d (в чате %d)";
+    public static final String MSG_METRICS_HEADER = "Показатели работы сервера (длительности - в мкс):";
+    public static final String MSG_METRICS_COUNTER = "%-22s %12d  %10.1f/с  %s";
+    public static final String MSG_METRICS_HISTOGRAM =
+            "%-22s %12d  среднее %.1f, p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, наибольшее %.1f  %s";
+    public static final String MSG_LOG_DROPPED = "Журнал событий: буфер заполнен, пропущено записей: %d";
+    public static final String MSG_USERS_PRELOAD_STARTED = "Заполнение кэша пользователей (не более %d)";
+    public static final String MSG_USERS_PRELOAD_PROGRESS = "Заполнение кэша пользователей: прочитано %d";
+    public static final String MSG_USERS_PRELOAD_DONE =
+            "Кэш пользователей заполнен: прочитано %d учетных записей за %.1f мс";
+    // генератор нагрузки (load.LoadGenerator) - длительности в мс
+    public static final String MSG_LOAD_STARTED =
+            "Нагрузка на %s (формат %s): сеансов %d (подключений %.1f/с), сообщений %.2f/с на сеанс (личных %.0f%%), " +
+            "смен никнейма %.3f/с на сеанс, измерение %d с";
+    public static final String MSG_LOAD_JOINING = "Подключение: начато %d, в чате %d";
+    public static final String MSG_LOAD_MEASURING = "В чате %d из %d сеансов за %.1f с - начало измерения";
+    public static final String MSG_LOAD_PROGRESS =
+            "В чате %d: отправлено всем %.0f/с, лично %.0f/с, доставлено %.0f/с; задержка p50 %.2f, p99 %.2f";
+    public static final String MSG_LOAD_REPORT_HEADER = "Итоги измерения за %.1f с (длительности - в мс):";
+    public static final String MSG_LOAD_SESSIONS =
+            "сеансы: в чате %d из %d, ошибок подключения %d, отказов в авторизации %d, разрывов %d";
+    public static final String MSG_LOAD_BROADCASTS = "сообщения всем: отправлено %d (%.1f/с), доставлено %d (%.1f/с)";
+    public static final String MSG_LOAD_PRIVATE = "личные сообщения: отправлено %d, доставлено %d";
+    public static final String MSG_LOAD_RENAMES = "смены никнейма: %d, отказов %d";
+    public static final String MSG_LOAD_HISTOGRAM =
+            "%-18s %10d  p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, наибольшее %.2f";
     public static final String MSG_USER_REGISTERED = "Выполнена регистрация в чате:\n%s";
     public static final String MSG_NICKNAME_CHANGED =
             "\t\t\tЛогин: %s\n" + "\t\t\tПрежний никнейм: %s\n" + "\t\t\tНовый никнейм: %s";
     public static final String MSG_NICKNAME_CHANGED_CHECK_IT_OUT = "это мой новый никнейм, прежний - %s";
     public static final String MSG_NICKNAME_CHANGE_ALRIGHT = "Выполнена смена никнейма:\n%s";
     public static final String MSG_CLIENT_HISTORY_SENT = "Клиенту %s отправлена его история сообщений";
-    public static final String MSG_CURRENT_DATE = "Сегодня " + TimeVisor.getCurrentDate() + "\n";
-    public static final String MSG_CURRENT_TIME = TimeVisor.getCurrentTime() + "\t%s\n";
+    // дата и время подставляются при каждом использовании (TimeVisor), а не при загрузке класса
+    public static final String MSG_CURRENT_DATE = "Сегодня %s\n";
+    public static final String MSG_CURRENT_TIME = "%s\t%s\n";
 
     // имя папки с журналами пользователей
     public static final String historyFolder = "history";
     // имя папки с журналами сервера
     public static final String logFolder = "log";
+    // имя папки с учетными записями пользователей (при работе без БД)
+    public static final String usersFolder = "users";
 
     public static String getCommand(String cmdName, String ... args) {
         if (args == null || args.length == 0)
@@ -78,4 +154,5 @@ public class Prefs {
     }
 
     public static String getExitCommand() { return getCommand(COM_QUIT); }
+    public static String getStatsCommand() { return getCommand(COM_STATS); }
 }
\ No newline at end of file
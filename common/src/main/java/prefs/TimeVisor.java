@@ -1,29 +1,68 @@
 package prefs;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
+import java.nio.charset.StandardCharsets;
 
-public class TimeVisor {
-    private static int curDate;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
 
-    static  { changeDate(); }
+import java.util.concurrent.*;
 
-    private static void changeDate() { curDate = Calendar.getInstance().get(Calendar.DATE); }
+/*
+    часы с точностью до секунды
 
-    public static boolean dateChanged() {
-        if (Calendar.getInstance().get(Calendar.DATE) != curDate) {
-            changeDate();
-            return true;
-        } else
-            return false;
-    }
+    прежде каждое обращение за датой или временем создавало новые SimpleDateFormat и Date,
+    а проверка смены дня - новый Calendar, и происходило это для каждой строки истории
+    и каждого сообщения; теперь собственный поток раз в секунду (в начале каждой секунды)
+    готовит строки даты и времени (и их байты в UTF-8), а обращения только читают их;
+    смена дня определяется сравнением номера текущего дня с запомненным вызывающим -
+    без блокировок, и ее замечает каждый, а не только первый спросивший
+ */
+public class TimeVisor {
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd.MM.yyyy");
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
 
-    public static String getCurrentDate() {
-        return new SimpleDateFormat("dd.MM.yyyy").format(new Date());
+    // показания часов - заменяются целиком, поэтому всегда согласованы между собой
+    private static final class Tick {
+        final long day;
+        final String date, time;
+        final byte[] dateBytes, timeBytes;
+
+        Tick(LocalDateTime now) {
+            day = now.toLocalDate().toEpochDay();
+            date = now.format(DATE_FORMAT);
+            time = now.format(TIME_FORMAT);
+            dateBytes = date.getBytes(StandardCharsets.UTF_8);
+            timeBytes = time.getBytes(StandardCharsets.UTF_8);
+        }
     }
 
-    public static String getCurrentTime() {
-        return new SimpleDateFormat("HH:mm:ss").format(new Date());
+    private static volatile Tick tick = new Tick(LocalDateTime.now());
+
+    static {
+        ScheduledExecutorService clock = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "clock");
+            t.setDaemon(true);
+            return t;
+        });
+        clock.schedule(new Runnable() {
+            @Override public void run() {
+                tick = new Tick(LocalDateTime.now());
+                // следующее обновление - в начале следующей секунды
+                clock.schedule(this, 1000 - System.currentTimeMillis() % 1000, TimeUnit.MILLISECONDS);
+            }
+        }, 1000 - System.currentTimeMillis() % 1000, TimeUnit.MILLISECONDS);
     }
-}
\ No newline at end of file
+
+    // номер текущего дня - если он отличается от запомненного, день сменился
+    public static long getDay() { return tick.day; }
+
+    public static String getCurrentDate() { return tick.date; }
+
+    public static String getCurrentTime() { return tick.time; }
+
+    // байты даты и времени (UTF-8) - общие для всех, изменять их нельзя;
+    // из них поток журнала собирает строки истории без String.format
+    public static byte[] getCurrentDateBytes() { return tick.dateBytes; }
+
+    public static byte[] getCurrentTimeBytes() { return tick.timeBytes; }
+}
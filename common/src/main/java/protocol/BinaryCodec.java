@@ -0,0 +1,132 @@
+/*
+    пакет содержит средства работы с форматом передачи сообщений между клиентом и сервером
+*/
+package protocol;
+
+import java.io.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import java.util.*;
+
+/*
+    двоичный протокол:
+        кадр     = длина тела (varint) + тело
+        тело     = код операции (1 байт) + аргумент*
+        аргумент = длина (varint) + строка в UTF-8
+    число аргументов определяется длиной тела, поэтому ни разделителей,
+    ни разбора строк при получении не требуется
+ */
+public class BinaryCodec {
+    // ограничение длины тела кадра - защита от заведомо ошибочных данных
+    public static final int MAX_BODY_LENGTH = 1 << 20;
+
+    private BinaryCodec() {}
+
+    public static byte[] encode(Message m) throws IOException {
+        byte[][] args = new byte[m.size()][];
+        int body = 1;
+        for (int i = 0; i < args.length; i++) {
+            args[i] = m.arg(i).getBytes(StandardCharsets.UTF_8);
+            body += varintLength(args[i].length) + args[i].length;
+        }
+        if (body > MAX_BODY_LENGTH) throw new IOException("message too long: " + body + " bytes");
+
+        byte[] frame = new byte[varintLength(body) + body];
+        int pos = putVarint(frame, 0, body);
+        frame[pos++] = m.opcode().getCode();
+        for (byte[] arg : args) {
+            pos = putVarint(frame, pos, arg.length);
+            System.arraycopy(arg, 0, frame, pos, arg.length);
+            pos += arg.length;
+        }
+        return frame;
+    }
+
+    /**
+     * полная длина очередного кадра в буфере (режим чтения) вместе с заголовком
+     * @return -1 если заголовок кадра еще не получен полностью
+     **/
+    public static int frameLength(ByteBuffer buf) throws IOException {
+        int p = buf.position(), value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (p >= buf.limit()) return -1;
+            int b = buf.get(p++);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value <= 0 || value > MAX_BODY_LENGTH) throw new IOException("bad frame length: " + value);
+                return p - buf.position() + value;
+            }
+        }
+        throw new IOException("malformed frame length");
+    }
+
+    /**
+     * извлечь из буфера (режим чтения) очередной кадр, если он получен полностью
+     * @return null если кадр получен не полностью - позиция буфера при этом не меняется
+     **/
+    public static Message decode(ByteBuffer buf) throws IOException {
+        int len = frameLength(buf);
+        if (len < 0 || buf.remaining() < len) return null;
+        int end = buf.position() + len;
+        getVarint(buf, end);
+        return decodeBody(buf, end);
+    }
+
+    // блокирующее чтение кадра из потока
+    public static Message read(DataInputStream in) throws IOException {
+        int body = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift >= 32) throw new IOException("malformed frame length");
+            int b = in.readUnsignedByte();
+            body |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+        }
+        if (body <= 0 || body > MAX_BODY_LENGTH) throw new IOException("bad frame length: " + body);
+        byte[] bytes = new byte[body];
+        in.readFully(bytes);
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        return decodeBody(buf, body);
+    }
+
+    private static Message decodeBody(ByteBuffer buf, int end) throws IOException {
+        Opcode op = Opcode.byCode(buf.get());
+        if (op == null) throw new IOException("unknown opcode");
+        // аргументы декодируются прямо из массива буфера (буферы чтения - не прямые)
+        List<String> args = new ArrayList<>(3);
+        while (buf.position() < end) {
+            int len = getVarint(buf, end);
+            if (len < 0 || buf.position() + len > end) throw new IOException("malformed argument");
+            args.add(new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8));
+            buf.position(buf.position() + len);
+        }
+        return new Message(op, args.toArray(new String[0]));
+    }
+
+    private static int varintLength(int value) {
+        int n = 1;
+        while ((value >>>= 7) != 0) n++;
+        return n;
+    }
+
+    private static int putVarint(byte[] dst, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            dst[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int getVarint(ByteBuffer buf, int end) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (buf.position() >= end) break;
+            int b = buf.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("malformed varint");
+    }
+}
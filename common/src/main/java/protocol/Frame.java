@@ -0,0 +1,70 @@
+/*
+    пакет содержит средства работы с форматом передачи сообщений между клиентом и сервером
+*/
+package protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+
+import java.nio.ByteBuffer;
+
+/*
+    неизменяемый кадр - сообщение, уже закодированное для передачи
+    (заголовок длины и содержимое, как у writeUTF);
+
+    при широковещательной рассылке сообщение кодируется один раз,
+    и все получатели записывают в свои сокеты одни и те же байты;
+    представление в двоичном протоколе строится при первом обращении к нему
+    и тоже используется всеми получателями
+ */
+public final class Frame {
+    private final String text;
+    private final byte[] bytes;
+    // ответ на выбор протокола всегда отправляется в текстовом формате
+    private final boolean textOnly;
+    // повторное вычисление при одновременном обращении безвредно - результат тот же
+    private volatile byte[] binary;
+
+    private Frame(String text, byte[] bytes, boolean textOnly) {
+        this.text = text;
+        this.bytes = bytes;
+        this.textOnly = textOnly;
+    }
+
+    public static Frame of(String text) throws UTFDataFormatException {
+        return new Frame(text, FrameCodec.encode(text), false);
+    }
+
+    public static Frame textOnly(String text) throws UTFDataFormatException {
+        return new Frame(text, FrameCodec.encode(text), true);
+    }
+
+    public String text() { return text; }
+
+    // длина кадра вместе с заголовком
+    public int length() { return bytes.length; }
+
+    public int length(Protocol protocol) throws IOException { return bytes(protocol).length; }
+
+    // буфер только для чтения - позиция у каждого получателя своя, а байты общие
+    public ByteBuffer buffer(Protocol protocol) throws IOException {
+        return ByteBuffer.wrap(bytes(protocol)).asReadOnlyBuffer();
+    }
+
+    public void writeTo(Protocol protocol, OutputStream out) throws IOException { out.write(bytes(protocol)); }
+
+    public void copyTo(Protocol protocol, byte[] dst, int offset) throws IOException {
+        byte[] b = bytes(protocol);
+        System.arraycopy(b, 0, dst, offset, b.length);
+    }
+
+    private byte[] bytes(Protocol protocol) throws IOException {
+        if (protocol == Protocol.TEXT || textOnly) return bytes;
+        byte[] b = binary;
+        if (b == null) binary = b = BinaryCodec.encode(TextCodec.parse(text));
+        return b;
+    }
+
+    @Override public String toString() { return text; }
+}
@@ -0,0 +1,116 @@
+/*
+    пакет содержит средства работы с форматом передачи сообщений между клиентом и сервером
+*/
+package protocol;
+
+import java.io.UTFDataFormatException;
+
+import java.nio.ByteBuffer;
+
+/*
+    кодирование/декодирование кадров в том же формате, который дают
+    DataOutputStream.writeUTF / DataInputStream.readUTF:
+    2 байта длины (big-endian) и сама строка в модифицированной UTF-8;
+
+    нужен для неблокирующего ввода-вывода, где потоков данных нет,
+    а кадр может прийти по частям
+ */
+public class FrameCodec {
+    public static final int HEADER_LENGTH = 2;
+    public static final int MAX_PAYLOAD_LENGTH = 0xFFFF;
+
+    private FrameCodec() {}
+
+    // длина строки в модифицированной UTF-8 (без заголовка)
+    public static int encodedLength(String s) {
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) len++;
+            else if (c > 0x07FF) len += 3;
+            else len += 2;
+        }
+        return len;
+    }
+
+    // закодировать строку в кадр - заголовок длины и содержимое
+    public static byte[] encode(String s) throws UTFDataFormatException {
+        int len = encodedLength(s);
+        if (len > MAX_PAYLOAD_LENGTH)
+            throw new UTFDataFormatException("encoded string too long: " + len + " bytes");
+
+        byte[] frame = new byte[HEADER_LENGTH + len];
+        frame[0] = (byte) (len >>> 8);
+        frame[1] = (byte) len;
+        int pos = HEADER_LENGTH;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F)
+                frame[pos++] = (byte) c;
+            else if (c > 0x07FF) {
+                frame[pos++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                frame[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                frame[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                frame[pos++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                frame[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * получить длину содержимого очередного кадра в буфере (режим чтения)
+     * @return -1 если заголовок кадра еще не получен полностью
+     **/
+    public static int peekLength(ByteBuffer buf) {
+        if (buf.remaining() < HEADER_LENGTH) return -1;
+        int p = buf.position();
+        return ((buf.get(p) & 0xFF) << 8) | (buf.get(p + 1) & 0xFF);
+    }
+
+    /**
+     * извлечь из буфера (режим чтения) очередной кадр, если он получен полностью
+     * @return null если кадр получен не полностью - позиция буфера при этом не меняется
+     **/
+    public static String decode(ByteBuffer buf) throws UTFDataFormatException {
+        int len = peekLength(buf);
+        if (len < 0 || buf.remaining() < HEADER_LENGTH + len) return null;
+        buf.position(buf.position() + HEADER_LENGTH);
+        return decode(buf, len);
+    }
+
+    // декодировать len байт модифицированной UTF-8, начиная с текущей позиции буфера
+    public static String decode(ByteBuffer buf, int len) throws UTFDataFormatException {
+        char[] chars = new char[len];
+        int count = 0, end = buf.position() + len;
+        while (buf.position() < end) {
+            int c = buf.get() & 0xFF;
+            switch (c >> 4) {
+                case 0: case 1: case 2: case 3: case 4: case 5: case 6: case 7:
+                    chars[count++] = (char) c;
+                    break;
+                case 12: case 13: {
+                    if (buf.position() + 1 > end) throw malformed();
+                    int c2 = buf.get();
+                    if ((c2 & 0xC0) != 0x80) throw malformed();
+                    chars[count++] = (char) (((c & 0x1F) << 6) | (c2 & 0x3F));
+                    break;
+                }
+                case 14: {
+                    if (buf.position() + 2 > end) throw malformed();
+                    int c2 = buf.get(), c3 = buf.get();
+                    if ((c2 & 0xC0) != 0x80 || (c3 & 0xC0) != 0x80) throw malformed();
+                    chars[count++] = (char) (((c & 0x0F) << 12) | ((c2 & 0x3F) << 6) | (c3 & 0x3F));
+                    break;
+                }
+                default: throw malformed();
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    private static UTFDataFormatException malformed() {
+        return new UTFDataFormatException("malformed input");
+    }
+}
@@ -0,0 +1,43 @@
+/*
+    пакет содержит средства работы с форматом передачи сообщений между клиентом и сервером
+*/
+package protocol;
+
+import prefs.Prefs;
+
+/*
+    разобранное сообщение - код операции и аргументы,
+    независимо от того, в каком формате оно было получено
+ */
+public final class Message {
+    private static final String[] NO_ARGS = new String[0];
+
+    private final Opcode opcode;
+    private final String[] args;
+    // строка текстового протокола, из которой разобрано сообщение, - null для двоичного
+    private final String line;
+
+    public Message(Opcode opcode, String... args) { this(null, opcode, args); }
+
+    Message(String line, Opcode opcode, String... args) {
+        this.line = line;
+        this.opcode = opcode;
+        this.args = args == null ? NO_ARGS : args;
+    }
+
+    public Opcode opcode() { return opcode; }
+    public int size() { return args.length; }
+    public String arg(int i) { return args[i]; }
+
+    // представление в текстовом протоколе
+    public String toText() {
+        if (opcode == Opcode.TEXT) return args.length > 0 ? args[0] : "";
+        return Prefs.getCommand(opcode.getCommand(), args);
+    }
+
+    // полученная строка без изменений: toText() восстанавливает ее по аргументам,
+    // а при разборе регистр и лишние пробелы могли быть утеряны
+    public String line() { return line != null ? line : toText(); }
+
+    @Override public String toString() { return toText(); }
+}
@@ -0,0 +1,69 @@
+/*
+    пакет содержит средства работы с форматом передачи сообщений между клиентом и сервером
+*/
+package protocol;
+
+import prefs.Prefs;
+
+import java.util.*;
+
+/*
+    таблица кодов операций двоичного протокола, общая для клиента и сервера;
+    каждому коду соответствует команда текстового протокола из Prefs
+    (кроме TEXT - обычного сообщения, не являющегося командой)
+ */
+public enum Opcode {
+    // запросы клиента
+    QUIT(0x01, Prefs.COM_QUIT),
+    AUTHORIZE(0x02, Prefs.COM_AUTHORIZE),          // логин, пароль
+    REGISTER(0x03, Prefs.COM_REGISTER),            // логин, пароль, никнейм
+    PRIVATE_MSG(0x04, Prefs.COM_PRIVATE_MSG),      // получатель, текст
+    CHANGE_NICK(0x05, Prefs.COM_CHANGE_NICK),      // новый никнейм
+    PROTOCOL(0x06, Prefs.COM_PROTOCOL),            // название формата
+    HISTORY(0x07, Prefs.COM_HISTORY),              // пропустить строк, прислать строк
+
+    // сообщение, не являющееся командой (в обе стороны)
+    TEXT(0x10, null),
+
+    // ответы сервера
+    AUTH_OK(0x20, Prefs.SRV_AUTH_OK),              // никнейм
+    REG_ACCEPT(0x21, Prefs.SRV_REG_ACCEPT),
+    REG_FAULT(0x22, Prefs.SRV_REG_FAULT),
+    CHANGE_OK(0x23, Prefs.SRV_CHANGE_OK),          // новый никнейм
+    CHANGE_FAULT(0x24, Prefs.SRV_CHANGE_FAULT),
+    PROTOCOL_OK(0x25, Prefs.SRV_PROTOCOL_OK),      // название формата
+    HISTORY_PAGE(0x26, Prefs.SRV_HISTORY_PAGE),    // пропущено строк, прислано строк, строки
+
+    // список пользователей и его изменения
+    CLIENT_LIST(0x30, Prefs.COM_CLIENT_LIST),
+    CLIENT_JOIN(0x31, Prefs.COM_CLIENT_JOIN),
+    CLIENT_LEAVE(0x32, Prefs.COM_CLIENT_LEAVE),
+    CLIENT_RENAME(0x33, Prefs.COM_CLIENT_RENAME);
+
+    private static final Opcode[] BY_CODE = new Opcode[256];
+    private static final Map<String, Opcode> BY_COMMAND = new HashMap<>();
+
+    static {
+        for (Opcode op : values()) {
+            BY_CODE[op.code & 0xFF] = op;
+            if (op.command != null) BY_COMMAND.put(op.command, op);
+        }
+    }
+
+    private final byte code;
+    private final String command;
+
+    Opcode(int code, String command) {
+        this.code = (byte) code;
+        this.command = command;
+    }
+
+    public byte getCode() { return code; }
+    public String getCommand() { return command; }
+
+    // null для неизвестного кода
+    public static Opcode byCode(int code) { return BY_CODE[code & 0xFF]; }
+
+    // null для неизвестной команды
+    public static Opcode byCommand(String command) { return BY_COMMAND.get(command); }
+}
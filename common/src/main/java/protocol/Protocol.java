@@ -0,0 +1,26 @@
+/*
+    пакет содержит средства работы с форматом передачи сообщений между клиентом и сервером
+*/
+package protocol;
+
+/*
+    форматы обмена сообщениями:
+        TEXT   - прежний текстовый: кадр writeUTF, команды вида /команда аргумент ...
+        BINARY - компактный двоичный: однобайтовый код операции, длины в формате varint
+                 и аргументы в UTF-8 (см. BinaryCodec)
+    клиент, которому нужен двоичный формат, запрашивает его первым сообщением
+    (/proto binary) и переходит на него, получив текстовый ответ /proto_ok binary;
+    клиенты, не отправляющие запрос, продолжают работать в текстовом формате
+ */
+public enum Protocol {
+    TEXT, BINARY;
+
+    public String getName() { return name().toLowerCase(); }
+
+    // неизвестное название формата означает текстовый
+    public static Protocol of(String name) {
+        for (Protocol p : values())
+            if (p.getName().equalsIgnoreCase(name)) return p;
+        return TEXT;
+    }
+}
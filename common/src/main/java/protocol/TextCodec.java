@@ -0,0 +1,38 @@
+/*
+    пакет содержит средства работы с форматом передачи сообщений между клиентом и сервером
+*/
+package protocol;
+
+import prefs.Prefs;
+
+import java.util.Arrays;
+
+/*
+    разбор сообщений текстового протокола - так же, как это делалось
+    прежде непосредственно в обработчике клиента
+ */
+public class TextCodec {
+    private TextCodec() {}
+
+    public static Message parse(String str) {
+        if (!str.startsWith(Prefs.COM_ID)) return new Message(str, Opcode.TEXT, str);
+
+        int sp = str.indexOf(' ');
+        String name = str.substring(Prefs.COM_ID.length(), sp < 0 ? str.length() : sp).toLowerCase();
+        Opcode op = Opcode.byCommand(name);
+        // неизвестная команда - обычный текст
+        if (op == null || op == Opcode.TEXT) return new Message(str, Opcode.TEXT, str);
+
+        String[] token;
+        switch (op) {
+            // логин и пароль, как и прежде, не различают регистр
+            case AUTHORIZE: token = str.toLowerCase().split(" ", 3); break;
+            // текст личного сообщения может содержать пробелы
+            case PRIVATE_MSG: case CHANGE_NICK: token = str.split(" ", 3); break;
+            // строки истории - одним аргументом
+            case HISTORY_PAGE: token = str.split(" ", 4); break;
+            default: token = str.split(" ");
+        }
+        return new Message(str, op, Arrays.copyOfRange(token, 1, token.length));
+    }
+}
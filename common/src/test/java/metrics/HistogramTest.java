@@ -0,0 +1,63 @@
+package metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistogramTest {
+    @Test
+    void empty() {
+        Histogram h = new Histogram("пусто");
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMean());
+        assertArrayEquals(new long[] { 0, 0 }, h.quantiles(0.5, 0.99));
+    }
+
+    // первые значения учитываются точно
+    @Test
+    void smallValuesAreExact() {
+        Histogram h = new Histogram("малые");
+        for (int v = 1; v <= 10; v++) h.record(v);
+        assertArrayEquals(new long[] { 1, 5, 9, 10 }, h.quantiles(0.1, 0.5, 0.9, 1));
+        assertEquals(10, h.getCount());
+        assertEquals(10, h.getMaxNanos());
+        assertEquals(55, h.getTotalNanos());
+    }
+
+    // относительная погрешность не превышает 1/16 при любом порядке величины
+    @Test
+    void relativeError() {
+        for (long v = 17; v < 1L << 40; v = v * 3 / 2 + 1) {
+            Histogram h = new Histogram("значение");
+            h.record(v);
+            h.record(v + 1);
+            long q = h.quantiles(0.5)[0];
+            assertTrue(Math.abs(q - v) <= v / 16, v + " -> " + q);
+        }
+    }
+
+    @Test
+    void quantilesOfUniformValues() {
+        Histogram h = new Histogram("равномерно");
+        for (long v = 1; v <= 100000; v++) h.record(v * 1000);
+        long[] q = h.quantiles(0.5, 0.9, 0.99, 0.999);
+        double[] expected = { 50e6, 90e6, 99e6, 99.9e6 };
+        for (int i = 0; i < q.length; i++)
+            assertEquals(expected[i], q[i], expected[i] / 16, "квантиль " + i);
+        // квантили не убывают и не превышают наибольшего значения
+        for (int i = 1; i < q.length; i++) assertTrue(q[i] >= q[i - 1]);
+        assertTrue(h.quantiles(1)[0] <= h.getMaxNanos());
+        assertEquals(100e3, h.getMax());
+    }
+
+    // отрицательные значения считаются нулем, слишком большие - наибольшим учитываемым
+    @Test
+    void outOfRange() {
+        Histogram h = new Histogram("границы");
+        h.record(-5);
+        h.record(Long.MAX_VALUE);
+        assertEquals(0, h.quantiles(0.5)[0]);
+        assertEquals((1L << 40) - 1, h.getMaxNanos());
+        assertEquals(h.getMaxNanos(), h.quantiles(1)[0], h.getMaxNanos() / 16);
+    }
+}
@@ -0,0 +1,106 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryCodecTest {
+    private static Message roundTrip(Message m) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(BinaryCodec.encode(m));
+        Message decoded = BinaryCodec.decode(buf);
+        assertNotNull(decoded);
+        assertFalse(buf.hasRemaining());
+        return decoded;
+    }
+
+    private static void assertSame(Message expected, Message actual) {
+        assertEquals(expected.opcode(), actual.opcode());
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) assertEquals(expected.arg(i), actual.arg(i));
+    }
+
+    private static String repeat(char c, int n) {
+        char[] chars = new char[n];
+        java.util.Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    void noArguments() throws IOException {
+        Message m = new Message(Opcode.QUIT);
+        assertSame(m, roundTrip(m));
+        assertEquals(2, BinaryCodec.encode(m).length);
+    }
+
+    @Test
+    void severalArguments() throws IOException {
+        Message m = new Message(Opcode.REGISTER, "login", "пароль", "");
+        assertSame(m, roundTrip(m));
+    }
+
+    // длины 127/128 и 16383/16384 - границы одно-, двух- и трехбайтового varint
+    @Test
+    void varintBoundaries() throws IOException {
+        for (int len : new int[] { 0, 1, 126, 127, 128, 16381, 16382, 16383, 16384, 100000 }) {
+            Message m = new Message(Opcode.TEXT, repeat('x', len));
+            assertSame(m, roundTrip(m));
+        }
+        // тело из 128 байт - заголовок из двух байт
+        byte[] frame = BinaryCodec.encode(new Message(Opcode.TEXT, repeat('x', 126)));
+        assertEquals(2 + 128, frame.length);
+        assertEquals(frame.length, BinaryCodec.frameLength(ByteBuffer.wrap(frame)));
+    }
+
+    @Test
+    void multiByteCharacters() throws IOException {
+        Message m = new Message(Opcode.PRIVATE_MSG, "получатель", repeat('я', 70) + " 😀");
+        assertSame(m, roundTrip(m));
+    }
+
+    @Test
+    void partialFrame() throws IOException {
+        byte[] frame = BinaryCodec.encode(new Message(Opcode.TEXT, repeat('ж', 200)));
+        for (int n = 0; n < frame.length; n++) {
+            ByteBuffer buf = ByteBuffer.wrap(frame, 0, n);
+            assertNull(BinaryCodec.decode(buf));
+            assertEquals(0, buf.position());
+        }
+    }
+
+    @Test
+    void consecutiveFrames() throws IOException {
+        Message a = new Message(Opcode.AUTH_OK, "ник"), b = new Message(Opcode.TEXT, "текст");
+        byte[] fa = BinaryCodec.encode(a), fb = BinaryCodec.encode(b);
+        ByteBuffer buf = ByteBuffer.allocate(fa.length + fb.length).put(fa).put(fb).flip();
+        assertSame(a, BinaryCodec.decode(buf));
+        assertSame(b, BinaryCodec.decode(buf));
+        assertNull(BinaryCodec.decode(buf));
+    }
+
+    @Test
+    void blockingRead() throws IOException {
+        Message a = new Message(Opcode.HISTORY, "10", "20"), b = new Message(Opcode.TEXT, repeat('q', 300));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(BinaryCodec.encode(a));
+        out.write(BinaryCodec.encode(b));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        assertSame(a, BinaryCodec.read(in));
+        assertSame(b, BinaryCodec.read(in));
+        assertThrows(EOFException.class, () -> BinaryCodec.read(in));
+    }
+
+    @Test
+    void malformedInput() {
+        // нулевая длина тела, неизвестный код операции, аргумент за пределами тела
+        assertThrows(IOException.class, () -> BinaryCodec.decode(ByteBuffer.wrap(new byte[] { 0 })));
+        assertThrows(IOException.class, () -> BinaryCodec.decode(ByteBuffer.wrap(new byte[] { 1, 0 })));
+        assertThrows(IOException.class, () -> BinaryCodec.decode(ByteBuffer.wrap(new byte[] { 3, 0x10, 5, 'a' })));
+        // длина тела больше допустимой
+        assertThrows(IOException.class, () ->
+                BinaryCodec.encode(new Message(Opcode.TEXT, repeat('x', BinaryCodec.MAX_BODY_LENGTH))));
+    }
+}
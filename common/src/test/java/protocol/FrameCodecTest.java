@@ -0,0 +1,81 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameCodecTest {
+    // кодирование совпадает с writeUTF, а декодирование - с readUTF
+    @Test
+    void compatibleWithDataStreams() throws IOException {
+        for (String s : new String[] { "", "text", "текст", "\u0000", "€ и 😀", "a\nb" }) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new DataOutputStream(out).writeUTF(s);
+            assertArrayEquals(out.toByteArray(), FrameCodec.encode(s));
+            assertEquals(out.size() - FrameCodec.HEADER_LENGTH, FrameCodec.encodedLength(s));
+
+            ByteBuffer buf = ByteBuffer.wrap(out.toByteArray());
+            assertEquals(s, FrameCodec.decode(buf));
+            assertFalse(buf.hasRemaining());
+        }
+    }
+
+    @Test
+    void partialFrame() throws IOException {
+        byte[] frame = FrameCodec.encode("сообщение");
+        assertEquals(-1, FrameCodec.peekLength(ByteBuffer.wrap(frame, 0, 1)));
+        assertEquals(frame.length - FrameCodec.HEADER_LENGTH, FrameCodec.peekLength(ByteBuffer.wrap(frame, 0, 2)));
+        for (int n = 0; n < frame.length; n++) {
+            ByteBuffer buf = ByteBuffer.wrap(frame, 0, n);
+            assertNull(FrameCodec.decode(buf));
+            assertEquals(0, buf.position());
+        }
+    }
+
+    @Test
+    void consecutiveFrames() throws IOException {
+        byte[] a = FrameCodec.encode("первый"), b = FrameCodec.encode("second");
+        ByteBuffer buf = ByteBuffer.allocate(a.length + b.length + 1).put(a).put(b).put((byte) 0).flip();
+        assertEquals("первый", FrameCodec.decode(buf));
+        assertEquals("second", FrameCodec.decode(buf));
+        assertNull(FrameCodec.decode(buf));
+        assertEquals(1, buf.remaining());
+    }
+
+    @Test
+    void maxLength() throws IOException {
+        char[] chars = new char[FrameCodec.MAX_PAYLOAD_LENGTH];
+        java.util.Arrays.fill(chars, 'x');
+        String s = new String(chars);
+        assertEquals(s, FrameCodec.decode(ByteBuffer.wrap(FrameCodec.encode(s))));
+        assertThrows(UTFDataFormatException.class, () -> FrameCodec.encode(s + "x"));
+    }
+
+    @Test
+    void malformedInput() {
+        // продолжение многобайтового символа без первого байта и обрыв символа в конце кадра
+        assertThrows(UTFDataFormatException.class,
+                () -> FrameCodec.decode(ByteBuffer.wrap(new byte[] { 0, 1, (byte) 0x80 })));
+        assertThrows(UTFDataFormatException.class,
+                () -> FrameCodec.decode(ByteBuffer.wrap(new byte[] { 0, 2, (byte) 0xE0, (byte) 0x80 })));
+    }
+
+    // кадр широковещательного сообщения в каждом из протоколов
+    @Test
+    void frameInBothProtocols() throws IOException {
+        Frame f = Frame.of("/w ник текст");
+        ByteBuffer text = f.buffer(Protocol.TEXT);
+        assertEquals("/w ник текст", FrameCodec.decode(text));
+
+        // буфер кадра только для чтения, а декодер читает из массива буфера
+        ByteBuffer binary = f.buffer(Protocol.BINARY);
+        Message m = BinaryCodec.decode(ByteBuffer.allocate(binary.remaining()).put(binary).flip());
+        assertNotNull(m);
+        assertEquals(Opcode.PRIVATE_MSG, m.opcode());
+        assertEquals("текст", m.arg(1));
+    }
+}
@@ -0,0 +1,80 @@
+package protocol;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TextCodecTest {
+    private static void assertArgs(Message m, String... args) {
+        assertEquals(args.length, m.size());
+        for (int i = 0; i < args.length; i++) assertEquals(args[i], m.arg(i));
+    }
+
+    @Test
+    void plainText() {
+        Message m = TextCodec.parse("просто текст  с пробелами");
+        assertEquals(Opcode.TEXT, m.opcode());
+        assertArgs(m, "просто текст  с пробелами");
+        assertEquals("просто текст  с пробелами", m.line());
+    }
+
+    @Test
+    void unknownCommandIsText() {
+        Message m = TextCodec.parse("/unknown a b");
+        assertEquals(Opcode.TEXT, m.opcode());
+        assertArgs(m, "/unknown a b");
+    }
+
+    // логин и пароль не различают регистр
+    @Test
+    void authorizeIsLowercased() {
+        Message m = TextCodec.parse("/AUTH Login PassWord");
+        assertEquals(Opcode.AUTHORIZE, m.opcode());
+        assertArgs(m, "login", "password");
+        assertEquals("/AUTH Login PassWord", m.line());
+    }
+
+    @Test
+    void privateMessageKeepsSpaces() {
+        Message m = TextCodec.parse("/w Получатель Текст  из  слов");
+        assertEquals(Opcode.PRIVATE_MSG, m.opcode());
+        assertArgs(m, "Получатель", "Текст  из  слов");
+    }
+
+    @Test
+    void changeNick() {
+        Message m = TextCodec.parse("/nick Новый Ник");
+        assertEquals(Opcode.CHANGE_NICK, m.opcode());
+        assertArgs(m, "Новый", "Ник");
+    }
+
+    @Test
+    void splitBySpaces() {
+        Message m = TextCodec.parse("/reg login password nick");
+        assertEquals(Opcode.REGISTER, m.opcode());
+        assertArgs(m, "login", "password", "nick");
+
+        m = TextCodec.parse("/history 100 50");
+        assertEquals(Opcode.HISTORY, m.opcode());
+        assertArgs(m, "100", "50");
+
+        m = TextCodec.parse("/end");
+        assertEquals(Opcode.QUIT, m.opcode());
+        assertArgs(m);
+    }
+
+    // строки истории - одним аргументом
+    @Test
+    void historyPage() {
+        Message m = TextCodec.parse("/history_page 0 2 первая строка\nвторая строка\n");
+        assertEquals(Opcode.HISTORY_PAGE, m.opcode());
+        assertArgs(m, "0", "2", "первая строка\nвторая строка\n");
+    }
+
+    // разобранное сообщение восстанавливается в текстовом виде
+    @Test
+    void toTextRoundTrip() {
+        for (String s : new String[] { "/reg a b c", "/w кому текст сообщения", "/history 5 10", "/end", "текст" })
+            assertEquals(s, TextCodec.parse(s).toText());
+    }
+}
@@ -0,0 +1,175 @@
+import prefs.*;
+import static prefs.Prefs.*;
+import authentification.*;
+import authentification.service.AuthService;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/*
+    авторизация и регистрация вне потоков соединений
+
+    прежде поток соединения (или задача пула в неблокирующем режиме) ждал ответа БД
+    на каждую команду /auth и /reg - после перезапуска сервера тысячи клиентов
+    входят одновременно, и каждый занимает поток запросом к БД;
+
+    теперь запросы помещаются в ограниченную очередь (при ее переполнении клиенту
+    предлагается повторить попытку позже), а выполняют их несколько собственных потоков:
+    каждый забирает из очереди все накопившиеся запросы авторизации и проверяет их
+    одним обращением к сервису (для БД - where login in (...)); результат передается
+    обработчику клиента, который и завершает вход, - в пуле потоков сервера:
+    завершение входа читает историю, рассылает изменения списка пользователей
+    и обрабатывает отложенные сообщения, и потоки сервиса на это время не заняты
+
+    время ожидания в очереди и время обращений к сервису учитываются раздельно
+ */
+public class AuthStage {
+    // наибольшее число запросов, забираемых из очереди за раз
+    private static final int MAX_BATCH = 64;
+
+    private static final class Request {
+        final String login, password, nickname; // nickname != null - регистрация
+        final Consumer<UserData> authorized;
+        final IntConsumer registered;
+        final long enqueued = System.nanoTime();
+
+        Request(String login, String password, String nickname,
+                Consumer<UserData> authorized, IntConsumer registered) {
+            this.login = login;
+            this.password = password;
+            this.nickname = nickname;
+            this.authorized = authorized;
+            this.registered = registered;
+        }
+    }
+
+    private final AuthService service;
+    private final BlockingQueue<Request> queue;
+    private final ExecutorService workers;
+    // потоки, в которых обработчики получают результат
+    private final Executor completions;
+    private final EventLogger logger;
+
+    // счетчики
+    private final LongAdder requests = new LongAdder(), batches = new LongAdder(), rejected = new LongAdder(),
+            waitNanos = new LongAdder(), serviceNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong(), maxServiceNanos = new AtomicLong();
+
+    /**
+     * @param threads число потоков, обращающихся к сервису авторизации
+     * @param limit наибольшее число ожидающих запросов
+     * @param completions потоки, в которых выполняются обработчики результата
+     **/
+    public AuthStage(AuthService service, int threads, int limit, Executor completions, EventLogger logger) {
+        this.service = service;
+        this.completions = completions;
+        this.logger = logger;
+        queue = new LinkedBlockingQueue<>(Math.max(1, limit));
+        AtomicInteger n = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "auth-" + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        for (int i = 0; i < Math.max(1, threads); i++) workers.execute(this::run);
+    }
+
+    /**
+     * проверить логин и пароль; done получит данные пользователя или null
+     * @return false если очередь заполнена - запрос не принят
+     **/
+    public boolean authorize(String login, String password, Consumer<UserData> done) {
+        return submit(new Request(login, password, null, done, null));
+    }
+
+    /**
+     * зарегистрировать пользователя; done получит его идентификатор (0 - отказ)
+     * @return false если очередь заполнена - запрос не принят
+     **/
+    public boolean register(String login, String password, String nickname, IntConsumer done) {
+        return submit(new Request(login, password, nickname, null, done));
+    }
+
+    private boolean submit(Request r) {
+        if (queue.offer(r)) return true;
+        rejected.increment();
+        return false;
+    }
+
+    private void run() {
+        List<Request> batch = new ArrayList<>();
+        Map<String, List<Request>> logins = new LinkedHashMap<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try { batch.add(queue.take()); }
+            catch (InterruptedException ex) { break; }
+            queue.drainTo(batch, MAX_BATCH - 1);
+
+            long start = System.nanoTime();
+            for (Request r : batch) {
+                long wait = start - r.enqueued;
+                waitNanos.add(wait);
+                maxWaitNanos.accumulateAndGet(wait, Math::max);
+                if (r.nickname == null)
+                    logins.computeIfAbsent(r.login, k -> new ArrayList<>()).add(r);
+            }
+            requests.add(batch.size());
+
+            // авторизации - одним обращением к сервису
+            if (!logins.isEmpty()) {
+                Map<String, UserData> found = Collections.emptyMap();
+                try { found = service.findByLogins(logins.keySet()); }
+                catch (RuntimeException ex) { logger.logError(ex); }
+                finally { account(start); }
+                for (Map.Entry<String, List<Request>> e : logins.entrySet()) {
+                    UserData data = found.get(e.getKey());
+                    for (Request r : e.getValue())
+                        complete(r, data != null && data.getPassword().equals(r.password) ? data : null);
+                }
+                logins.clear();
+            }
+            // регистрации - по одной, без ожидания их сохранения:
+            // ответ придет в потоке записи в БД после фиксации транзакции,
+            // обработчику он передается в пуле - поток записи не должен ждать клиентов
+            for (Request r : batch)
+                if (r.nickname != null) {
+                    long t = System.nanoTime();
+                    try {
+                        service.registerUser(r.login, r.password, r.nickname, id -> {
+                            account(t);
+                            complete(() -> r.registered.accept(id));
+                        });
+                    } catch (RuntimeException ex) { logger.logError(ex); }
+                }
+            batch.clear();
+        }
+    }
+
+    private void complete(Request r, UserData data) { complete(() -> r.authorized.accept(data)); }
+
+    private void complete(Runnable completion) {
+        try {
+            completions.execute(() -> {
+                try { completion.run(); }
+                catch (RuntimeException ex) { logger.logError(ex); }
+            });
+        } catch (RejectedExecutionException ex) { logger.logError(ex); } // сервер завершает работу
+    }
+
+    private void account(long start) {
+        long t = System.nanoTime() - start;
+        batches.increment();
+        serviceNanos.add(t);
+        maxServiceNanos.accumulateAndGet(t, Math::max);
+    }
+
+    public String getStats() {
+        long n = requests.sum(), b = batches.sum();
+        return String.format(MSG_AUTH_STAGE_STATS, n, b, rejected.sum(),
+                n == 0 ? 0.0 : waitNanos.sum() / 1e6 / n, maxWaitNanos.get() / 1e6,
+                b == 0 ? 0.0 : serviceNanos.sum() / 1e6 / b, maxServiceNanos.get() / 1e6);
+    }
+
+    public void shutdown() { workers.shutdownNow(); }
+}
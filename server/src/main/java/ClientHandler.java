@@ -3,297 +3,420 @@ import static prefs.Prefs.*;
 import observation.Observer;
 import authentification.*;
 import authentification.mapping.*;
+import transport.*;
+import protocol.*;
+import history.HistoryPage;
+import metrics.*;
 
 import java.io.*;
 
-import java.net.*;
-
 import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 // обработчик запросов клиента реализует поведенческий шаблон проектирования "Наблюдатель"
-public class ClientHandler implements Observer {
-    private DataInputStream in;
-    private DataOutputStream out;
+//
+// способ получения сообщений (поток на соединение или селектор) скрыт за транспортом,
+// а циклы аутентификации и работы превратились в состояние сеанса - признак authenticated:
+// каждое полученное сообщение обрабатывается в соответствии с текущим состоянием
+public class ClientHandler implements Observer, SessionListener {
+    private final Server server;
+    private final Transport transport;
 
-    private boolean authenticated;
+    private volatile boolean authenticated;
+    // признак отправки клиенту команды выхода - дальнейшие сообщения не обрабатываются
+    private volatile boolean finished;
+    // ожидается ответ сервиса авторизации (или подтверждение записи в БД смены ника):
+    // сообщения, пришедшие за это время,
+    // откладываются и обрабатываются по его получении - в исходном порядке;
+    // сообщения и ответы сервиса обрабатываются строго по одному: их выполняет тот поток,
+    // который застал обработку свободной (draining), а остальные лишь ставят их в очередь;
+    // блокировка удерживается только на время работы с очередью - отправка сообщений
+    // и чтение журналов выполняются вне ее (и не закрепляют виртуальный поток за потоком ОС)
+    private static final int MAX_DEFERRED = 1024;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Message> deferred = new ArrayDeque<>();
+    private Runnable completion; // обработка полученного ответа сервиса
+    private boolean authPending, draining;
     private String login, nickname;
 
-    private boolean dateLogged;
+    // день, дата которого уже записана в журнал пользователя
+    private long loggedDay = -1;
+
+    // показатели работы
+    private static final Counter AUTH_ATTEMPTS = Metrics.counter("auth.attempts", "попытки авторизации");
+    private static final Counter AUTH_FAILURES = Metrics.counter("auth.failures", "отказы в авторизации");
+    private static final Counter REGISTRATIONS = Metrics.counter("auth.registrations", "регистрации");
+    private static final Counter DISCONNECTS = Metrics.counter("connections.closed", "закрытые соединения");
+    private static final Histogram AUTH_TIME = Metrics.histogram("auth.time", "авторизация: от запроса до ответа");
 
-    private OutputStreamWriter logWriter;
-    private EventLogger logger;
+    // журнал событий общий для всех обработчиков - соединения его не открывают и не закрывают
+    private static final EventLogger logger = new EventLogger(ClientHandler.class.getName(), null);
 
     public String getLogin() { return login; }
     public String getNickname() { return nickname; }
     public void setNickname(String nickname) { this.nickname = nickname; }
 
-    public ClientHandler(Server server, Socket socket) {
+    public ClientHandler(Server server, Transport transport) {
+        this.server = server;
+        this.transport = transport;
+
+        // со стороны клиента запрос на установление связи (и открытие сокета) приходит
+        // на сервер не в абстрактном виде, а представляет собой один из двух конкретных
+        // запросов - либо авторизации, либо регистрации
+        try { transport.setTimeout(Prefs.TIMEOUT); }
+        catch (IOException ex) { logger.logError(ex); }
+        transport.start(this);
+    }
+
+    @Override public void onMessage(Message message) {
+        lock.lock();
+        try {
+            if (deferred.size() < MAX_DEFERRED) deferred.add(message);
+            if (authPending || draining) return;
+            draining = true;
+        } finally { lock.unlock(); }
+        drain();
+    }
+
+    // ответ сервиса получен - обработать его и отложенные до него сообщения
+    private void complete(Runnable r) {
+        lock.lock();
         try {
-            in = new DataInputStream(socket.getInputStream());
-            out = new DataOutputStream(socket.getOutputStream());
-            logger = new EventLogger(ClientHandler.class.getName(), null);
-
-            // выполнять обработку в пуле потоков, по возможности используя
-            // для новых ранее созданные структуры уже завершившихся
-            server.getThreadPool().execute(() -> {
-                try {
-                    //цикл аутентификации
-
-                    // со стороны клиента запрос на установление связи (и открытие сокета) приходит
-                    // на сервер не в абстрактном виде, а представляет собой один из двух конкретных
-                    // запросов - либо авторизации, либо регистрации
-                    socket.setSoTimeout(1000 * Prefs.TIMEOUT);
-                    while (true) {
-                        String str = in.readUTF().trim();
-
-                        // обработка команд
-                        if (str.startsWith(Prefs.COM_ID)) {
-                            String s = str.toLowerCase();
-
-                            // команда выхода
-                            if (s.equals(Prefs.getExitCommand())) {
-                                sendMsg(Prefs.getExitCommand(), null);
-                                break;
-                            }
-
-                            // команда авторизации
-                            if (s.startsWith(Prefs.getCommand(Prefs.COM_AUTHORIZE))) {
-                                String[] token = s.split(" ", 3);
-                                if (token.length == 3) {
-                                    String authTrial =
-                                            "\t\t\tЛогин: " + token[1] + "\n" +
-                                            "\t\t\tПароль: " + token[2];
-                                    String newNick = null;
-                                    // использование шаблона "Коллекция объектов":
-                                    // если с таким логином авторизация уже была,
-                                    // извлечь данные рользователя из кэша
-                                    UserData data = server.getIdentityMap().getByLogin(login = token[1]);
-                                    if (data == null) {
-                                        data = ((Mappable<UserData>)server.getAuthService())
-                                                .find(new UserData(token[1], token[2], null));
-                                        if (data != null)
-                                            server.getIdentityMap().addById(data.getId(), data);
-                                    }
-                                    if (data != null) newNick = data.getNickname();
-                                    if (newNick != null) {
-                                        if (server.isUserConnected(login)) {
-                                            sendMsg(String.format(ERR_ALREADY_LOGGED_IN, newNick),
-                                                    String.format(WRONG_AUTHORIZATION_LOGGED, authTrial));
-                                        } else {
-                                            socket.setSoTimeout(0);
-                                            sendMsg(Prefs.getCommand(Prefs.SRV_AUTH_OK, nickname = newNick),
-                                                    String.format(MSG_LOGGED_IN_LOGGED, authTrial));
-                                            authenticated = true;
-                                            logEvent(MSG_LOGGED_IN);
-                                            // после авторизации клиента отправить ему его последнюю историю
-                                            // и список активных пользователей
-                                            server.subscribe(this);
-                                            sendMsg(readLastLines(100),
-                                                    String.format(MSG_CLIENT_HISTORY_SENT, this.getLogin()));
-                                            break;
-                                        }
-                                    } else
-                                        sendMsg(WRONG_AUTHORIZATION,
-                                                String.format(WRONG_AUTHORIZATION_LOGGED, authTrial));
-                                    if (!authenticated) sendAuthorizationWarning();
-                                }
-                            }
-
-                            // команда регистрации
-                            if (s.startsWith(Prefs.getCommand(Prefs.COM_REGISTER))) {
-                                String[] token = str.split(" ");
-                                if (token.length == 4) {
-                                    socket.setSoTimeout(0);
-                                    String regTrial =
-                                            "\t\t\tЛогин: " + token[1] + "\n" +
-                                            "\t\t\tНикнейм: " + token[3];
-                                    int id = 0;
-                                    // использование шаблона "Коллекция объектов":
-                                    // если с таким логином еще никто не регистрировался
-                                    if (server.getIdentityMap().getByLogin(token[1]) == null) {
-                                        id = server.getAuthService()
-                                                .registerUser(token[1], token[2], token[3]);
-                                        if (id > 0) {
-                                            regTrial = String.format(MSG_USER_REGISTERED, regTrial);
-                                            logEvent(token[1],
-                                                    regTrial + "\n\t\t\tПароль: " + token[2]);
-                                            server.getIdentityMap().addById(id,
-                                                    new UserData(token[1], token[2], token[3]));
-                                            sendMsg(Prefs.getCommand(Prefs.SRV_REG_ACCEPT), regTrial);
-                                        }
-                                    }
-                                    if (id == 0)
-                                        sendMsg(Prefs.getCommand(Prefs.SRV_REG_FAULT),
-                                                String.format(WRONG_REGISTRATION_LOGGED, regTrial));
-                                }
-                            }
+            authPending = false;
+            completion = r;
+            if (draining) return;
+            draining = true;
+        } finally { lock.unlock(); }
+        drain();
+    }
+
+    // ожидать ответа сервиса: следующие сообщения откладываются до вызова complete
+    private void setAuthPending(boolean pending) {
+        lock.lock();
+        try { authPending = pending; }
+        finally { lock.unlock(); }
+    }
+
+    // обработать ответ сервиса и сообщения по очереди, пока не понадобится ждать
+    // нового ответа или очередь не опустеет; если одно из сообщений - новый запрос
+    // к сервису, остальные ждут уже его ответа
+    private void drain() {
+        while (true) {
+            Runnable r = null;
+            Message m = null;
+            lock.lock();
+            try {
+                if (completion != null) {
+                    r = completion;
+                    completion = null;
+                } else if (authPending || (m = deferred.poll()) == null) {
+                    draining = false;
+                    return;
+                }
+            } finally { lock.unlock(); }
+            if (r != null) r.run();
+            else handle(m);
+        }
+    }
+
+    private void handle(Message message) {
+        if (finished) return;
+        try {
+            if (authenticated)
+                processWork(message);
+            else
+                processAuthentication(message);
+        } catch (IOException ex) {
+            logger.logError(ex);
+            transport.close();
+        }
+    }
+
+    //цикл аутентификации
+    //
+    // сообщения приходят уже разобранными (в текстовом или двоичном формате - неважно),
+    // поэтому вместо сравнения строк выполняется выбор по коду операции
+    private void processAuthentication(Message m) throws IOException {
+        switch (m.opcode()) {
+            // команда выхода
+            case QUIT:
+                sendMsg(Prefs.getExitCommand(), null);
+                break;
+
+            // команда авторизации
+            case AUTHORIZE:
+                if (m.size() == 2) {
+                    AUTH_ATTEMPTS.increment();
+                    long start = System.nanoTime();
+                    String authTrial =
+                            "\t\t\tЛогин: " + m.arg(0) + "\n" +
+                            "\t\t\tПароль: " + m.arg(1);
+                    // использование шаблона "Коллекция объектов":
+                    // если с таким логином авторизация уже была,
+                    // извлечь данные рользователя из кэша
+                    IdentityMap map = server.getIdentityMap();
+                    UserData data = map == null ? null : map.getByLogin(m.arg(0));
+                    if (data != null && data.getPassword().equals(m.arg(1)))
+                        completeAuthorization(m.arg(0), data, authTrial, start);
+                    // иначе - запрос к сервису авторизации, ответ придет из его потока
+                    else {
+                        setAuthPending(true);
+                        if (!server.getAuthStage().authorize(m.arg(0), m.arg(1), found -> {
+                            if (found != null && map != null) map.addById(found.getId(), found);
+                            complete(() -> completeAuthorization(m.arg(0), found, authTrial, start));
+                        })) {
+                            setAuthPending(false);
+                            AUTH_FAILURES.increment();
+                            sendMsg(ERR_AUTH_BUSY, String.format(WRONG_AUTHORIZATION_LOGGED, authTrial));
                         }
                     }
+                }
+                break;
 
-                    //цикл работы
-                    while (authenticated) {
-                        String str = in.readUTF().trim();
-                        boolean broadcastMsg = !str.startsWith(Prefs.COM_ID);
-
-                        if (!broadcastMsg) {
-                            String[] s = str.substring(1).split(" ", 3);
-                            switch (s[0].toLowerCase()) {
-                                // завершение работы пользователя
-                                //
-                                // вообще говоря, смысл и выгода шаблона "Коллекция объектов"
-                                // именно в кэшировании уже использованных данных,
-                                // но если этот кэш оставлять только растущим,
-                                // когда-нибудь память под него закончится.
-                                // наверное, нужно с некоторой периодичностью
-                                // вызывать его чистку, подход к которой нужно продумывать:
-                                // если, например, учитывать время, прошедшее с выхода пользователя,
-                                // эти данные тоже нужно где-то хранить, а это еще один расход...
-                                case Prefs.COM_QUIT:
-                                    sendMsg(Prefs.getExitCommand(),
-                                            String.format(MSG_LOGGED_OUT_LOGGED, this.getLogin()));
-                                    break;
-                                // отправка личного сообщения
-                                case Prefs.COM_PRIVATE_MSG:
-                                    if (s.length == 3)
-                                        logEvent(server.sendPrivateMsg(this, s[1], s[2]));
-                                    break;
-                                // смена пользователем своего ника
-                                case Prefs.COM_CHANGE_NICK:
-                                    if (s.length == 2 && !s[1].equals(this.getNickname())) {
-                                        String changeTrial = String.format(MSG_NICKNAME_CHANGED,
-                                                this.getLogin(), this.getNickname(), s[1]);
-                                        if (server.userRegistered(s[1]))
-                                            sendMsg(String.format(ERR_ALREADY_REGISTERED, s[1]),
-                                                    String.format(ERR_ALREADY_REGISTERED_LOGGED,
-                                                            changeTrial));
-                                        else {
-                                            String oldNick = this.nickname;
-                                            // изменный ник пользователя нужно сохранять и в БД, и в кэше
-                                            if (server.userDataUpdated(oldNick, s[1])) {
-                                                UserData data = server.getIdentityMap().getByNickname(oldNick);
-                                                server.getIdentityMap().modifyUserData(data.getId(), s[1]);
-                                                sendMsg(Prefs.getCommand(Prefs.SRV_CHANGE_OK, s[1]),
-                                                        String.format(MSG_NICKNAME_CHANGE_ALRIGHT,
-                                                                changeTrial));
-                                                // широковещательные сообщения записываются и в журнал
-                                                server.sendBroadcastMsg(this,
-                                                        String.format(MSG_NICKNAME_CHANGED_CHECK_IT_OUT,
-                                                                oldNick));
-                                            } else
-                                                // сообщение об ошибке обновления информации в БД можно было
-                                                // отправить отсюда напрямую в клиентское окно, но поскольку
-                                                // в нем нужно еще изменить ник (в заголовке),
-                                                // решил сделать это через отклики сервера
-                                                sendMsg(Prefs.getCommand(Prefs.SRV_CHANGE_FAULT),
-                                                        String.format(ERR_NICKNAME_CHANGE_FAILED,
-                                                                changeTrial));
-                                        }
-                                    }
-                                    break;
-                                // все, что не команда
-                                default: broadcastMsg = true;
-                            }
+            // команда регистрации
+            case REGISTER:
+                if (m.size() == 3) {
+                    transport.setTimeout(0);
+                    String regTrial =
+                            "\t\t\tЛогин: " + m.arg(0) + "\n" +
+                            "\t\t\tНикнейм: " + m.arg(2);
+                    // использование шаблона "Коллекция объектов":
+                    // если с таким логином еще никто не регистрировался
+                    IdentityMap map = server.getIdentityMap();
+                    if (map != null && map.getByLogin(m.arg(0)) != null)
+                        completeRegistration(m.arg(0), m.arg(1), m.arg(2), 0, regTrial);
+                    else {
+                        setAuthPending(true);
+                        if (!server.getAuthStage().register(m.arg(0), m.arg(1), m.arg(2), id ->
+                                complete(() -> completeRegistration(m.arg(0), m.arg(1), m.arg(2), id, regTrial)))) {
+                            setAuthPending(false);
+                            sendMsg(ERR_AUTH_BUSY, String.format(WRONG_REGISTRATION_LOGGED, regTrial));
                         }
-                        if (broadcastMsg)
-                            server.sendBroadcastMsg(this, str);
                     }
-                } catch (SocketTimeoutException ex) {
-                    // с отправкой команды выхода в методе connect контроллера цикл аутентификации
-                    // прервется и произойдет переход далее - к циклу работы (который не начнется при
-                    // отсутствии авторизации) и сокет будет закрыт перед завершением работы потока
-                    sendMsg(Prefs.getExitCommand(), CLIENT_CONNECTION_TIMED_OUT_LOGGED);
-                    // в любом случае выполнится блок finally с закрытием сокета -
-                    // потому здесь нет смысла сбрасывать таймер таймаута
-                } catch (IOException ex) { logger.logError(ex);
-                } finally {
-                    logEvent(MSG_LOGGED_OUT);
-                    server.unsubscribe(this);
-                    logger.info(String.format(MSG_CLIENT_CONNECTION_CLOSED, this.getLogin()));
-                    try { socket.close(); }
-                    catch (IOException ex) { logger.logError(ex); }
-                    logger.closeHandlers();
-                    // завершение работы обработчика клиента может происходить по инициативе клиента
-                    if (server.latch != null) server.latch.countDown();
                 }
-            });
+        }
+    }
 
-        } catch (IOException ex) { logger.logError(ex); }
+    // завершение авторизации - в потоке соединения (данные из кэша) или сервиса авторизации
+    private void completeAuthorization(String login, UserData data, String authTrial, long start) {
+        this.login = login;
+        // за время ожидания ответа сеанс мог завершиться
+        if (finished) return;
+        AUTH_TIME.recordSince(start);
+        String newNick = data == null ? null : data.getNickname();
+        if (newNick != null) {
+            nickname = newNick;
+            // ответ об успешном входе отправляется при добавлении сеанса - до списка пользователей;
+            // если пользователь с тем же логином уже в чате, сеанс не становится авторизованным
+            if (server.join(this, () -> {
+                try { transport.setTimeout(0); }
+                catch (IOException ex) { logger.logError(ex); }
+                sendMsg(Prefs.getCommand(Prefs.SRV_AUTH_OK, newNick),
+                        String.format(MSG_LOGGED_IN_LOGGED, authTrial));
+                authenticated = true;
+            })) {
+                logEvent(MSG_LOGGED_IN);
+                // после авторизации клиента отправить ему его последнюю историю
+                // (список активных пользователей он получит при рассылке изменений списка)
+                // журнал не записан вовремя - вход не задерживается, история не отправляется
+                String history = readLastLines(100);
+                if (history != null)
+                    sendMsg(history, String.format(MSG_CLIENT_HISTORY_SENT, this.getLogin()));
+                return;
+            }
+            nickname = null;
+            AUTH_FAILURES.increment();
+            sendMsg(String.format(ERR_ALREADY_LOGGED_IN, newNick),
+                    String.format(WRONG_AUTHORIZATION_LOGGED, authTrial));
+        } else {
+            AUTH_FAILURES.increment();
+            sendMsg(WRONG_AUTHORIZATION,
+                    String.format(WRONG_AUTHORIZATION_LOGGED, authTrial));
+        }
+        if (!authenticated) sendAuthorizationWarning();
+    }
+
+    private void completeRegistration(String login, String password, String nickname, int id, String regTrial) {
+        if (finished) return;
+        if (id > 0) {
+            REGISTRATIONS.increment();
+            regTrial = String.format(MSG_USER_REGISTERED, regTrial);
+            logEvent(login, regTrial + "\n\t\t\tПароль: " + password);
+            IdentityMap map = server.getIdentityMap();
+            if (map != null) map.addById(id, new UserData(login, password, nickname));
+            sendMsg(Prefs.getCommand(Prefs.SRV_REG_ACCEPT), regTrial);
+        } else
+            sendMsg(Prefs.getCommand(Prefs.SRV_REG_FAULT),
+                    String.format(WRONG_REGISTRATION_LOGGED, regTrial));
+    }
+
+    //цикл работы
+    private void processWork(Message m) {
+        switch (m.opcode()) {
+            // завершение работы пользователя
+            //
+            // вообще говоря, смысл и выгода шаблона "Коллекция объектов"
+            // именно в кэшировании уже использованных данных,
+            // но если этот кэш оставлять только растущим,
+            // когда-нибудь память под него закончится;
+            // теперь кэш ограничен: данные вышедших из чата пользователей
+            // вытесняются при его переполнении и по истечении времени простоя
+            case QUIT:
+                sendMsg(Prefs.getExitCommand(),
+                        String.format(MSG_LOGGED_OUT_LOGGED, this.getLogin()));
+                break;
+            // отправка личного сообщения
+            case PRIVATE_MSG:
+                if (m.size() == 2)
+                    logEvent(server.sendPrivateMsg(this, m.arg(0), m.arg(1)));
+                break;
+            // смена пользователем своего ника
+            case CHANGE_NICK:
+                if (m.size() == 1 && !m.arg(0).equals(this.getNickname())) {
+                    String newNick = m.arg(0);
+                    String changeTrial = String.format(MSG_NICKNAME_CHANGED,
+                            this.getLogin(), this.getNickname(), newNick);
+                    if (server.userRegistered(newNick))
+                        sendMsg(String.format(ERR_ALREADY_REGISTERED, newNick),
+                                String.format(ERR_ALREADY_REGISTERED_LOGGED,
+                                        changeTrial));
+                    else {
+                        String oldNick = this.nickname;
+                        // ответ клиенту - только после сохранения нового ника,
+                        // следующие его сообщения до тех пор откладываются
+                        setAuthPending(true);
+                        server.updateUserData(oldNick, newNick, updated ->
+                                complete(() -> completeNicknameChange(oldNick, newNick, updated, changeTrial)));
+                    }
+                }
+                break;
+            // страница более ранней истории - по запросу клиента
+            case HISTORY:
+                if (m.size() == 2) sendHistoryPage(m.arg(0), m.arg(1));
+                break;
+            // все, что не команда
+            case TEXT:
+                server.sendBroadcastMsg(this, m.arg(0));
+                break;
+            // прочие команды (в том числе ответы сервера) рассылаются как обычный текст -
+            // в том виде, в каком получены
+            default:
+                server.sendBroadcastMsg(this, m.line());
+        }
+    }
+
+    private void completeNicknameChange(String oldNick, String newNick, boolean updated, String changeTrial) {
+        if (finished) return;
+        if (updated) {
+            sendMsg(Prefs.getCommand(Prefs.SRV_CHANGE_OK, newNick),
+                    String.format(MSG_NICKNAME_CHANGE_ALRIGHT,
+                            changeTrial));
+            // широковещательные сообщения записываются и в журнал
+            server.sendBroadcastMsg(this,
+                    String.format(MSG_NICKNAME_CHANGED_CHECK_IT_OUT,
+                            oldNick));
+        } else
+            // сообщение об ошибке обновления информации в БД можно было
+            // отправить отсюда напрямую в клиентское окно, но поскольку
+            // в нем нужно еще изменить ник (в заголовке),
+            // решил сделать это через отклики сервера
+            sendMsg(Prefs.getCommand(Prefs.SRV_CHANGE_FAULT),
+                    String.format(ERR_NICKNAME_CHANGE_FAILED,
+                            changeTrial));
+    }
+
+    // с отправкой команды выхода в методе connect контроллера цикл аутентификации
+    // прервется и произойдет переход далее - к циклу работы (который не начнется при
+    // отсутствии авторизации), а соединение будет закрыто транспортом
+    @Override public void onTimeout() {
+        sendMsg(Prefs.getExitCommand(), CLIENT_CONNECTION_TIMED_OUT_LOGGED);
+    }
+
+    @Override public void onError(Exception ex) { logger.logError(ex); }
+
+    // соединение закрыто - по инициативе клиента или сервера
+    @Override public void onClosed() {
+        finished = true;
+        DISCONNECTS.increment();
+        // выход записывается в журнал, только если сеанс был в чате, - иначе строка попала бы
+        // в журнал пользователя, логин которого указал не вошедший клиент (например, уже вошедшего)
+        if (server.leave(this)) logEvent(MSG_LOGGED_OUT);
+        logger.info(String.format(MSG_CLIENT_CONNECTION_CLOSED, this.getLogin()));
+        OutboundQueue q = transport.getOutboundQueue();
+        logger.info(String.format(MSG_OUTBOUND_QUEUE_STATS, this.getLogin(),
+                q.getWritten(), q.getBatches(), q.getMaxDepth(), q.getDropped()));
+        // завершение работы обработчика клиента может происходить по инициативе клиента
+        if (server.latch != null) server.latch.countDown();
     }
 
     @Override public void update(String message) { sendMsg(message, null); }
 
+    // сообщение, общее для всех наблюдателей, кодируется сервером один раз
+    public void update(Frame frame) { sendMsg(frame, null); }
+
     // отправка служебного сообщения (извещения) пользователю
     public void sendMsg(String msg, String logMessage) {
+        try { sendMsg(Frame.of(msg), logMessage); }
+        catch (IOException ex) { logger.logError(ex); }
+    }
+
+    public void sendMsg(Frame frame, String logMessage) {
         try {
-            out.writeUTF(msg);
-            if (logMessage != null) logger.info(logMessage.length() == 0 ? msg : logMessage);
-            if (msg.equals(Prefs.getExitCommand())) authenticated = false;
+            transport.send(frame);
+            if (logMessage != null) logger.info(logMessage.length() == 0 ? frame.text() : logMessage);
+            // отправка команды выхода завершает сеанс
+            if (frame.text().equals(Prefs.getExitCommand())) {
+                authenticated = false;
+                finished = true;
+                transport.close();
+            }
         } catch (IOException ex) { logger.logError(ex); }
     }
 
-    // при отправке текстовых сообщений сервер рассылает их нескольким адресатам:
-    // - личные - отправителю и получателю,
-    // - широковещательные - всем,
-    // каждое полученное сообщение записывается в журнал
-    public void sendLoggedMsg(String msg) {
-        sendMsg(msg, null);
-        logEvent(msg);
+    // личные сообщения записываются в журнал получателя
+    // (широковещательные - один раз, в общий журнал)
+    public void sendLoggedMsg(Frame frame) {
+        sendMsg(frame, null);
+        logEvent(frame.text());
     }
 
     // -------------------------- работа с журналом --------------------------
-    String getLogName(String login) {
-        return Prefs.historyFolder +
-               File.separator +
-               Prefs.historyFolder + "_" + (login == null ? getLogin() : login)+ ".txt";
-    }
-
-    void raiseAndLog(String errMessage) throws IOException {
-        logger.logError(errMessage);
-        throw new IOException(errMessage);
-    }
-
+    // строку с отметкой времени оформляет и записывает в файл поток журнала -
+    // доставка сообщений не ждет ни форматирования, ни диска
     void logEvent(String login, String matter) {
-        if (matter != null && matter.length() > 0)
-            try {
-                if (logWriter == null) {
-                    File file = new File(Prefs.historyFolder);
-                    if (file.exists() ? file.isDirectory() : file.mkdir()) {
-                        file = new File(getLogName(login));
-                        if (file.isFile() || file.createNewFile())
-                            logWriter = new OutputStreamWriter(
-                                    new FileOutputStream(file,true), StandardCharsets.UTF_8);
-                        else
-                            raiseAndLog(String.format(ERR_LOG_CREATION, this.getLogin()));
-                    } else
-                        raiseAndLog(String.format(ERR_LOG_FOLDER_CREATION, this.getLogin()));
-                }
-
-                if (TimeVisor.dateChanged()) dateLogged = false;
-                if (!dateLogged) {
-                    logWriter.write(MSG_CURRENT_DATE);
-                    dateLogged = true;
-                }
-                logWriter.write(String.format(MSG_CURRENT_TIME, matter));
-                logWriter.flush();
-            } catch (IOException ex) { logger.logError(ex); }
+        if (matter != null && matter.length() > 0) {
+            long day = TimeVisor.getDay();
+            server.getJournal().appendLine(login == null ? getLogin() : login, matter, loggedDay != day);
+            loggedDay = day;
+        }
     }
 
     void logEvent(String matter) { logEvent(null, matter); }
 
+    // страница истории: count строк, предшествующих skip последним
+    private void sendHistoryPage(String skip, String count) {
+        try {
+            int s = Integer.parseInt(skip), c = Math.min(Integer.parseInt(count), MAX_HISTORY_PAGE);
+            if (s < 0 || c <= 0) return;
+            HistoryPage page = server.getJournal().readPage(login, s, c, 1000);
+            if (page == null)
+                logger.logError(String.format(ERR_JOURNAL_SYNC, login));
+            else
+                sendMsg(Prefs.getCommand(Prefs.SRV_HISTORY_PAGE,
+                        String.valueOf(s), String.valueOf(page.getLines()), page.getText()), null);
+        } catch (NumberFormatException ex) {
+            sendMsg(String.format(ERR_WRONG_HISTORY_REQUEST, skip, count), null);
+        } catch (IOException ex) { logger.logError(ex); }
+    }
+
+    // история собирается из общего журнала (за время пребывания в чате) и личного
     String readLastLines(int number) {
-        ArrayList<String> lines = new ArrayList<>();
-        // последовательное чтение всех строк реализовано в библиотечном методе
-        // Files.readAllLines(Paths.get(getLogName(login)), StandardCharsets.UTF_8)
-        try (BufferedReader reader = new BufferedReader(new FileReader(getLogName(login)))) {
-            String str;
-            while ((str = reader.readLine()) != null) lines.add(str);
-            int n = 0;
-            if (number < lines.size()) n = lines.size() - number;
-            StringBuilder sb = new StringBuilder();
-            for (String s : number >= lines.size() ? lines : lines.subList(n, n + number))
-                sb.append(s).append("\n");
-            return sb.toString();
+        try {
+            // строки, еще не записанные потоком журнала, тоже должны попасть в историю
+            String history = server.getJournal().readLast(login, number, 1000);
+            if (history == null) logger.logError(String.format(ERR_JOURNAL_SYNC, login));
+            return history;
         } catch (IOException ex) {
             logger.logError(ex);
             return null;
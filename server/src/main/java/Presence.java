@@ -0,0 +1,217 @@
+import prefs.*;
+import protocol.Frame;
+import protocol.FrameCodec;
+
+import java.io.IOException;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/*
+    рассылка изменений списка пользователей
+
+    прежде при каждом входе, выходе и смене ника всем рассылался полный список
+    (/clientlist ник1 ник2 ...): N входов стоили O(N²) байт, а в большом чате список
+    вообще не помещался в один кадр writeUTF (64 КБ);
+
+    теперь клиентам, уже находящимся в чате, рассылаются только изменения:
+        /join ник1 ник2 ...          - вошли в чат
+        /leave ник1 ник2 ...         - вышли из чата
+        /rename прежний1 новый1 ...  - сменили ники (применяются одновременно)
+    а полный список (разбитый на кадры: /clientlist с первой частью, далее /join)
+    получает только вошедший клиент;
+
+    изменения, произошедшие за короткий промежуток времени, объединяются:
+    например, вход и выход одного и того же клиента не порождают ничего,
+    а несколько смен ника - одну
+ */
+public class Presence {
+    // ограничение размера кадра со списком ников - с запасом относительно 64 КБ
+    private static final int MAX_CHUNK_BYTES = 32 * 1024;
+
+    // состояние сеанса, изменившегося за текущий промежуток времени
+    private static class Change {
+        String startNick; // ник на начало промежутка, null - вошел в чат в этом промежутке
+        String nick;      // текущий ник
+        boolean left;
+    }
+
+    private final SessionRegistry sessions;
+    private final long windowMillis;
+    private final EventLogger logger;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // рассылки выполняются строго по очереди, иначе изменения могли бы прийти не в том порядке
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private Map<ClientHandler, Change> changes = new LinkedHashMap<>();
+    private boolean flushScheduled;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "presence");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public Presence(SessionRegistry sessions, long windowMillis, EventLogger logger) {
+        this.sessions = sessions;
+        this.windowMillis = windowMillis;
+        this.logger = logger;
+    }
+
+    /*
+        изменения реестра сеансов и их учет выполняются под одной блокировкой -
+        тогда полный список, построенный при рассылке, в точности соответствует
+        всем учтенным к этому моменту изменениям
+     */
+    /**
+     * @param joined выполняется сразу после добавления сеанса, до учета изменения, -
+     *               отправленное им клиент получит раньше списка пользователей
+     * @return false если пользователь с таким логином или ником уже в чате
+     **/
+    public boolean join(ClientHandler c, Runnable joined) {
+        lock.lock();
+        try {
+            if (!sessions.add(c)) return false;
+            joined.run();
+            Change ch = new Change();
+            ch.nick = c.getNickname();
+            changes.put(c, ch);
+            scheduleFlush();
+            return true;
+        } finally { lock.unlock(); }
+    }
+
+    public boolean leave(ClientHandler c) {
+        lock.lock();
+        try {
+            String nick = c.getNickname();
+            if (!sessions.remove(c)) return false;
+            Change ch = changes.get(c);
+            if (ch == null) {
+                ch = new Change();
+                ch.startNick = nick;
+                changes.put(c, ch);
+            }
+            ch.left = true;
+            scheduleFlush();
+            return true;
+        } finally { lock.unlock(); }
+    }
+
+    /**
+     * применить подтвержденную смену ника
+     * @return false если сеанс уже завершен - тогда занятый им ник освобождается
+     **/
+    public boolean rename(ClientHandler c, String oldNick, String newNick) {
+        lock.lock();
+        try {
+            if (!sessions.contains(c)) {
+                sessions.rollbackRename(c, newNick);
+                return false;
+            }
+            sessions.commitRename(c, oldNick, newNick);
+            Change ch = changes.get(c);
+            if (ch == null) {
+                ch = new Change();
+                ch.startNick = oldNick;
+                changes.put(c, ch);
+            }
+            ch.nick = newNick;
+            scheduleFlush();
+            return true;
+        } finally { lock.unlock(); }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled) return;
+        flushScheduled = true;
+        try { scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS); }
+        catch (RejectedExecutionException ex) { flushScheduled = false; }
+    }
+
+    // разослать накопившиеся изменения
+    public void flush() {
+        List<String> joins = new ArrayList<>(), leaves = new ArrayList<>(), renames = new ArrayList<>();
+        List<ClientHandler> newcomers = new ArrayList<>(), present = new ArrayList<>();
+        Set<ClientHandler> joined = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<String> snapshot = null;
+
+        flushLock.lock();
+        try {
+            lock.lock();
+            try {
+                flushScheduled = false;
+                if (changes.isEmpty()) return;
+                for (Map.Entry<ClientHandler, Change> e : changes.entrySet()) {
+                    Change ch = e.getValue();
+                    if (ch.startNick == null) {
+                        if (!ch.left) {
+                            joins.add(ch.nick);
+                            newcomers.add(e.getKey());
+                            joined.add(e.getKey());
+                        }
+                    } else if (ch.left)
+                        leaves.add(ch.startNick);
+                    else if (!ch.startNick.equals(ch.nick)) {
+                        renames.add(ch.startNick);
+                        renames.add(ch.nick);
+                    }
+                }
+                changes = new LinkedHashMap<>();
+                if (!newcomers.isEmpty()) snapshot = new ArrayList<>(sessions.size());
+                for (ClientHandler c : sessions) {
+                    if (snapshot != null) snapshot.add(c.getNickname());
+                    if (!joined.contains(c)) present.add(c);
+                }
+            } finally { lock.unlock(); }
+
+            try {
+                // изменения - клиентам, уже получившим список
+                List<Frame> delta = new ArrayList<>();
+                chunk(Prefs.COM_CLIENT_LEAVE, leaves, 1, delta);
+                chunk(Prefs.COM_CLIENT_RENAME, renames, 2, delta);
+                chunk(Prefs.COM_CLIENT_JOIN, joins, 1, delta);
+                for (ClientHandler c : present)
+                    for (Frame f : delta) c.update(f);
+
+                // полный список - только вошедшим
+                if (snapshot != null) {
+                    List<Frame> full = new ArrayList<>();
+                    chunk(Prefs.COM_CLIENT_LIST, snapshot, 1, full);
+                    if (full.isEmpty()) full.add(Frame.of(Prefs.getCommand(Prefs.COM_CLIENT_LIST)));
+                    for (ClientHandler c : newcomers)
+                        for (Frame f : full) c.update(f);
+                }
+            } catch (IOException ex) { logger.logError(ex); }
+        } finally { flushLock.unlock(); }
+    }
+
+    /*
+        разбить список ников на кадры ограниченного размера;
+        group - число ников, которые нельзя разделять (пары для смены ника);
+        кадры полного списка после первого продолжают его командой /join
+     */
+    private void chunk(String command, List<String> nicks, int group, List<Frame> frames) throws IOException {
+        StringBuilder sb = null;
+        int bytes = 0, count = 0;
+        for (int i = 0; i < nicks.size(); i += group) {
+            int len = 0;
+            for (int j = i; j < i + group; j++) len += 1 + FrameCodec.encodedLength(nicks.get(j));
+            if (sb != null && bytes + len > MAX_CHUNK_BYTES) {
+                frames.add(Frame.of(sb.toString()));
+                sb = null;
+            }
+            if (sb == null) {
+                sb = new StringBuilder(Prefs.getCommand(count++ == 0 ? command
+                        : command.equals(Prefs.COM_CLIENT_LIST) ? Prefs.COM_CLIENT_JOIN : command));
+                bytes = FrameCodec.encodedLength(sb.toString());
+            }
+            for (int j = i; j < i + group; j++) sb.append(" ").append(nicks.get(j));
+            bytes += len;
+        }
+        if (sb != null) frames.add(Frame.of(sb.toString()));
+    }
+
+    public void shutdown() { scheduler.shutdownNow(); }
+}
@@ -6,13 +6,20 @@ import observation.Observable;
 import authentification.*;
 import authentification.mapping.*;
 import authentification.service.*;
+import transport.*;
+import protocol.Frame;
+import history.Journal;
+import metrics.*;
 
 import java.io.IOException;
 
 import java.net.*;
 
+import java.nio.channels.*;
+
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 /*
     класс реализует поведенческий шаблон проектирования "Наблюдатель" -
@@ -25,47 +32,106 @@ public class Server implements Observable {
     private Socket socket;
 
     //поскольку класс обработчика клиента тоже реализует шаблон "Наблюдатель",
-    //к списку обработчмков можно обращаться как к списку ссылок на соответствующий интерфейс
-    private List<ClientHandler> clients;
+    //к списку обработчмков можно обращаться как к списку ссылок на соответствующий интерфейс;
+    //сеансы проиндексированы по логину и нику - поиск не требует перебора
+    private SessionRegistry clients;
+    private Presence presence; // рассылка изменений списка пользователей
     private AuthService authService;
+    private AuthStage authStage; // обращения к сервису авторизации - вне потоков соединений
+    private Journal journal; // журналы пользователей записываются отдельным потоком
 
     private ExecutorService threadPool;
+    private EventLoop[] eventLoops; // потоки ввода-вывода в неблокирующем режиме
 
     private final EventLogger logger;
 
     CountDownLatch latch;
 
     private IdentityMap identityMap; // шаблон "Коллекция объектов" используется для их кэширования
+    // показатели работы
+    private static final Counter CONNECTIONS = Metrics.counter("connections", "принятые подключения");
+    private static final Counter BROADCASTS = Metrics.counter("messages.broadcast", "сообщения всем");
+    private static final Counter PRIVATE = Metrics.counter("messages.private", "личные сообщения");
+    private static final Histogram FANOUT = Metrics.histogram("broadcast.fanout", "рассылка сообщения всем");
+
+    // как часто сообщать о ходе заполнения кэша при запуске, учетных записей
+    private static final int PRELOAD_PROGRESS_STEP = 10000;
+
+    public Server(ServerOptions options) { this(options, true); }
 
-    public Server(String DBService) {
+    /*
+        сервер без приема подключений: сеансы подключаются к нему напрямую - через
+        собственную реализацию транспорта (например, в тестах производительности);
+        консоль не читается, работа завершается вызовом shutdown
+     */
+    static Server embedded(ServerOptions options) { return new Server(options, false); }
+
+    private Server(ServerOptions options, boolean listen) {
         logger = new EventLogger(Server.class.getName(), null);
-        clients = new CopyOnWriteArrayList<>();
+        clients = new SessionRegistry();
+        presence = new Presence(clients, options.getPresenceWindow(), logger);
+        journal = options.newJournal(logger);
         // если нет подключения к БД, запустить простой сервис авторизации
-        authService = new DB(DBService);
+        authService = options.newDB();
         if (!authService.isServiceActive()) {
             authService.close();
             authService = new Simple();
         } else
-            identityMap = new IdentityMap(/*(DB)authService*/);
+            identityMap = options.newIdentityMap();
+
+        // как указано в документации, этот метод создаст пул потоков, в котором
+        // новые потоки будут создаваться только при необходимости - для выполнения
+        // задач преимущественно будут использоваться структуры для ранее созданных
+        // потоков, которые завершили свое выполнение;
+        // такой подход, безусловно, лучше чем ранее использовавшееся создание нового
+        // потока для каждого обработчика запросов клиента;
+        // при запуске с параметром threads=virtual каждая задача получает собственный
+        // виртуальный поток - блокирующее чтение сокета тогда не занимает поток ОС
+        threadPool = options.useVirtualThreads()
+                ? newVirtualThreadPool()
+                : Executors.newCachedThreadPool();
+        // ответы сервиса авторизации обработчики получают в этом пуле
+        authStage = options.newAuthStage(authService, threadPool, logger);
+        if (!listen) return;
 
         try {
-            server = new ServerSocket(Prefs.PORT);
+            // в неблокирующем режиме соединения обслуживаются несколькими потоками
+            // ввода-вывода, а потоки пула заняты только обработкой уже полученных сообщений
+            ServerSocketChannel serverChannel = null;
+            if (options.isNio()) {
+                serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress(Prefs.PORT));
+                server = serverChannel.socket();
+                eventLoops = new EventLoop[options.getIoThreads()];
+                for (int i = 0; i < eventLoops.length; i++) {
+                    eventLoops[i] = new EventLoop("io-" + i, threadPool);
+                    eventLoops[i].start();
+                }
+            } else
+                server = new ServerSocket(Prefs.PORT);
             logger.info(MSG_SERVER_STARTED);
-            // как указано в документации, этот метод создаст пул потоков, в котором
-            // новые потоки будут создаваться только при необходимости - для выполнения
-            // задач преимущественно будут использоваться структуры для ранее созданных
-            // потоков, которые завершили свое выполнение;
-            // такой подход, безусловно, лучше чем ранее использовавшееся создание нового
-            // потока для каждого обработчика запросов клиента
-            threadPool = Executors.newCachedThreadPool();
+            if (identityMap != null && options.getUsersPreload() > 0)
+                threadPool.submit(() -> preload(options.getUsersPreload()));
 
+            ServerSocketChannel channel = serverChannel;
             threadPool.submit(() -> {
                 try {
+                    // соединения распределяются между потоками ввода-вывода по очереди
+                    int next = 0;
                     while (server != null) {
                         // если работа сервера завершится по команде выхода, серверный сокет
                         // будет закрыт, и здесь - в процессе ожидания нового подключения -
                         // произойдет исключение;
                         // катастрофы в этом не вижу - просто не состоится новое подключение
+                        if (channel != null) {
+                            SocketChannel curChannel = channel.accept();
+                            CONNECTIONS.increment();
+                            logger.info(MSG_CLIENT_CONNECTED);
+                            new ClientHandler(this,
+                                    new NioConnection(curChannel, eventLoops[next++ % eventLoops.length],
+                                            options.newOutboundQueue()));
+                            continue;
+                        }
                         Socket curSocket = server.accept();
                         if (server != null) {
                             boolean newSocket = false;
@@ -73,8 +139,10 @@ public class Server implements Observable {
                                 newSocket = socket == null || curSocket != socket;
                             if (newSocket) {
                                 socket = curSocket;
+                                CONNECTIONS.increment();
                                 logger.info(MSG_CLIENT_CONNECTED);
-                                new ClientHandler(this, socket);
+                                new ClientHandler(this,
+                                        new BlockingTransport(socket, threadPool, options.newOutboundQueue()));
                             }
                         }
                     }
@@ -86,42 +154,102 @@ public class Server implements Observable {
             });
 
             logger.info(MSG_SERVER_SHUTDOWN_CMD);
+            logger.info(MSG_SERVER_STATS_CMD);
             Scanner sc = new Scanner(System.in);
             boolean shutdown;
             do {
-                shutdown = sc.nextLine().equalsIgnoreCase(Prefs.getExitCommand());
+                String cmd = sc.nextLine();
+                shutdown = cmd.equalsIgnoreCase(Prefs.getExitCommand());
+                if (cmd.equalsIgnoreCase(Prefs.getStatsCommand())) logger.info(Metrics.report());
             } while (!shutdown);
         } catch (Exception ex) { logger.logError(ex); }
-        finally {
-            // отправить сообщение (сигнал) о завершении работы потокам в пуле
-            // и дождаться завершения выполняемых в них задач
-            if (clients.size() > 0) {
-                latch = new CountDownLatch(clients.size());
-                for (Observer c : clients) c.update(Prefs.getExitCommand());
-                try { latch.await(); }
-                catch (InterruptedException ex) { logger.logError(ex); }
-            }
+        finally { shutdown(); }
+    }
 
-            try {
-                server.close();
-                authService.close();
-            } catch (IOException ex) { logger.logError(ex); }
-            logger.info(MSG_SERVER_SHUTDOWN);
-            logger.closeHandlers();
-            clients = null;
-            threadPool.shutdown();
+    // завершение работы - по команде выхода из консоли (встроенного сервера - по вызову)
+    void shutdown() {
+        // отправить сообщение (сигнал) о завершении работы потокам в пуле
+        // и дождаться завершения выполняемых в них задач
+        if (clients.size() > 0) {
+            latch = new CountDownLatch(clients.size());
+            for (Observer c : clients) c.update(Prefs.getExitCommand());
+            try { latch.await(); }
+            catch (InterruptedException ex) { logger.logError(ex); }
+        }
+
+        authStage.shutdown();
+        logger.info(authStage.getStats());
+        try {
+            if (server != null) server.close();
+            authService.close();
+        } catch (IOException ex) { logger.logError(ex); }
+        if (eventLoops != null)
+            for (EventLoop loop : eventLoops) loop.shutdown();
+        presence.shutdown();
+        journal.close();
+        if (identityMap != null) logger.info(identityMap.getStats());
+        logger.info(MSG_SERVER_SHUTDOWN);
+        logger.closeHandlers();
+        clients = null;
+        threadPool.shutdown();
+    }
+
+    /*
+        после перезапуска кэш пользователей пуст, и каждый первый вход - обращение к БД;
+        поэтому кэш можно заполнить заранее - одним проходом по таблице пользователей;
+        подключения принимаются параллельно, и пока заполнение не завершено,
+        не найденные в кэше пользователи ищутся в БД как обычно
+     */
+    private void preload(int limit) {
+        logger.info(String.format(MSG_USERS_PRELOAD_STARTED, limit));
+        long start = System.nanoTime();
+        long[] n = { 0 };
+        long read = authService.preload(data -> {
+            // уже вошедшие за это время пользователи в кэше есть - их данные не заменяются
+            identityMap.addById(data.getId(), data);
+            if (++n[0] % PRELOAD_PROGRESS_STEP == 0)
+                logger.info(String.format(MSG_USERS_PRELOAD_PROGRESS, n[0]));
+            return n[0] < limit && !identityMap.isFull() && !server.isClosed();
+        });
+        logger.info(String.format(MSG_USERS_PRELOAD_DONE, read, (System.nanoTime() - start) / 1e6));
+    }
+
+    /*
+        виртуальные потоки появились в Java 21, поэтому фабрика вызывается через
+        отражение - сервер можно собирать и запускать и на более ранних версиях,
+        в которых вместо виртуальных будет использоваться обычный пул потоков
+     */
+    private ExecutorService newVirtualThreadPool() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            logger.logError(MSG_VIRTUAL_THREADS_UNAVAILABLE);
+            return Executors.newCachedThreadPool();
         }
     }
 
     // "указатели" на сервисы
     public ExecutorService getThreadPool() { return threadPool; } // пула потоков
     public AuthService getAuthService() { return authService; } // авторизации
+    public AuthStage getAuthStage() { return authStage; } // и очереди запросов к нему
+    public Journal getJournal() { return journal; } // журналов пользователей
 
-    // широковещательные сообщения записывать в журнал каждого пользователя
+    // широковещательные сообщения записываются один раз - в общий журнал,
+    // история каждого пользователя ссылается на его участки;
+    // сообщение кодируется один раз - все получатели отправляют один и тот же кадр
     public void sendBroadcastMsg(ClientHandler sender, String message) {
         String msg = String.format("[ %s ]: %s", sender.getNickname(), message);
-        for (ClientHandler c : clients) c.sendLoggedMsg(msg);
-        logger.info(msg);
+        try {
+            long start = System.nanoTime();
+            Frame frame = Frame.of(msg);
+            for (ClientHandler c : clients) c.update(frame);
+            FANOUT.recordSince(start);
+            BROADCASTS.increment();
+            journal.appendRoomLine(msg);
+            logger.info(msg);
+        } catch (IOException ex) { logger.logError(ex); }
     }
 
     // поскольку личные сообщения дооформляются ("для"/"от") здесь,
@@ -129,19 +257,24 @@ public class Server implements Observable {
     // возвращать дооформенные в виде строк, чтобы записать в журнал отправителя
     public String sendPrivateMsg(ClientHandler sender, String receiver, String message) {
         String msgPattern = MESSAGE_HEADER_PATTERN;
-        for (ClientHandler c : clients) {
-            if (c.getNickname().equals(receiver)) {
+        try {
+            ClientHandler c = clients.getByNickname(receiver);
+            if (c != null) {
+                PRIVATE.increment();
                 // отправка получателю
-                c.sendLoggedMsg(String.format(msgPattern, "от", sender.getNickname(), message));
+                c.sendLoggedMsg(Frame.of(String.format(msgPattern, "от", sender.getNickname(), message)));
                 // отправка отправителю
                 if (!receiver.equals(sender.getNickname())) {
-                    String res = String.format(msgPattern, "для", receiver, message);
-                    sender.sendMsg(res, String.format(MESSAGE_HEADER_PATTERN,
+                    Frame echo = Frame.of(String.format(msgPattern, "для", receiver, message));
+                    sender.sendMsg(echo, String.format(MESSAGE_HEADER_PATTERN,
                                     "для "+receiver, "от "+sender.getNickname(), message));
-                    return res;
+                    return echo.text();
                 }
                 return "";
             }
+        } catch (IOException ex) {
+            logger.logError(ex);
+            return "";
         }
         sender.sendMsg(
                 String.format(WRONG_RECIPIENT, receiver),
@@ -149,56 +282,86 @@ public class Server implements Observable {
         return "";
     }
 
-    @Override public void notifyObservers() {
-        StringBuilder sb = new StringBuilder(Prefs.getCommand(Prefs.COM_CLIENT_LIST));
-        for (ClientHandler c : clients) sb.append(" ").append(c.getNickname());
-        for (Observer c : clients) c.update(sb.toString());
-    }
+    // разослать накопившиеся изменения списка пользователей, не дожидаясь окончания
+    // промежутка их объединения (обычно рассылка происходит по его окончании)
+    @Override public void notifyObservers() { presence.flush(); }
 
     // проверить осуществление авторизиации пользователем с определенным логином
-    public boolean isUserConnected(String login) {
-        for (ClientHandler c : clients)
-            if (c.getLogin().equals(login))
-                return true;
-        return false;
-    }
+    public boolean isUserConnected(String login) { return clients.getByLogin(login) != null; }
 
-    // проверить наличие регистрации пользователя с определенным ником
+    // проверить наличие регистрации пользователя с определенным ником:
+    // сначала в кэше, затем - в сервисе авторизации (для БД - через фильтр имен,
+    // так что запрос к ней выполняется только для возможно занятых никнеймов)
     public boolean userRegistered(String nickname) {
-        UserData data = getIdentityMap().getByNickname(nickname);
-        if (data == null) return false;
+        if (identityMap != null && identityMap.getByNickname(nickname) != null) return true;
         return authService.alreadyRegistered(nickname);
     }
 
     /*
         попытаться изменить ник - в БД (при наличии связи с ней) или в списке пользователей
-        вернуть результат - удачно/нет
+        результат - удачно/нет - получит done, когда изменение будет сохранено
+        (изменения в БД накапливаются и записываются одной транзакцией)
 
         если данные не были обновлены - например, ошибка записи в БД -
         вместо обновления списка пользователей об этом нужно сообщить,
-        но эта функция оставлена за вызывающим методом
+        но эта функция оставлена за вызывающим
      */
-    public boolean userDataUpdated(String oldNick, String newNick) {
-        if (authService.updateData(oldNick, newNick)) {
-            for (ClientHandler c : clients)
-                if (c.getNickname().equals(oldNick)) c.setNickname(newNick);
-            notifyObservers();
-            return true;
-        } else
-            return false;
+    public void updateUserData(String oldNick, String newNick, Consumer<Boolean> done) {
+        // новый ник сначала занимается в реестре сеансов - если два клиента одновременно
+        // попытаются взять один и тот же ник, удастся это только одному из них
+        ClientHandler c = clients.getByNickname(oldNick);
+        if (c != null && !clients.reserveNickname(c, newNick)) {
+            done.accept(false);
+            return;
+        }
+        // ответ приходит в потоке записи в БД - дальнейшее выполняется в пуле
+        authService.updateData(oldNick, newNick, updated -> threadPool.execute(() -> {
+            if (updated) {
+                // за время записи в БД сеанс мог завершиться - его ник и изменение
+                // списка пользователей тогда не нужны (проверка и смена - под блокировкой списка)
+                if (c != null) presence.rename(c, oldNick, newNick);
+                // изменный ник пользователя нужно сохранять и в БД, и в кэше
+                if (identityMap != null) {
+                    UserData data = identityMap.getByNickname(oldNick);
+                    if (data != null) identityMap.modifyUserData(data.getId(), newNick);
+                }
+            } else if (c != null)
+                clients.rollbackRename(c, newNick);
+            done.accept(updated);
+        }));
     }
 
-    @Override public void subscribe(Observer clientHandler) {
-        clients.add((ClientHandler)clientHandler);
-        notifyObservers();
+    /*
+        вход клиента: вошедший получит полный список пользователей, остальные - изменение;
+        журнал открывается (участок общего журнала начинается) и accepted выполняется,
+        только если сеанс добавлен, - при одновременном входе с тем же логином
+        журнал уже вошедшего пользователя не затрагивается;
+        данные пользователя в чате не вытесняются из кэша
+        @return false если пользователь с таким логином или ником уже в чате
+     */
+    boolean join(ClientHandler c, Runnable accepted) {
+        if (!presence.join(c, () -> {
+            journal.open(c.getLogin());
+            accepted.run();
+        })) return false;
+        if (identityMap != null) identityMap.setOnline(c.getLogin(), true);
+        return true;
     }
 
-    @Override public void unsubscribe(Observer clientHandler) {
-        clients.remove((ClientHandler)clientHandler);
-        notifyObservers();
+    @Override public void subscribe(Observer clientHandler) { join((ClientHandler)clientHandler, () -> {}); }
+
+    // список пользователей меняется, только если отключился авторизованный клиент;
+    // false - сеанса в чате не было (клиент не прошел авторизацию)
+    boolean leave(ClientHandler c) {
+        if (!presence.leave(c)) return false;
+        journal.close(c.getLogin());
+        if (identityMap != null) identityMap.setOnline(c.getLogin(), false);
+        return true;
     }
 
+    @Override public void unsubscribe(Observer clientHandler) { leave((ClientHandler)clientHandler); }
+
     public IdentityMap getIdentityMap() { return identityMap; }
 
-    public static void main(String[] args) { new Server(args.length > 0 ? args[0] : null); }
+    public static void main(String[] args) { new Server(new ServerOptions(args)); }
 }
\ No newline at end of file
@@ -0,0 +1,155 @@
+import prefs.EventLogger;
+import authentification.service.DB;
+import authentification.mapping.IdentityMap;
+import authentification.service.AuthService;
+import history.Journal;
+import transport.OutboundQueue;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+
+/*
+    параметры запуска сервера:
+        java Server [имя сервиса БД] [параметр=значение ...]
+    например,
+        java Server sqlite io=nio io.threads=4
+        java Server sqlite threads=virtual
+        java Server sqlite out.capacity=256 out.overflow=drop_oldest
+        java Server sqlite journal.flush.ms=0 journal.fsync.ms=1000
+        java Server mysql db.pool.size=32 db.pool.timeout.ms=500 db.flush.ms=10
+        java Server sqlite db.location=/var/lib/chatty/users.db
+        java Server sqlite users.cache.size=100000 users.preload=100000
+ */
+public class ServerOptions {
+    // способ обслуживания соединений с клиентами
+    public static final String IO = "io";
+    public static final String IO_BLOCKING = "blocking"; // поток на каждое соединение
+    public static final String IO_NIO = "nio";           // селекторы и неблокирующий ввод-вывод
+    // число потоков ввода-вывода (селекторов) в режиме nio
+    public static final String IO_THREADS = "io.threads";
+
+    // потоки для задач сервера: обычный пул или виртуальные потоки (Java 21+);
+    // при io=blocking на 10 тыс. соединений (1 ядро, 10 рассылок/с) пул занимал 12 тыс.
+    // потоков и 1.6 ГБ памяти и не успевал с рассылкой (p50 доставки 53 с),
+    // виртуальные потоки - 31 поток ОС, 230 МБ и p50 180 мс
+    public static final String THREADS = "threads";
+    public static final String THREADS_POOL = "pool";
+    public static final String THREADS_VIRTUAL = "virtual";
+
+    // очередь исходящих сообщений каждого соединения:
+    // емкость (в сообщениях), политика переполнения и время ожидания при политике block
+    public static final String OUT_CAPACITY = "out.capacity";
+    public static final String OUT_OVERFLOW = "out.overflow";
+    public static final String OUT_BLOCK_MS = "out.block.ms";
+
+    // промежуток времени, за который изменения списка пользователей объединяются, мс
+    public static final String PRESENCE_WINDOW_MS = "presence.window.ms";
+
+    // журналы пользователей: когда записывать накопленные строки в файлы
+    // и когда сбрасывать файлы на диск - через N мс и/или через N строк
+    // (0 - не использовать; при завершении работы сервера - в любом случае)
+    public static final String JOURNAL_FLUSH_MS = "journal.flush.ms";
+    public static final String JOURNAL_FLUSH_RECORDS = "journal.flush.records";
+    public static final String JOURNAL_FSYNC_MS = "journal.fsync.ms";
+    public static final String JOURNAL_FSYNC_RECORDS = "journal.fsync.records";
+    // размер сегмента общего журнала, байт
+    public static final String JOURNAL_SEGMENT_BYTES = "journal.segment.bytes";
+    // последние строки истории пользователей в памяти: сколько строк на пользователя
+    // (0 - не хранить) и ограничение памяти для всех, байт
+    public static final String JOURNAL_CACHE_LINES = "journal.cache.lines";
+    public static final String JOURNAL_CACHE_BYTES = "journal.cache.bytes";
+
+    // пул соединений с БД: наибольшее число соединений (0 - по умолчанию для данной БД)
+    // и время ожидания свободного соединения, мс
+    public static final String DB_POOL_SIZE = "db.pool.size";
+    public static final String DB_POOL_TIMEOUT_MS = "db.pool.timeout.ms";
+    // расположение БД: файл SQLite или адрес MySQL (//сервер:порт/имя)
+    public static final String DB_LOCATION = "db.location";
+    // промежуток накопления регистраций и смен никнейма для записи в БД одной транзакцией, мс
+    public static final String DB_FLUSH_MS = "db.flush.ms";
+
+    // кэш данных пользователей: наибольшее число пользователей не в чате
+    // и время простоя, после которого их данные вытесняются, мс (0 - не ограничено)
+    public static final String USERS_CACHE_SIZE = "users.cache.size";
+    public static final String USERS_CACHE_IDLE_MS = "users.cache.idle.ms";
+    // заполнение кэша при запуске (параллельно с приемом подключений):
+    // наибольшее число загружаемых пользователей (0 - не заполнять)
+    public static final String USERS_PRELOAD = "users.preload";
+
+    // запросы авторизации и регистрации: число потоков, обращающихся к сервису,
+    // и наибольшее число ожидающих запросов (сверх него клиентам предлагается повторить позже)
+    public static final String AUTH_THREADS = "auth.threads";
+    public static final String AUTH_QUEUE = "auth.queue";
+
+    private String DBService;
+    private final Map<String, String> options = new HashMap<>();
+
+    public ServerOptions(String[] args) {
+        for (String arg : args) {
+            int i = arg.indexOf('=');
+            if (i > 0)
+                options.put(arg.substring(0, i).toLowerCase(), arg.substring(i + 1));
+            else if (DBService == null)
+                DBService = arg;
+        }
+    }
+
+    public String getDBService() { return DBService; }
+
+    public String get(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    public int getInt(String name, int defaultValue) {
+        try {
+            return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+        } catch (NumberFormatException ex) { return defaultValue; }
+    }
+
+    public boolean isNio() { return IO_NIO.equalsIgnoreCase(get(IO, IO_BLOCKING)); }
+
+    public boolean useVirtualThreads() {
+        return THREADS_VIRTUAL.equalsIgnoreCase(get(THREADS, THREADS_POOL));
+    }
+
+    public OutboundQueue newOutboundQueue() {
+        OutboundQueue.OverflowPolicy policy;
+        try {
+            policy = OutboundQueue.OverflowPolicy.valueOf(
+                    get(OUT_OVERFLOW, OutboundQueue.OverflowPolicy.DISCONNECT.name()).toUpperCase());
+        } catch (IllegalArgumentException ex) { policy = OutboundQueue.OverflowPolicy.DISCONNECT; }
+        return new OutboundQueue(getInt(OUT_CAPACITY, 1024), policy, getInt(OUT_BLOCK_MS, 1000));
+    }
+
+    public long getPresenceWindow() { return Math.max(0, getInt(PRESENCE_WINDOW_MS, 50)); }
+
+    public DB newDB() {
+        return new DB(DBService, get(DB_LOCATION, null), Math.max(0, getInt(DB_POOL_SIZE, 0)),
+                Math.max(0, getInt(DB_POOL_TIMEOUT_MS, 1000)), Math.max(0, getInt(DB_FLUSH_MS, 5)));
+    }
+
+    public IdentityMap newIdentityMap() {
+        return new IdentityMap(Math.max(1, getInt(USERS_CACHE_SIZE, 10000)),
+                Math.max(0, getInt(USERS_CACHE_IDLE_MS, 30 * 60 * 1000)));
+    }
+
+    public int getUsersPreload() { return Math.max(0, getInt(USERS_PRELOAD, 0)); }
+
+    public AuthStage newAuthStage(AuthService service, Executor completions, EventLogger logger) {
+        return new AuthStage(service, Math.max(1, getInt(AUTH_THREADS, 4)),
+                Math.max(1, getInt(AUTH_QUEUE, 10000)), completions, logger);
+    }
+
+    public Journal newJournal(EventLogger logger) {
+        return new Journal(
+                Math.max(0, getInt(JOURNAL_FLUSH_MS, 50)), Math.max(0, getInt(JOURNAL_FLUSH_RECORDS, 1000)),
+                Math.max(0, getInt(JOURNAL_FSYNC_MS, 0)), Math.max(0, getInt(JOURNAL_FSYNC_RECORDS, 0)),
+                getInt(JOURNAL_SEGMENT_BYTES, 64 * 1024 * 1024),
+                Math.max(0, getInt(JOURNAL_CACHE_LINES, 100)), getInt(JOURNAL_CACHE_BYTES, 64 * 1024 * 1024),
+                logger);
+    }
+
+    public int getIoThreads() {
+        return Math.max(1, getInt(IO_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+}
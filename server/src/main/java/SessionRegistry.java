@@ -0,0 +1,81 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+    реестр активных сеансов (авторизованных клиентов)
+
+    прежде это был CopyOnWriteArrayList, который при каждом входе/выходе копировался целиком,
+    а поиск по логину или нику выполнялся перебором; здесь же сеансы проиндексированы
+    по логину и по нику, а перебор (для рассылки) не требует копирования -
+    итератор ConcurrentHashMap не блокирует изменения и не бросает исключений при них
+ */
+public class SessionRegistry implements Iterable<ClientHandler> {
+    private final ConcurrentMap<String, ClientHandler> byLogin = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ClientHandler> byNickname = new ConcurrentHashMap<>();
+    // ники, занятые сеансами до подтверждения их смены
+    private final ConcurrentMap<ClientHandler, String> reserved = new ConcurrentHashMap<>();
+
+    /**
+     * добавить сеанс
+     * @return false если пользователь с таким логином или ником уже в чате
+     **/
+    public boolean add(ClientHandler c) {
+        if (byLogin.putIfAbsent(c.getLogin(), c) != null) return false;
+        if (byNickname.putIfAbsent(c.getNickname(), c) != null) {
+            byLogin.remove(c.getLogin(), c);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * удалить сеанс - вместе с ником, занятым им для смены
+     * @return false если сеанса в реестре не было (например, клиент не прошел авторизацию)
+     **/
+    public boolean remove(ClientHandler c) {
+        if (c.getLogin() == null || !byLogin.remove(c.getLogin(), c)) return false;
+        if (c.getNickname() != null) byNickname.remove(c.getNickname(), c);
+        String newNick = reserved.remove(c);
+        if (newNick != null) byNickname.remove(newNick, c);
+        return true;
+    }
+
+    public boolean contains(ClientHandler c) { return c.getLogin() != null && byLogin.get(c.getLogin()) == c; }
+
+    public ClientHandler getByLogin(String login) { return login == null ? null : byLogin.get(login); }
+
+    public ClientHandler getByNickname(String nickname) {
+        return nickname == null ? null : byNickname.get(nickname);
+    }
+
+    /**
+     * занять новый ник за сеансом, прежний остается за ним до вызова commitRename/rollbackRename -
+     * так два клиента не смогут одновременно сменить ник на один и тот же
+     * @return false если ник уже занят другим активным сеансом или сеанс уже завершен
+     **/
+    public boolean reserveNickname(ClientHandler c, String newNick) {
+        ClientHandler holder = byNickname.putIfAbsent(newNick, c);
+        if (holder != null && holder != c) return false;
+        reserved.put(c, newNick);
+        // сеанс мог быть удален одновременно - тогда занятый ник освобождается здесь
+        if (contains(c)) return true;
+        rollbackRename(c, newNick);
+        return false;
+    }
+
+    public void commitRename(ClientHandler c, String oldNick, String newNick) {
+        c.setNickname(newNick);
+        reserved.remove(c, newNick);
+        byNickname.remove(oldNick, c);
+    }
+
+    public void rollbackRename(ClientHandler c, String newNick) {
+        reserved.remove(c, newNick);
+        byNickname.remove(newNick, c);
+    }
+
+    public int size() { return byLogin.size(); }
+
+    // слабо согласованный перебор без копирования
+    @Override public Iterator<ClientHandler> iterator() { return byLogin.values().iterator(); }
+}
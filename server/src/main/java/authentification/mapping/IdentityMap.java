@@ -1,53 +1,134 @@
 package authentification.mapping;
 
 import authentification.*;
+import static prefs.Prefs.*;
+import metrics.*;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /*
     класс шаблона "Коллекция объектов"
+
+    прежде это был обычный HashMap, который изменялся из потоков обработчиков клиентов
+    без синхронизации, поиск по логину и никнейму перебирал все значения,
+    а сама коллекция только росла; теперь обращения к ней синхронизированы,
+    для логина и никнейма есть собственные указатели (поиск за O(1)),
+    а смена никнейма изменяет данные и указатель одновременно;
+
+    размер коллекции ограничен: при его превышении, а также по истечении времени
+    простоя вытесняются давно не использовавшиеся пользователи (LRU),
+    но не находящиеся в чате - их данные лежат вне очереди вытеснения
  */
 public class IdentityMap {
-    private final Map<Integer, UserData> entities;
-    //private final DB base;
+    private static final class Entry {
+        final Integer id;
+        final UserData data;
+        long lastAccess;
+        boolean online;
+
+        Entry(Integer id, UserData data) {
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    private final int maxSize;
+    private final long idleNanos;
+
+    private final Map<Integer, Entry> entities = new HashMap<>();
+    private final Map<String, Entry> byLogin = new HashMap<>();
+    private final Map<String, Entry> byNickname = new HashMap<>();
+    // очередь вытеснения - пользователи не в чате, от давно не использовавшихся к недавним
+    private final LinkedHashMap<Integer, Entry> idle = new LinkedHashMap<>(16, 0.75f, true);
+
+    // счетчики - общие с реестром показателей сервера
+    private static final Counter HITS = Metrics.counter("users.cache.hits", "попадания в кэш пользователей"),
+            MISSES = Metrics.counter("users.cache.misses", "промахи кэша пользователей"),
+            EVICTIONS = Metrics.counter("users.cache.evictions", "вытеснения из кэша пользователей");
 
-    public IdentityMap(/*DB base*/) {
-        //this.base = base;
-        entities = new HashMap<>();
+    /**
+     * @param maxSize наибольшее число пользователей не в чате, данные которых хранятся
+     * @param idleMillis время простоя, после которого данные вытесняются (0 - не ограничено)
+     **/
+    public IdentityMap(int maxSize, long idleMillis) {
+        this.maxSize = Math.max(1, maxSize);
+        this.idleNanos = idleMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(idleMillis) : Long.MAX_VALUE;
     }
 
-    /*public UserData getById(Integer id) {
-        if (!entities.containsKey(id)) entities.put(id, base.find(id));
-        return entities.get(id);
-    }*/
+    public synchronized void addById(Integer id, UserData data) {
+        if (entities.containsKey(id)) return;
+        if (data.getId() == null) data.setId(id);
+        Entry e = new Entry(id, data);
+        e.lastAccess = System.nanoTime();
+        entities.put(id, e);
+        byLogin.put(data.getLogin(), e);
+        if (data.getNickname() != null) byNickname.put(data.getNickname(), e);
+        idle.put(id, e);
+        evict(e.lastAccess);
+    }
 
-    public void addById(Integer id, UserData data) {
-        if (!entities.containsKey(id)) entities.put(id, data);
+    public synchronized void modifyUserData(Integer id, String nickname) {
+        Entry e = entities.get(id);
+        if (e == null) return;
+        byNickname.remove(e.data.getNickname(), e);
+        e.data.setNickname(nickname);
+        byNickname.put(nickname, e);
     }
 
-    public void modifyUserData(Integer id, String nickname) {
-        if (entities.containsKey(id)) {
-            UserData data = entities.get(id);
-            data.setNickname(nickname);
-            entities.put(id, data);
+    public synchronized UserData getByLogin(String login) { return access(byLogin, login); }
+
+    public synchronized UserData getByNickname(String nickname) { return access(byNickname, nickname); }
+
+    /**
+     * отметить вход пользователя в чат и выход из него:
+     * пока пользователь в чате, его данные не вытесняются
+     **/
+    public synchronized void setOnline(String login, boolean online) {
+        Entry e = byLogin.get(login);
+        if (e == null || e.online == online) return;
+        e.online = online;
+        e.lastAccess = System.nanoTime();
+        if (online) idle.remove(e.id);
+        else {
+            idle.put(e.id, e);
+            evict(e.lastAccess);
         }
     }
 
-    public UserData getByLogin(String login) {
-        return entities
-                .values()
-                .stream()
-                .filter(u -> u.getLogin().equals(login))
-                .findFirst()
-                .orElse(null);
+    // места для пользователей не в чате заняты - новые данные будут вытеснять прежние
+    public synchronized boolean isFull() { return idle.size() >= maxSize; }
+
+    public synchronized String getStats() {
+        long hits = HITS.getCount(), misses = MISSES.getCount(), n = hits + misses;
+        return String.format(MSG_IDENTITY_MAP_STATS, hits, misses,
+                n == 0 ? 0.0 : 100.0 * hits / n, EVICTIONS.getCount(), entities.size(), entities.size() - idle.size());
+    }
+
+    private UserData access(Map<String, Entry> index, String key) {
+        long now = System.nanoTime();
+        evict(now);
+        Entry e = index.get(key);
+        if (e == null) {
+            MISSES.increment();
+            return null;
+        }
+        HITS.increment();
+        e.lastAccess = now;
+        if (!e.online) idle.get(e.id);
+        return e.data;
     }
 
-    public UserData getByNickname(String nickname) {
-        return entities
-                .values()
-                .stream()
-                .filter(u -> u.getNickname().equals(nickname))
-                .findFirst()
-                .orElse(null);
+    // вытеснить лишних и простаивающих - с начала очереди
+    private void evict(long now) {
+        while (!idle.isEmpty()) {
+            Entry e = idle.values().iterator().next();
+            if (idle.size() <= maxSize && now - e.lastAccess < idleNanos) break;
+            idle.remove(e.id);
+            entities.remove(e.id);
+            byLogin.remove(e.data.getLogin(), e);
+            if (e.data.getNickname() != null) byNickname.remove(e.data.getNickname(), e);
+            EVICTIONS.increment();
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,5 +1,10 @@
 package authentification.service;
 
+import authentification.*;
+
+import java.util.*;
+import java.util.function.*;
+
 public interface AuthService {
     /**
      * получить никнейм по логину и паролю
@@ -7,6 +12,13 @@ public interface AuthService {
      **/
     String getNickname (String login, String password);
 
+    /**
+     * найти учетные записи по нескольким логинам одним обращением к сервису
+     * (пароль проверяет вызывающий)
+     * @return данные найденных пользователей (с идентификаторами) по логинам
+     **/
+    Map<String, UserData> findByLogins(Collection<String> logins);
+
     /**
      * выполнить регистрацию учетной записи
      * @return идентификатор учетной записи при успешной ее регистрации,
@@ -14,6 +26,14 @@ public interface AuthService {
      **/
     int registerUser(String login, String password, String nickname);
 
+    /**
+     * выполнить регистрацию, не дожидаясь ее сохранения: done получит идентификатор
+     * учетной записи (0 - отказ), когда она будет сохранена
+     **/
+    default void registerUser(String login, String password, String nickname, IntConsumer done) {
+        done.accept(registerUser(login, password, nickname));
+    }
+
     /**
      * проверить запуск сервиса
      * @return true при успешном запуске, false - в противном случае
@@ -26,12 +46,27 @@ public interface AuthService {
      **/
     boolean updateData(String oldVal, String newVal);
 
+    /**
+     * обновить данные пользователя, не дожидаясь их сохранения:
+     * done получит результат, когда они будут сохранены
+     **/
+    default void updateData(String oldVal, String newVal, Consumer<Boolean> done) {
+        done.accept(updateData(oldVal, newVal));
+    }
+
     /**
      * проверить наличие зарегистрированного пользователя с определенным ником
      * @return true если пользователь уже зарегистрирован, false - в противном случае
      **/
     boolean alreadyRegistered(String nickname);
 
+    /**
+     * прочитать все учетные записи одним проходом, передавая каждую action,
+     * пока она возвращает true (используется для заполнения кэша при запуске сервера)
+     * @return число прочитанных учетных записей
+     **/
+    default long preload(Predicate<UserData> action) { return 0; }
+
     /**
      * завершить работу сервиса
      * фактически используется только при работе с БД - завершение связи с ней,
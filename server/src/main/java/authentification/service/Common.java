@@ -1,44 +1,108 @@
 package authentification.service;
 
+import prefs.*;
 import authentification.*;
 
+import java.io.IOException;
+
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    учетные записи в оперативной памяти
 
+    прежде они хранились в ArrayList: каждая проверка перебирала весь список,
+    а одновременные регистрации из потоков обработчиков могли его повредить;
+    теперь учетные записи проиндексированы по логину и никнейму (ConcurrentHashMap) -
+    чтение идет без блокировок, а изменения выполняются под одной блокировкой,
+    так что обе проверки занятости и обновление указателей происходят атомарно;
+    данные пользователя не изменяются "на месте" - при смене никнейма
+    в указатели помещается их новая копия
+
+    при заданном хранилище (снимок и журнал изменений) учетные записи загружаются
+    из него при создании сервиса, а каждое изменение дописывается в журнал;
+    журнал периодически сбрасывается на диск и, разрастаясь, сворачивается в снимок
+ */
 public class Common implements AuthService {
-    private List<UserData> users;
+    // как часто сбрасывать журнал на диск и проверять необходимость его свертки, с
+    private static final int SYNC_PERIOD = 1;
+    // число записей журнала, после которого он сворачивается в снимок
+    private static final int COMPACT_RECORDS = 10000;
+
+    private final ConcurrentHashMap<String, UserData> byLogin = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, UserData> byNickname = new ConcurrentHashMap<>();
+    private final AtomicInteger lastId = new AtomicInteger();
+    private final Object mutation = new Object();
+
+    private UserStore store;
+    private ScheduledExecutorService scheduler;
+    private final EventLogger logger = new EventLogger(Common.class.getName(), null);
+
+    public Common() {}
+
+    /**
+     * @param folder папка хранилища учетных записей (снимок и журнал изменений)
+     **/
+    public Common(String folder) {
+        try {
+            UserStore s = new UserStore(folder);
+            for (UserData u : s.load().values()) index(u);
+            store = s;
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "users-store");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleWithFixedDelay(this::maintain, SYNC_PERIOD, SYNC_PERIOD, TimeUnit.SECONDS);
+        } catch (IOException ex) { logger.logError(ex); }
+    }
 
-    public Common() { this.users = new ArrayList<>(); }
+    private void index(UserData u) {
+        byLogin.put(u.getLogin(), u);
+        byNickname.put(u.getNickname(), u);
+        lastId.accumulateAndGet(u.getId(), Math::max);
+    }
 
     @Override
     public String getNickname(String login, String password) {
-        for (UserData u : users)
-            if (u.getLogin().equals(login) && u.getPassword().equals(password))
-                return u.getNickname();
+        UserData u = byLogin.get(login);
+        return u != null && u.getPassword().equals(password) ? u.getNickname() : null;
+    }
 
-        return null;
+    @Override
+    public Map<String, UserData> findByLogins(Collection<String> logins) {
+        Map<String, UserData> found = new HashMap<>();
+        for (String login : logins) {
+            UserData u = byLogin.get(login);
+            if (u != null) found.put(login, u);
+        }
+        return found;
     }
 
     @Override
-    // сохранение данных нового пользователя в оперативной памяти
+    // сохранение данных нового пользователя в оперативной памяти (и в журнале хранилища)
     public int registerUser(String login, String password, String nickname) {
-        for (UserData u : users)
-            if (u.getLogin().equals(login) || u.getNickname().equals(nickname))
+        synchronized (mutation) {
+            if (byLogin.containsKey(login) || byNickname.containsKey(nickname))
                 return 0;
-
-        // по описанию, добавление происходит в конец списка, то есть пустот в нем нет
-        users.add(new UserData(login, password, nickname));
-        return users.size();
+            UserData u = new UserData(login, password, nickname);
+            u.setId(lastId.get() + 1);
+            if (store != null)
+                try { store.appendRegister(u); }
+                catch (IOException ex) {
+                    logger.logError(ex);
+                    return 0;
+                }
+            index(u);
+            return u.getId();
+        }
     }
 
-    @Override public boolean isServiceActive() { return users.size() > 0; }
+    @Override public boolean isServiceActive() { return !byLogin.isEmpty(); }
 
     @Override
-    public boolean alreadyRegistered(String nickname) {
-        for (UserData u : users)
-            if (u.getNickname().equals(nickname))
-                return true;
-        return false;
-    }
+    public boolean alreadyRegistered(String nickname) { return byNickname.containsKey(nickname); }
 
     /*
         актуальные данные пользователей важны, в том числе, при каждой попытке регистрации
@@ -46,13 +110,42 @@ public class Common implements AuthService {
         если уже зарегистрированный пользователь решит сменить его
      */
     @Override public boolean updateData(String oldNick, String newNick) {
-        for (UserData u : users)
-            if (u.getNickname().equals(oldNick)) {
-                u.setNickname(newNick);
-                return true;
-            }
-        return false;
+        synchronized (mutation) {
+            UserData u = byNickname.get(oldNick);
+            if (u == null || byNickname.containsKey(newNick)) return false;
+            if (store != null)
+                try { store.appendRename(u.getId(), newNick); }
+                catch (IOException ex) {
+                    logger.logError(ex);
+                    return false;
+                }
+            UserData renamed = new UserData(u.getLogin(), u.getPassword(), newNick);
+            renamed.setId(u.getId());
+            byNickname.put(newNick, renamed);
+            byLogin.put(u.getLogin(), renamed);
+            byNickname.remove(oldNick, u);
+            return true;
+        }
+    }
+
+    // сбросить журнал на диск и при необходимости свернуть его в снимок
+    private void maintain() {
+        synchronized (mutation) {
+            try {
+                if (store.getLogRecords() >= COMPACT_RECORDS) store.compact(byLogin.values());
+                else store.sync();
+            } catch (IOException ex) { logger.logError(ex); }
+        }
     }
 
-    void setUsers(List<UserData> users) { this.users = users; }
-}
\ No newline at end of file
+    @Override public void close() {
+        if (store == null) return;
+        scheduler.shutdownNow();
+        synchronized (mutation) {
+            try {
+                if (store.getLogRecords() > 0) store.compact(byLogin.values());
+                store.close();
+            } catch (IOException ex) { logger.logError(ex); }
+        }
+    }
+}
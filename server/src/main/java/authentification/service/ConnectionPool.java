@@ -0,0 +1,111 @@
+package authentification.service;
+
+import static prefs.Prefs.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/*
+    ограниченный пул соединений с БД
+
+    прежде все обработчики клиентов работали через одно (статическое) соединение,
+    и каждый запрос заново форматировался и подготавливался (prepareStatement);
+    теперь соединений несколько, а подготовленные запросы каждого соединения
+    хранятся при нем и используются повторно;
+
+    если свободного соединения нет дольше заданного времени, выбрасывается
+    SQLTimeoutException; время ожидания соединений и число отказов учитываются
+ */
+class ConnectionPool {
+    interface ConnectionFactory { Connection create() throws SQLException; }
+
+    private final ConnectionFactory factory;
+    private final int maxSize;
+    private final long timeoutNanos;
+
+    private final Semaphore permits;
+    // последним возвращенное соединение выдается первым - его подготовленные запросы "теплее"
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile boolean closed;
+
+    // счетчики
+    private final LongAdder acquired = new LongAdder(), timeouts = new LongAdder(), waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    ConnectionPool(ConnectionFactory factory, int maxSize, long timeoutMillis) {
+        this.factory = factory;
+        this.maxSize = Math.max(1, maxSize);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        permits = new Semaphore(this.maxSize, true);
+    }
+
+    /**
+     * получить соединение - освобождается вызовом close (удобно в try-with-resources)
+     * @throws SQLTimeoutException если свободного соединения не нашлось за заданное время
+     **/
+    PooledConnection acquire() throws SQLException {
+        if (closed) throw new SQLException(ERR_DB_POOL_CLOSED);
+        long start = System.nanoTime();
+        boolean ok;
+        try { ok = permits.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS); }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(ex);
+        }
+        long wait = System.nanoTime() - start;
+        waitNanos.add(wait);
+        maxWaitNanos.accumulateAndGet(wait, Math::max);
+        if (!ok) {
+            timeouts.increment();
+            throw new SQLTimeoutException(String.format(ERR_DB_POOL_TIMEOUT,
+                    TimeUnit.NANOSECONDS.toMillis(timeoutNanos)));
+        }
+        acquired.increment();
+
+        PooledConnection c = idle.pollFirst();
+        if (c != null) return c;
+        try {
+            c = new PooledConnection(this, factory.create());
+            size.incrementAndGet();
+            return c;
+        } catch (SQLException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    // разорванное соединение не возвращается в пул - вместо него при необходимости будет создано новое
+    void release(PooledConnection c) {
+        boolean broken;
+        try { broken = c.getConnection().isClosed(); }
+        catch (SQLException ex) { broken = true; }
+        if (closed || broken) {
+            c.closeConnection();
+            size.decrementAndGet();
+        } else
+            idle.offerFirst(c);
+        permits.release();
+    }
+
+    int getMaxSize() { return maxSize; }
+
+    String getStats() {
+        long n = acquired.sum() + timeouts.sum();
+        return String.format(MSG_DB_POOL_STATS, acquired.sum(),
+                n == 0 ? 0.0 : waitNanos.sum() / 1e6 / n, maxWaitNanos.get() / 1e6,
+                timeouts.sum(), size.get(), maxSize);
+    }
+
+    // закрыть свободные соединения; занятые закроются при возвращении
+    void close() {
+        closed = true;
+        PooledConnection c;
+        while ((c = idle.pollFirst()) != null) {
+            c.closeConnection();
+            size.decrementAndGet();
+        }
+    }
+}
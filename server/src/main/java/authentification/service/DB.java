@@ -3,9 +3,12 @@ package authentification.service;
 import prefs.*;
 import authentification.*;
 import authentification.mapping.*;
+import metrics.*;
 
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 
 public class DB implements AuthService, Mappable<UserData> {
     public static final String JDBC = "jdbc";
@@ -22,13 +25,71 @@ public class DB implements AuthService, Mappable<UserData> {
     public static final String SQL_UPDATE = "UPDATE %s SET nickname = ? WHERE nickname = ?;";
     public static final String SQL_DELETE_BY_ID = "delete from %s where id = ?;";
     public static final String SQL_DELETE_BY_LOGIN = "delete from %s where login = ? and pwd = ?;";
+    public static final String SQL_FIND_LOGIN = "select id from %s where login = ? Limit 1;";
+    public static final String SQL_FIND_BY_LOGINS = "select * from %s where login in (%s);";
+    // уникальность логина обеспечивает сама БД - при регистрации достаточно одного INSERT
+    public static final String SQL_CREATE_LOGIN_INDEX = "create unique index %s_login on %s (login);";
+    // как и никнейма - занятый никнейм выявляет INSERT или UPDATE, а поиск по нему
+    // не просматривает всю таблицу
+    public static final String SQL_CREATE_NICKNAME_INDEX = "create unique index %s_nickname on %s (nickname);";
+    public static final String SQL_COUNT = "select count(*) from %s;";
+    public static final String SQL_SELECT_NAMES = "select login, nickname from %s;";
+    public static final String SQL_SELECT_USERS = "select * from %s;";
 
-    private static Connection connection;
-    private static Statement st;
+    // запросы формируются один раз, а не при каждом обращении к БД
+    private static final String FIND_BY_ID = adjustQuery(SQL_FIND_BY_ID);
+    private static final String FIND_BY_LOGIN = adjustQuery(SQL_FIND_BY_LOGIN);
+    private static final String FIND_BY_NICK = adjustQuery(SQL_FIND_BY_NICK);
+    private static final String INSERT = adjustQuery(SQL_INSERT);
+    private static final String UPDATE = adjustQuery(SQL_UPDATE);
+    private static final String DELETE_BY_ID = adjustQuery(SQL_DELETE_BY_ID);
+    private static final String DELETE_BY_LOGIN = adjustQuery(SQL_DELETE_BY_LOGIN);
+    private static final String FIND_LOGIN = adjustQuery(SQL_FIND_LOGIN);
+    private static final String CREATE_LOGIN_INDEX =
+            String.format(SQL_CREATE_LOGIN_INDEX, DB_USERS_TABLE, DB_USERS_TABLE);
+    private static final String CREATE_NICKNAME_INDEX =
+            String.format(SQL_CREATE_NICKNAME_INDEX, DB_USERS_TABLE, DB_USERS_TABLE);
+    private static final String COUNT = adjustQuery(SQL_COUNT);
+    private static final String SELECT_NAMES = adjustQuery(SQL_SELECT_NAMES);
+    private static final String SELECT_USERS = adjustQuery(SQL_SELECT_USERS);
+
+    // размер пула соединений по умолчанию; в SQLite соединения пула - только для чтения
+    private static final int[] DB_POOL_SIZE = { 4, 16 };
+    // время ожидания занятой БД SQLite (вместо немедленной ошибки SQLITE_BUSY), мс
+    private static final int SQLITE_BUSY_TIMEOUT = 5000;
+    // наибольшее время ожидания записи в БД вызывающим потоком, мс
+    private static final int WRITE_TIMEOUT = 5000;
+    // флаги открытия файла SQLite: SQLITE_OPEN_READONLY
+    private static final String SQLITE_OPEN_READONLY = "1";
+
+    private ConnectionPool pool;
+    // все изменения таблицы выполняет единственный поток записи - пакетами в одной транзакции
+    private WriteBehind writer;
+    // имена, запись которых еще не зафиксирована, - уже заняты
+    private final Set<String> pendingLogins = ConcurrentHashMap.newKeySet(),
+            pendingNicknames = ConcurrentHashMap.newKeySet();
+
+    // фильтры занятых логинов и никнеймов - до запроса к БД доходят только возможно занятые;
+    // если фильтры не удалось заполнить, проверяется все
+    private NameFilter logins, nicknames;
+    // время хранения имени в кэше отсутствующих, мс
+    private static final int ABSENT_NAME_TTL = 5000;
+    // есть уникальный указатель по логину: занятость логина при регистрации
+    // не проверяется отдельным запросом - ее выявляет нарушение ограничения
+    private boolean uniqueLogins;
+    // код ошибки SQLite "нарушено ограничение" (SQLITE_CONSTRAINT)
+    private static final int SQLITE_CONSTRAINT = 19;
+    // число строк, получаемых курсором за одно обращение при чтении всей таблицы;
+    // драйвер MySQL без useCursorFetch передает строки по одной только при Integer.MIN_VALUE
+    private static final int[] PRELOAD_FETCH_SIZE = { 4096, Integer.MIN_VALUE };
+
+    // длительность запросов чтения (вместе с получением соединения из пула)
+    private static final Histogram QUERY_TIME = Metrics.histogram("db.query", "запрос чтения к БД");
 
     private final EventLogger logger;
 
     private int DBService;
+    private final String location;
     /*
        когда используется БД, хранящая данные о пользователях, дублирование этой информации
        в оперативной памяти может, в зависимости от числа пользователей - это могут быть
@@ -46,28 +107,140 @@ public class DB implements AuthService, Mappable<UserData> {
        после исключения из сервиса дублирования данных в ОП
        исключено и наследование от AuthServiceCommon
      */
-    public DB(String serviceName) {
+    public DB(String serviceName) { this(serviceName, 0, 1000, 5); }
+
+    public DB(String serviceName, int poolSize, long acquireTimeoutMillis, long flushMillis) {
+        this(serviceName, null, poolSize, acquireTimeoutMillis, flushMillis);
+    }
+
+    /**
+     * @param location файл БД SQLite или адрес БД MySQL (null - по умолчанию)
+     * @param poolSize наибольшее число соединений (0 - по умолчанию для данной БД)
+     * @param acquireTimeoutMillis наибольшее время ожидания свободного соединения
+     * @param flushMillis промежуток накопления изменений для записи одной транзакцией
+     **/
+    public DB(String serviceName, String location, int poolSize, long acquireTimeoutMillis, long flushMillis) {
         logger = new EventLogger(DB.class.getName(), null);
+        this.location = location;
         DBService = serviceName == null
                 ? 0
                 : new ArrayList<>(Arrays.asList(DB_CONTROL_NAME)).indexOf(serviceName.toLowerCase());
         if (DBService < 0) DBService = 0;
-        try { connect(); }
-        catch (Exception ex) { logger.logError(ex); }
+        try {
+            Class.forName(getJDBCClassName());
+            // пишущее соединение открывает (и при необходимости создает) файл БД SQLite
+            // прежде читающих
+            writer = new WriteBehind(connect(false), flushMillis, logger);
+            pool = new ConnectionPool(() -> connect(DBService == 0),
+                    poolSize > 0 ? poolSize : DB_POOL_SIZE[DBService], acquireTimeoutMillis);
+            loadNames();
+            uniqueLogins = createUniqueIndex("login", CREATE_LOGIN_INDEX);
+            createUniqueIndex("nickname", CREATE_NICKNAME_INDEX);
+        } catch (Exception ex) { logger.logError(ex); }
+    }
+
+    // создать уникальный указатель по столбцу, если его еще нет
+    private boolean createUniqueIndex(String column, String sql) {
+        try {
+            if (!hasUniqueIndex(column)) executeUpdate(sql);
+            return true;
+        } catch (SQLException ex) {
+            // например, в таблице уже есть повторяющиеся значения
+            logger.logError(ex);
+            return false;
+        }
     }
 
-    private void connect() throws Exception {
-        Class.forName(getJDBCClassName());
+    private boolean hasUniqueIndex(String column) throws SQLException {
+        try (PooledConnection c = pool.acquire();
+             ResultSet rs = c.getConnection().getMetaData()
+                     .getIndexInfo(null, null, DB_USERS_TABLE, true, false)) {
+            while (rs.next())
+                if (column.equalsIgnoreCase(rs.getString("COLUMN_NAME"))) return true;
+            return false;
+        }
+    }
+
+    // нарушение ограничения уникальности - логин или никнейм уже занят
+    private static boolean isConstraintViolation(SQLException ex) {
+        return ex instanceof SQLIntegrityConstraintViolationException
+                || ex.getSQLState() != null && ex.getSQLState().startsWith("23")
+                || (ex.getErrorCode() & 0xff) == SQLITE_CONSTRAINT;
+    }
+
+    // заполнить фильтры имен пользователей по таблице БД
+    private void loadNames() throws SQLException {
+        try (PooledConnection c = pool.acquire()) {
+            int count;
+            try (ResultSet rs = c.prepare(COUNT).executeQuery()) { count = rs.next() ? rs.getInt(1) : 0; }
+            // с запасом - фильтр пополняется новыми пользователями
+            NameFilter l = new NameFilter(Math.max(2 * count, 64 * 1024), ABSENT_NAME_TTL),
+                    n = new NameFilter(Math.max(2 * count, 64 * 1024), ABSENT_NAME_TTL);
+            try (ResultSet rs = c.prepare(SELECT_NAMES).executeQuery()) {
+                while (rs.next()) {
+                    l.add(rs.getString(1));
+                    n.add(rs.getString(2));
+                }
+            }
+            logins = l;
+            nicknames = n;
+        }
+    }
+
+    // фильтр не заполнен - имя может быть занято
+    private static boolean mightContain(NameFilter filter, String name) {
+        return filter == null || filter.mightContain(name);
+    }
+
+    private Connection connect(boolean readOnly) throws SQLException {
         String defaultValue = DBService == 1 ? "root" : "";
-        connection = DriverManager.getConnection(getDBConnection(), defaultValue, defaultValue);
-        st = connection.createStatement();
+        Properties props = new Properties();
+        props.setProperty("user", defaultValue);
+        props.setProperty("password", defaultValue);
+        if (readOnly) props.setProperty("open_mode", SQLITE_OPEN_READONLY);
+        Connection connection = DriverManager.getConnection(getDBConnection(), props);
+        if (DBService == 0)
+            try (Statement st = connection.createStatement()) {
+                st.execute("PRAGMA busy_timeout = " + SQLITE_BUSY_TIMEOUT);
+                if (!readOnly) {
+                    // режим WAL сохраняется в самом файле БД: чтение через соединения
+                    // только для чтения идет параллельно с записью
+                    st.execute("PRAGMA journal_mode = WAL");
+                    // в режиме WAL достаточно для сохранности зафиксированных транзакций
+                    st.execute("PRAGMA synchronous = NORMAL");
+                }
+            }
+        return connection;
     }
 
     @Override public void close() {
-        try {
-            st.close();
-            connection.close();
-        } catch (SQLException ex) { logger.logError(ex); }
+        if (writer != null) {
+            writer.close();
+            logger.info(writer.getStats());
+        }
+        if (pool == null) return;
+        logger.info(pool.getStats());
+        if (logins != null)
+            logger.info(String.format(Prefs.MSG_NAME_FILTER_STATS,
+                    logins.getFiltered() + nicknames.getFiltered(),
+                    logins.getAbsentHits() + nicknames.getAbsentHits(),
+                    logins.getChecked() + nicknames.getChecked(),
+                    logins.getFalsePositives() + nicknames.getFalsePositives(),
+                    logins.getAbsentAdded() + nicknames.getAbsentAdded()));
+        pool.close();
+    }
+
+    // DML-запрос через поток записи - с ожиданием фиксации транзакции
+    private int executeUpdate(String sql, Object ... params) throws SQLException {
+        return writer.executeUpdate(sql, WRITE_TIMEOUT, params);
+    }
+
+    // дождаться результата асинхронной записи
+    private <T> T await(CompletableFuture<T> result, T failed) {
+        try { return result.get(WRITE_TIMEOUT, TimeUnit.MILLISECONDS); }
+        catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+        catch (ExecutionException | TimeoutException ex) { logger.logError(ex); }
+        return failed;
     }
 
     // сформировать имя класса драйвера JDBC
@@ -78,17 +251,21 @@ public class DB implements AuthService, Mappable<UserData> {
     // сформировать полное имя/ссылку на БД
     private String getDBConnection() {
        return JDBC + ":" + DB_CONTROL_NAME[DBService] + ":" +
-              (DBService == 1
+              (location != null
+                   ? location
+                   : DBService == 1
                    ? "//localhost:3306/" + Prefs.TITLE
                    : Prefs.TITLE + "." + DB_CONTROL_EXT[DBService]);
     }
 
-    private String adjustQuery(String query) { return String.format(query, DB_USERS_TABLE); }
+    private static String adjustQuery(String query) { return String.format(query, DB_USERS_TABLE); }
 
     // проверка связи с БД - поиск таблицы пользователей
     private boolean testDB() {
+        if (pool == null) return false;
         // вариант 1: через мета-данные, вместо последнего аргумента можно использовать null
-        try (ResultSet rs = connection
+        try (PooledConnection c = pool.acquire();
+             ResultSet rs = c.getConnection()
                 .getMetaData()
                 .getTables(null, null, DB_USERS_TABLE, new String[] { "TABLE" })) {
             return rs.next() && rs.getString(3).equals(DB_USERS_TABLE);
@@ -104,13 +281,27 @@ public class DB implements AuthService, Mappable<UserData> {
 
     // проверить наличие пользователя в таблице БД по логину и паролю
     @Override public String getNickname(String login, String password) {
-        try (PreparedStatement ps = connection.prepareStatement(adjustQuery(SQL_FIND_BY_LOGIN))) {
+        UserData data = findByLogin(login, password);
+        return data == null ? null : data.getNickname();
+    }
+
+    // данные пользователя вместе с идентификатором - одним запросом
+    private UserData findByLogin(String login, String password) {
+        if (pool == null || !mightContain(logins, login)) return null;
+        long start = System.nanoTime();
+        try (PooledConnection c = pool.acquire()) {
+            PreparedStatement ps = c.prepare(FIND_BY_LOGIN);
             ps.setString(1, login);
             ps.setString(2, password);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next())
-                return rs.getString(4);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    UserData data = new UserData(login, password, rs.getString(4));
+                    data.setId(rs.getInt(1));
+                    return data;
+                }
+            }
         } catch (SQLException ex) { logger.logError(ex); }
+        finally { QUERY_TIME.recordSince(start); }
         return null;
     }
 
@@ -119,53 +310,172 @@ public class DB implements AuthService, Mappable<UserData> {
     // что разные пользователи могут выбирать одинаковые никнеймы,
     // но пусть это все же будет ограничением
     @Override public boolean alreadyRegistered(String nickname) {
-        try (PreparedStatement ps = connection.prepareStatement(adjustQuery(SQL_FIND_BY_NICK))) {
+        // число добавлений в фильтр - до проверки незаписанных никнеймов:
+        // никнейм, занятый после нее, не попадет в кэш отсутствующих
+        long since = nicknames != null ? nicknames.generation() : 0;
+        if (pendingNicknames.contains(nickname)) return true;
+        if (pool == null || !mightContain(nicknames, nickname)) return false;
+        long start = System.nanoTime();
+        try (PooledConnection c = pool.acquire()) {
+            PreparedStatement ps = c.prepare(FIND_BY_NICK);
             ps.setString(1, nickname);
-            return ps.executeQuery().next();
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) return true;
+            }
+            if (nicknames != null) {
+                nicknames.falsePositive();
+                nicknames.markAbsent(nickname, since);
+            }
         } catch (SQLException ex) { logger.logError(ex); }
+        finally { QUERY_TIME.recordSince(start); }
         return false;
     }
 
-    // изменить никнейм пользователя
+    // изменить никнейм пользователя: новый никнейм занят сразу,
+    // а о результате done узнает после фиксации транзакции
+    @Override public void updateData(String oldNick, String newNick, Consumer<Boolean> done) {
+        if (pool == null || !pendingNicknames.add(newNick)) {
+            done.accept(false);
+            return;
+        }
+        if (nicknames != null) nicknames.add(newNick);
+        writer.submit(UPDATE, false, (count, key, error) -> {
+            pendingNicknames.remove(newNick);
+            // никнейм, занятый другим сервером с той же БД, - не ошибка
+            if (error != null && !isConstraintViolation(error)) logger.logError(error);
+            done.accept(error == null);
+        }, newNick, oldNick);
+    }
+
     @Override public boolean updateData(String oldNick, String newNick) {
-        try (PreparedStatement ps = connection.prepareStatement(adjustQuery(SQL_UPDATE))) {
-            ps.setString(1, newNick);
-            ps.setString(2, oldNick);
-            ps.executeUpdate();
-            return true;
+        CompletableFuture<Boolean> updated = new CompletableFuture<>();
+        updateData(oldNick, newNick, updated::complete);
+        return await(updated, false);
+    }
+
+    /*
+        пакетный поиск: число параметров запроса округляется вверх до степени двойки
+        (лишние повторяют последний логин) - так различных текстов запроса немного,
+        и все они остаются в кэше подготовленных запросов соединения
+     */
+    private static final int MAX_LOGINS_PER_QUERY = 64;
+    private static final String[] FIND_BY_LOGINS = new String[Integer.numberOfTrailingZeros(MAX_LOGINS_PER_QUERY) + 1];
+
+    static {
+        for (int i = 0; i < FIND_BY_LOGINS.length; i++)
+            FIND_BY_LOGINS[i] = String.format(SQL_FIND_BY_LOGINS, DB_USERS_TABLE,
+                    String.join(", ", Collections.nCopies(1 << i, "?")));
+    }
+
+    @Override public Map<String, UserData> findByLogins(Collection<String> logins) {
+        Map<String, UserData> found = new HashMap<>();
+        if (pool == null) return found;
+        List<String> list = new ArrayList<>();
+        for (String login : logins)
+            if (mightContain(this.logins, login)) list.add(login);
+        if (list.isEmpty()) return found;
+        long start = System.nanoTime();
+        try (PooledConnection c = pool.acquire()) {
+            for (int from = 0; from < list.size(); from += MAX_LOGINS_PER_QUERY) {
+                List<String> part = list.subList(from, Math.min(list.size(), from + MAX_LOGINS_PER_QUERY));
+                int size = 32 - Integer.numberOfLeadingZeros(part.size() - 1);
+                PreparedStatement ps = c.prepare(FIND_BY_LOGINS[size]);
+                for (int i = 0; i < 1 << size; i++)
+                    ps.setString(i + 1, part.get(Math.min(i, part.size() - 1)));
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        UserData data = new UserData(rs.getString(2), rs.getString(3), rs.getString(4));
+                        data.setId(rs.getInt(1));
+                        found.put(data.getLogin(), data);
+                    }
+                }
+            }
+        } catch (SQLException ex) { logger.logError(ex); }
+        finally { QUERY_TIME.recordSince(start); }
+        return found;
+    }
+
+    /*
+        прочитать всю таблицу пользователей одним проходом курсора "только вперед":
+        строки не накапливаются в памяти драйвера, а передаются action по мере получения;
+        имена заодно добавляются в фильтры (обычно они там уже есть)
+     */
+    @Override public long preload(Predicate<UserData> action) {
+        long count = 0;
+        if (pool == null) return count;
+        try (PooledConnection c = pool.acquire();
+             Statement st = c.getConnection().createStatement(
+                     ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            st.setFetchSize(PRELOAD_FETCH_SIZE[DBService]);
+            try (ResultSet rs = st.executeQuery(SELECT_USERS)) {
+                while (rs.next()) {
+                    UserData data = new UserData(rs.getString(2), rs.getString(3), rs.getString(4));
+                    data.setId(rs.getInt(1));
+                    if (logins != null) logins.add(data.getLogin());
+                    if (nicknames != null) nicknames.add(data.getNickname());
+                    count++;
+                    if (!action.test(data)) break;
+                }
+            }
+        } catch (SQLException ex) { logger.logError(ex); }
+        return count;
+    }
+
+    //добавить нового зарегистрированного пользователя
+    //
+    // прежде регистрация стоила трех обращений к БД: проверка (SELECT), вставка
+    // и получение id (еще один SELECT); теперь занятость логина выявляет уникальный
+    // указатель, а id возвращает сам INSERT (getGeneratedKeys) - обращение одно;
+    // вставка выполняется потоком записи вместе с другими изменениями одной транзакцией,
+    // а до ее фиксации логин и никнейм считаются занятыми
+    @Override public void registerUser(String login, String password, String nickname, IntConsumer done) {
+        if (pool == null) {
+            done.accept(0);
+            return;
+        }
+        try {
+            if (!uniqueLogins && mightContain(logins, login) && loginExists(login)) {
+                done.accept(0);
+                return;
+            }
         } catch (SQLException ex) {
             logger.logError(ex);
-            return false;
+            done.accept(0);
+            return;
         }
+        if (!pendingLogins.add(login)) {
+            done.accept(0);
+            return;
+        }
+        boolean nickReserved = pendingNicknames.add(nickname);
+        if (logins != null) {
+            logins.add(login);
+            nicknames.add(nickname);
+        }
+        writer.submit(INSERT, true, (count, key, error) -> {
+            pendingLogins.remove(login);
+            if (nickReserved) pendingNicknames.remove(nickname);
+            if (error != null && !isConstraintViolation(error)) logger.logError(error);
+            done.accept(error == null ? (int)key : 0);
+        }, login, password, nickname);
     }
 
-    //добавить нового зарегистрированного пользователя
     @Override public int registerUser(String login, String password, String nickname) {
-        if (getNickname(login, password) == null) {
-            try (PreparedStatement ps = connection.prepareStatement(adjustQuery(SQL_INSERT))) {
-                ps.setString(1, login);
-                ps.setString(2, password);
-                ps.setString(3, nickname);
-                // DML-команды возвращают только число измененных строк в таблице, но не сами данные
-                if (ps.executeUpdate() > 0)
-                    return getUserId(login, password);
-            } catch (SQLException ex) { logger.logError(ex); }
-        }
-        return 0;
+        CompletableFuture<Integer> id = new CompletableFuture<>();
+        registerUser(login, password, nickname, id::complete);
+        return await(id, 0);
     }
 
     @Override public boolean isServiceActive() { return testDB(); }
 
-    // получить id пользователя в таблице БД по логину и паролю
-    private int getUserId(String login, String password) {
-        try (PreparedStatement ps = connection.prepareStatement(adjustQuery(SQL_FIND_BY_LOGIN))) {
+    // проверка занятости логина - только если в БД нет уникального указателя по нему
+    private boolean loginExists(String login) throws SQLException {
+        long start = System.nanoTime();
+        try (PooledConnection c = pool.acquire()) {
+            PreparedStatement ps = c.prepare(FIND_LOGIN);
             ps.setString(1, login);
-            ps.setString(2, password);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next())
-                return rs.getInt(1);
-        } catch (SQLException ex) { logger.logError(ex); }
-        return 0;
+            try (ResultSet rs = ps.executeQuery()) { return rs.next(); }
+        } finally { QUERY_TIME.recordSince(start); }
     }
 
     /**
@@ -173,22 +483,28 @@ public class DB implements AuthService, Mappable<UserData> {
         позволяющий обмениваться данными с БД
     **/
     @Override public void insert(UserData data) {
-        registerUser(data.getLogin(), data.getPassword(), data.getNickname());
+        int id = registerUser(data.getLogin(), data.getPassword(), data.getNickname());
+        if (id > 0) data.setId(id);
     }
 
     @Override public UserData find(Integer id) {
-        try (PreparedStatement ps = connection.prepareStatement(adjustQuery(SQL_FIND_BY_ID))) {
+        if (pool == null) return null;
+        long start = System.nanoTime();
+        try (PooledConnection c = pool.acquire()) {
+            PreparedStatement ps = c.prepare(FIND_BY_ID);
             ps.setInt(1, id);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                UserData data = new UserData(
-                        rs.getString(2),
-                        rs.getString(3),
-                        rs.getString(4));
-                data.setId(rs.getInt(1));
-                return data;
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    UserData data = new UserData(
+                            rs.getString(2),
+                            rs.getString(3),
+                            rs.getString(4));
+                    data.setId(rs.getInt(1));
+                    return data;
+                }
             }
         } catch (SQLException ex) { logger.logError(ex); }
+        finally { QUERY_TIME.recordSince(start); }
         return null;
     }
 
@@ -201,25 +517,25 @@ public class DB implements AuthService, Mappable<UserData> {
         UserData userData;
         switch (type) {
             case 1:
-                userData = new UserData(
-                        data.getLogin(),
-                        data.getPassword(),
-                        getNickname(data.getLogin(), data.getPassword()));
-                userData.setId(data.getId());
-                return userData;
+                return findByLogin(data.getLogin(), data.getPassword());
             case 2:
-                try (PreparedStatement ps = connection.prepareStatement(adjustQuery(SQL_FIND_BY_NICK))) {
+                if (pool == null || !mightContain(nicknames, data.getNickname())) return null;
+                long start = System.nanoTime();
+                try (PooledConnection c = pool.acquire()) {
+                    PreparedStatement ps = c.prepare(FIND_BY_NICK);
                     ps.setString(1, data.getNickname());
-                    ResultSet rs = ps.executeQuery();
-                    if (rs.next()) {
-                        userData = new UserData(
-                                rs.getString(2),
-                                rs.getString(3),
-                                data.getNickname());
-                        userData.setId(rs.getInt(1));
-                        return userData;
+                    try (ResultSet rs = ps.executeQuery()) {
+                        if (rs.next()) {
+                            userData = new UserData(
+                                    rs.getString(2),
+                                    rs.getString(3),
+                                    data.getNickname());
+                            userData.setId(rs.getInt(1));
+                            return userData;
+                        }
                     }
                 } catch (SQLException ex) { logger.logError(ex); }
+                finally { QUERY_TIME.recordSince(start); }
         }
         return null;
     }
@@ -232,17 +548,14 @@ public class DB implements AuthService, Mappable<UserData> {
     }
 
     @Override public void delete(UserData data) {
-        try (PreparedStatement ps = connection.prepareStatement(adjustQuery(SQL_DELETE_BY_LOGIN))) {
-            ps.setString(1, data.getLogin());
-            ps.setString(2, data.getPassword());
-            ps.executeUpdate();
-        } catch (SQLException ex) { logger.logError(ex); }
+        if (pool == null) return;
+        try { executeUpdate(DELETE_BY_LOGIN, data.getLogin(), data.getPassword()); }
+        catch (SQLException ex) { logger.logError(ex); }
     }
 
     @Override public void delete(Integer id) {
-        try (PreparedStatement ps = connection.prepareStatement(adjustQuery(SQL_DELETE_BY_ID))) {
-            ps.setInt(1, id);
-            ps.executeUpdate();
-        } catch (SQLException ex) { logger.logError(ex); }
+        if (pool == null) return;
+        try { executeUpdate(DELETE_BY_ID, id); }
+        catch (SQLException ex) { logger.logError(ex); }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,125 @@
+package authentification.service;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/*
+    фильтр занятых имен (логинов или никнеймов) перед запросами к БД
+
+    большинство проверок при смене никнейма и регистрации - для свободных имен,
+    и прежде каждая из них стоила запроса к БД; теперь имена всех пользователей
+    заносятся в фильтр Блума - если имени в нем нет, оно заведомо свободно,
+    и к БД обращаться не нужно; фильтр заполняется при запуске и пополняется
+    при регистрации и смене никнейма (освободившиеся имена в нем остаются -
+    это лишь ложные срабатывания, проверяемые по БД);
+
+    кроме того, имена, которые фильтр пропустил, но которых нет в БД,
+    недолго хранятся в кэше отсутствующих - повторные проверки до БД не доходят
+ */
+class NameFilter {
+    // биты на имя и число хэш-функций - для доли ложных срабатываний около 1%
+    private static final int BITS_PER_NAME = 10, HASHES = 7;
+    // наибольшее число имен в кэше отсутствующих - при переполнении он очищается
+    private static final int MAX_ABSENT = 10000;
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final long absentNanos;
+    private final ConcurrentHashMap<String, Long> absent = new ConcurrentHashMap<>();
+    // число добавлений - по нему видно, не добавлено ли имя, пока шел запрос к БД
+    private final AtomicLong generation = new AtomicLong();
+
+    // счетчики: отсеяно фильтром, найдено в кэше отсутствующих,
+    // проверено по БД, из них - ложных срабатываний фильтра, занесено в кэш отсутствующих
+    private final LongAdder filtered = new LongAdder(), absentHits = new LongAdder(),
+            checked = new LongAdder(), falsePositives = new LongAdder(), absentAdded = new LongAdder();
+
+    /**
+     * @param capacity ожидаемое число имен
+     * @param absentMillis время хранения имени в кэше отсутствующих
+     **/
+    NameFilter(int capacity, long absentMillis) {
+        bitCount = Math.max(64, (long)capacity * BITS_PER_NAME) + 63 & ~63L;
+        bits = new AtomicLongArray((int)(bitCount >>> 6));
+        absentNanos = TimeUnit.MILLISECONDS.toNanos(absentMillis);
+    }
+
+    void add(String name) {
+        if (name == null) return;
+        long h = hash(name);
+        int h1 = (int)h, h2 = (int)(h >>> 32);
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) % bitCount;
+            int word = (int)(bit >>> 6);
+            long mask = 1L << bit;
+            long w;
+            while (((w = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, w, w | mask));
+        }
+        generation.incrementAndGet();
+        absent.remove(name);
+    }
+
+    // получить перед запросом к БД и передать в markAbsent
+    long generation() { return generation.get(); }
+
+    /**
+     * может ли имя быть занято - только тогда его нужно проверять по БД
+     * @return false если имя заведомо свободно
+     **/
+    boolean mightContain(String name) {
+        if (name == null) return false;
+        long h = hash(name);
+        int h1 = (int)h, h2 = (int)(h >>> 32);
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) % bitCount;
+            if ((bits.get((int)(bit >>> 6)) & 1L << bit) == 0) {
+                filtered.increment();
+                return false;
+            }
+        }
+        Long until = absent.get(name);
+        if (until != null) {
+            if (until - System.nanoTime() > 0) {
+                absentHits.increment();
+                return false;
+            }
+            absent.remove(name, until);
+        }
+        checked.increment();
+        return true;
+    }
+
+    // имя, пропущенное фильтром, не нашлось в БД
+    void falsePositive() { falsePositives.increment(); }
+
+    /**
+     * запомнить отсутствие имени в БД - после falsePositive()
+     * @param since значение generation() до запроса: если с тех пор имена добавлялись,
+     *              результат запроса мог устареть, и в кэш отсутствующих имя не заносится
+     **/
+    void markAbsent(String name, long since) {
+        if (absentNanos <= 0 || generation.get() != since) return;
+        if (absent.size() >= MAX_ABSENT) absent.clear();
+        Long until = System.nanoTime() + absentNanos;
+        absent.put(name, until);
+        // добавление между проверкой и записью в кэш - запись отменяется
+        if (generation.get() != since) absent.remove(name, until);
+        else absentAdded.increment();
+    }
+
+    long getFiltered() { return filtered.sum(); }
+    long getAbsentHits() { return absentHits.sum(); }
+    long getChecked() { return checked.sum(); }
+    long getFalsePositives() { return falsePositives.sum(); }
+    long getAbsentAdded() { return absentAdded.sum(); }
+
+    // 64-битный FNV-1a по символам строки; половины дают две хэш-функции
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h ^ h >>> 29;
+    }
+}
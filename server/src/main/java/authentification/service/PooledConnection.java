@@ -0,0 +1,52 @@
+package authentification.service;
+
+import java.sql.*;
+import java.util.*;
+
+/*
+    соединение пула с кэшем подготовленных запросов;
+    запросы различаются по тексту SQL - он формируется один раз, заранее
+ */
+class PooledConnection implements AutoCloseable {
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    // запросы, возвращающие сформированные БД ключи (идентификаторы добавленных строк)
+    private final Map<String, PreparedStatement> keyed = new HashMap<>();
+
+    PooledConnection(ConnectionPool pool, Connection connection) {
+        this.pool = pool;
+        this.connection = connection;
+    }
+
+    Connection getConnection() { return connection; }
+
+    PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+        if (ps == null || ps.isClosed()) statements.put(sql, ps = connection.prepareStatement(sql));
+        else ps.clearParameters();
+        return ps;
+    }
+
+    PreparedStatement prepareReturningKeys(String sql) throws SQLException {
+        PreparedStatement ps = keyed.get(sql);
+        if (ps == null || ps.isClosed())
+            keyed.put(sql, ps = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS));
+        else ps.clearParameters();
+        return ps;
+    }
+
+    // вернуть соединение в пул
+    @Override public void close() { pool.release(this); }
+
+    void closeConnection() {
+        for (Map<String, PreparedStatement> m : Arrays.asList(statements, keyed)) {
+            for (PreparedStatement ps : m.values())
+                try { ps.close(); }
+                catch (SQLException ignored) {}
+            m.clear();
+        }
+        try { connection.close(); }
+        catch (SQLException ignored) {}
+    }
+}
@@ -1,15 +1,12 @@
 package authentification.service;
 
-import authentification.*;
-
-import java.util.*;
+import static prefs.Prefs.*;
 
+// учетные записи без БД - в хранилище в папке usersFolder; при первом запуске - тестовые
 public class Simple extends Common {
     public Simple() {
-        List<UserData> users = new ArrayList<>();
-        users.add(new UserData("qwe", "qwe", "qwe"));
-        users.add(new UserData("asd", "asd", "asd"));
-        users.add(new UserData("zxc", "zxc", "zxc"));
-        super.setUsers(users);
+        super(usersFolder);
+        if (!isServiceActive())
+            for (String s : new String[] { "qwe", "asd", "zxc" }) registerUser(s, s, s);
     }
-}
\ No newline at end of file
+}
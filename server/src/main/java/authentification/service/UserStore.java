@@ -0,0 +1,180 @@
+package authentification.service;
+
+import authentification.*;
+
+import java.io.*;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+import java.util.*;
+import java.util.zip.CRC32;
+
+/*
+    хранение учетных записей без БД: снимок и журнал изменений
+
+    снимок - все учетные записи на момент его создания, журнал - дописываемые в конец
+    записи о регистрациях и сменах никнейма после него; при запуске снимок отображается
+    в память (mmap) и разбирается без промежуточного чтения в потоки, поэтому даже
+    сотня тысяч учетных записей загружается за доли секунды;
+    когда журнал разрастается, он сворачивается в новый снимок
+
+    запись журнала: длина, CRC32 и содержимое (вид, id, строки) - недописанная
+    при аварийном завершении последняя запись распознается и отбрасывается;
+    файлы сбрасываются на диск не при каждой записи, а вызовом sync
+ */
+class UserStore {
+    private static final int SNAPSHOT_MAGIC = 0x55534E50; // "USNP"
+    private static final byte REGISTER = 'R', RENAME = 'N';
+
+    private final Path snapshot, log, temp;
+    private FileChannel logChannel;
+    private long logRecords;
+    private boolean dirty;
+
+    UserStore(String folder) throws IOException {
+        Path dir = Paths.get(folder);
+        Files.createDirectories(dir);
+        snapshot = dir.resolve("users.snap");
+        log = dir.resolve("users.log");
+        temp = dir.resolve("users.snap.tmp");
+    }
+
+    /**
+     * загрузить учетные записи: снимок и журнал после него
+     * @return учетные записи по идентификаторам
+     **/
+    Map<Integer, UserData> load() throws IOException {
+        Map<Integer, UserData> users = new HashMap<>();
+        if (Files.exists(snapshot))
+            try (FileChannel ch = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+                MappedByteBuffer bb = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                if (bb.remaining() >= 8 && bb.getInt() == SNAPSHOT_MAGIC) {
+                    int count = bb.getInt();
+                    for (int i = 0; i < count; i++) {
+                        UserData u = new UserData(getString(bb), getString(bb), getString(bb));
+                        u.setId(bb.getInt());
+                        users.put(u.getId(), u);
+                    }
+                }
+            }
+
+        logChannel = FileChannel.open(log, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = logChannel.size(), valid = 0;
+        if (size > 0) {
+            // журнал невелик (он регулярно сворачивается) и будет усекаться - читается в память
+            ByteBuffer bb = ByteBuffer.allocate((int)size);
+            while (bb.hasRemaining() && logChannel.read(bb, bb.position()) > 0);
+            bb.flip();
+            CRC32 crc = new CRC32();
+            while (bb.remaining() >= 8) {
+                int length = bb.getInt(), sum = bb.getInt();
+                if (length <= 0 || length > bb.remaining()) break;
+                ByteBuffer record = bb.slice();
+                record.limit(length);
+                crc.reset();
+                crc.update(record.duplicate());
+                if ((int)crc.getValue() != sum) break;
+                apply(record, users);
+                bb.position(bb.position() + length);
+                valid = bb.position();
+                logRecords++;
+            }
+        }
+        // недописанный конец журнала отбрасывается
+        if (valid < size) logChannel.truncate(valid);
+        logChannel.position(valid);
+        return users;
+    }
+
+    private static void apply(ByteBuffer record, Map<Integer, UserData> users) {
+        byte kind = record.get();
+        int id = record.getInt();
+        if (kind == REGISTER) {
+            UserData u = new UserData(getString(record), getString(record), getString(record));
+            u.setId(id);
+            users.put(id, u);
+        } else if (kind == RENAME) {
+            UserData u = users.get(id);
+            if (u != null) u.setNickname(getString(record));
+        }
+    }
+
+    void appendRegister(UserData u) throws IOException {
+        append(REGISTER, u.getId(), u.getLogin(), u.getPassword(), u.getNickname());
+    }
+
+    void appendRename(int id, String nickname) throws IOException { append(RENAME, id, nickname); }
+
+    private void append(byte kind, int id, String ... strings) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(kind);
+        out.writeInt(id);
+        for (String s : strings) putString(out, s);
+        byte[] b = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(b);
+        ByteBuffer bb = ByteBuffer.allocate(8 + b.length);
+        bb.putInt(b.length).putInt((int)crc.getValue()).put(b).flip();
+        while (bb.hasRemaining()) logChannel.write(bb);
+        logRecords++;
+        dirty = true;
+    }
+
+    long getLogRecords() { return logRecords; }
+
+    // сбросить журнал на диск
+    void sync() throws IOException {
+        if (!dirty) return;
+        logChannel.force(false);
+        dirty = false;
+    }
+
+    /**
+     * свернуть журнал: записать снимок всех учетных записей и очистить журнал;
+     * снимок записывается во временный файл и заменяет прежний целиком
+     **/
+    void compact(Collection<UserData> users) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temp), 64 * 1024))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(users.size());
+            for (UserData u : users) {
+                putString(out, u.getLogin());
+                putString(out, u.getPassword());
+                putString(out, u.getNickname());
+                out.writeInt(u.getId());
+            }
+        }
+        try (FileChannel ch = FileChannel.open(temp, StandardOpenOption.WRITE)) { ch.force(true); }
+        Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // записи журнала, уже вошедшие в снимок, при повторном применении ничего не меняют -
+        // сбой между заменой снимка и очисткой журнала не страшен
+        logChannel.truncate(0);
+        logChannel.position(0);
+        logChannel.force(true);
+        logRecords = 0;
+        dirty = false;
+    }
+
+    void close() throws IOException {
+        if (logChannel != null) logChannel.close();
+    }
+
+    private static void putString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(b.length);
+        out.write(b);
+    }
+
+    private static String getString(ByteBuffer bb) {
+        byte[] b = new byte[bb.getShort() & 0xffff];
+        bb.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,248 @@
+package authentification.service;
+
+import prefs.*;
+import static prefs.Prefs.*;
+import metrics.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+    отложенная запись в БД
+
+    прежде каждая регистрация и смена никнейма фиксировались собственной транзакцией,
+    а поток обработчика ждал ответа БД; в SQLite, где допустим лишь один пишущий,
+    запросы к тому же соперничали между собой (ошибки SQLITE_BUSY);
+    теперь все DML-запросы помещаются в очередь, а выполняет их единственный поток,
+    владеющий пишущим соединением: запросы, накопившиеся за несколько миллисекунд,
+    выполняются одной транзакцией, одинаковые подряд - одним executeBatch;
+    о результате запрос узнает только после фиксации транзакции, так что подтверждение
+    клиенту означает, что изменение уже сохранено;
+    сама очередь - LinkedBlockingQueue в памяти, она не сохраняется: запросы, еще не
+    записанные к моменту аварийного завершения сервера, теряются (клиенты, отправившие их,
+    подтверждения не получат); получатель результата вызывается в потоке записи и
+    должен лишь передать его дальше - например, в пул потоков сервера
+ */
+class WriteBehind {
+    // наибольшее число запросов в одной транзакции
+    private static final int MAX_BATCH = 256;
+
+    // получатель результата - вызывается в потоке записи после фиксации транзакции
+    interface Callback {
+        void done(int count, long key, SQLException error);
+    }
+
+    // запрос в очереди
+    private static final class Task {
+        final String sql;
+        final Object[] params;
+        // нужен идентификатор добавленной строки - такой запрос выполняется отдельно
+        final boolean returnKey;
+        final Callback callback;
+        final long enqueued = System.nanoTime();
+        int count;
+        long key;
+        SQLException error;
+
+        Task(String sql, Object[] params, boolean returnKey, Callback callback) {
+            this.sql = sql;
+            this.params = params;
+            this.returnKey = returnKey;
+            this.callback = callback;
+        }
+    }
+
+    // длительность транзакции и ожидание запроса в очереди до ее фиксации
+    private static final Histogram COMMIT_TIME = Metrics.histogram("db.commit", "транзакция записи в БД");
+    private static final Histogram WRITE_TIME = Metrics.histogram("db.write", "запись в БД: от очереди до фиксации");
+
+    private static final Task STOP = new Task(null, null, false, null);
+
+    private final PooledConnection connection;
+    private final long flushNanos;
+    private final EventLogger logger;
+    private final BlockingQueue<Task> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    // счетчики - только в потоке записи
+    private long statements, batches, transactions, retries, failures;
+
+    /**
+     * @param flushMillis сколько ждать следующих запросов, прежде чем выполнить транзакцию
+     **/
+    WriteBehind(Connection connection, long flushMillis, EventLogger logger) throws SQLException {
+        connection.setAutoCommit(false);
+        this.connection = new PooledConnection(null, connection);
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, flushMillis));
+        this.logger = logger;
+        writer = new Thread(this::run, "db-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * поставить DML-запрос в очередь, не дожидаясь его выполнения
+     * @param returnKey нужен идентификатор добавленной строки (для INSERT)
+     * @param callback получит число измененных строк, идентификатор или ошибку
+     **/
+    void submit(String sql, boolean returnKey, Callback callback, Object ... params) {
+        if (closed) {
+            callback.done(0, 0, new SQLException(ERR_DB_WRITER_CLOSED));
+            return;
+        }
+        queue.add(new Task(sql, params, returnKey, callback));
+    }
+
+    /**
+     * выполнить DML-запрос и дождаться фиксации транзакции, в которую он попал
+     * @return число измененных строк
+     **/
+    int executeUpdate(String sql, long timeoutMillis, Object ... params) throws SQLException {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        submit(sql, false, (count, key, error) -> {
+            if (error != null) result.completeExceptionally(error);
+            else result.complete(count);
+        }, params);
+        try {
+            return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            throw new SQLTimeoutException(String.format(ERR_DB_WRITER_TIMEOUT, timeoutMillis));
+        } catch (ExecutionException ex) {
+            throw (SQLException)ex.getCause();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(ex);
+        }
+    }
+
+    private void run() {
+        List<Task> batch = new ArrayList<>();
+        boolean stop = false;
+        while (!stop) {
+            try { batch.add(queue.take()); }
+            catch (InterruptedException ex) { continue; }
+            // запросы, пришедшие в течение промежутка ожидания, попадают в ту же транзакцию
+            long deadline = System.nanoTime() + flushNanos;
+            try {
+                long left;
+                Task t;
+                while (batch.size() < MAX_BATCH && batch.get(batch.size() - 1) != STOP
+                        && (left = deadline - System.nanoTime()) > 0
+                        && (t = queue.poll(left, TimeUnit.NANOSECONDS)) != null)
+                    batch.add(t);
+            } catch (InterruptedException ignored) {}
+            queue.drainTo(batch, MAX_BATCH - batch.size());
+            stop = batch.remove(STOP);
+            if (!batch.isEmpty()) flush(batch);
+            batch.clear();
+        }
+        // завершение: оставшиеся запросы выполняются, затем соединение закрывается
+        while (queue.drainTo(batch, MAX_BATCH) > 0) {
+            batch.remove(STOP);
+            if (!batch.isEmpty()) flush(batch);
+            batch.clear();
+        }
+        connection.closeConnection();
+    }
+
+    // запросы пакета - одной транзакцией
+    private void flush(List<Task> batch) {
+        long start = System.nanoTime();
+        Connection c = connection.getConnection();
+        try {
+            executeBatched(batch);
+            c.commit();
+            transactions++;
+        } catch (SQLException ex) {
+            // пакет отвергнут (например, нарушено ограничение уникальности) - транзакция
+            // повторяется по одному запросу, и ошибка достается только виновному
+            rollback(c);
+            retries++;
+            executeEach(batch);
+            try {
+                c.commit();
+                transactions++;
+            } catch (SQLException e) {
+                rollback(c);
+                for (Task t : batch) if (t.error == null) t.error = e;
+            }
+        }
+        long now = System.nanoTime();
+        COMMIT_TIME.record(now - start);
+        for (Task t : batch) {
+            WRITE_TIME.record(now - t.enqueued);
+            if (t.error != null) failures++;
+            else statements++;
+            try { t.callback.done(t.count, t.key, t.error); }
+            catch (RuntimeException ex) { logger.logError(ex); }
+        }
+    }
+
+    // одинаковые запросы подряд - одним executeBatch, остальные - по одному
+    private void executeBatched(List<Task> batch) throws SQLException {
+        for (int i = 0, j; i < batch.size(); i = j) {
+            Task first = batch.get(i);
+            for (j = i + 1; j < batch.size() && !first.returnKey
+                    && !batch.get(j).returnKey && batch.get(j).sql.equals(first.sql); j++);
+            if (j - i == 1) {
+                execute(first);
+                continue;
+            }
+            PreparedStatement ps = connection.prepare(first.sql);
+            for (Task t : batch.subList(i, j)) {
+                setParams(ps, t.params);
+                ps.addBatch();
+            }
+            int[] counts = ps.executeBatch();
+            batches++;
+            for (int k = i; k < j; k++)
+                batch.get(k).count = counts[k - i] == Statement.SUCCESS_NO_INFO ? 1 : counts[k - i];
+        }
+    }
+
+    private void executeEach(List<Task> batch) {
+        for (Task t : batch) {
+            t.count = 0;
+            t.key = 0;
+            t.error = null;
+            try { execute(t); }
+            catch (SQLException ex) { t.error = ex; }
+        }
+    }
+
+    private void execute(Task t) throws SQLException {
+        PreparedStatement ps = t.returnKey
+                ? connection.prepareReturningKeys(t.sql)
+                : connection.prepare(t.sql);
+        setParams(ps, t.params);
+        t.count = ps.executeUpdate();
+        if (t.returnKey && t.count > 0)
+            try (ResultSet rs = ps.getGeneratedKeys()) {
+                if (rs.next()) t.key = rs.getLong(1);
+            }
+    }
+
+    private static void setParams(PreparedStatement ps, Object[] params) throws SQLException {
+        for (int i = 0; i < params.length; i++) ps.setObject(i + 1, params[i]);
+    }
+
+    private static void rollback(Connection c) {
+        try { c.rollback(); }
+        catch (SQLException ignored) {}
+    }
+
+    String getStats() {
+        return String.format(MSG_DB_WRITER_STATS, statements, transactions,
+                transactions == 0 ? 0.0 : (double)statements / transactions, batches, retries, failures);
+    }
+
+    // дождаться выполнения уже поставленных в очередь запросов и закрыть соединение
+    void close() {
+        closed = true;
+        queue.add(STOP);
+        try { writer.join(); }
+        catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+    }
+}
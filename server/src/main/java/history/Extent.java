@@ -0,0 +1,37 @@
+package history;
+
+import java.nio.ByteBuffer;
+
+/*
+    запись указателя истории пользователя - непрерывный участок одного из источников:
+        ROOM     - общего журнала (широковещательные сообщения, пока пользователь был в чате)
+        PERSONAL - личного журнала пользователя (личные сообщения и события его сеансов)
+    границы участка - смещения в байтах, кроме того, известны номер первой строки
+    участка в источнике и число строк - участки, целиком не нужные при чтении
+    истории, пропускаются без чтения; в файле указателя запись занимает BYTES байт
+ */
+final class Extent {
+    static final byte ROOM = 'R', PERSONAL = 'P';
+    static final int BYTES = 1 + 3 * Long.BYTES + Integer.BYTES;
+
+    final byte source;
+    final long start, end;
+    final long firstLine;
+    final int lines;
+
+    Extent(byte source, long start, long end, long firstLine, long lines) {
+        this.source = source;
+        this.start = start;
+        this.end = end;
+        this.firstLine = firstLine;
+        this.lines = (int)lines;
+    }
+
+    long length() { return end - start; }
+
+    void writeTo(ByteBuffer bb) { bb.put(source).putLong(start).putLong(end).putLong(firstLine).putInt(lines); }
+
+    static Extent readFrom(ByteBuffer bb) {
+        return new Extent(bb.get(), bb.getLong(), bb.getLong(), bb.getLong(), bb.getInt());
+    }
+}
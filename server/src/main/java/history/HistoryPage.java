@@ -0,0 +1,15 @@
+package history;
+
+// страница истории пользователя: строки (каждая - с переводом строки) и их число
+public final class HistoryPage {
+    private final String text;
+    private final int lines;
+
+    HistoryPage(String text, int lines) {
+        this.text = text;
+        this.lines = lines;
+    }
+
+    public String getText() { return text; }
+    public int getLines() { return lines; }
+}
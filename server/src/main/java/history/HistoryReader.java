@@ -0,0 +1,221 @@
+package history;
+
+import java.io.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+import java.util.*;
+
+/*
+    чтение истории пользователя
+
+    прежде журнал пользователя при каждом входе читался целиком, построчно,
+    чтобы оставить из него последние 100 строк; теперь участки, перечисленные
+    в указателе, перебираются с конца (указатель тоже читается с конца, блоками),
+    участки, целиком пропускаемые при постраничном чтении, не читаются вовсе,
+    а границы нужных строк внутри участка находятся по разреженному указателю
+    строк источника (смещение каждой STEP-й строки) - читается не больше
+    STEP строк сверх нужных
+ */
+class HistoryReader {
+    // шаг разреженного указателя строк
+    static final int STEP = 64;
+    private static final int CHUNK = 64 * 1024;
+    private static final int INDEX_BLOCK = 256;
+
+    private final NavigableMap<Long, String> segments;
+
+    HistoryReader(NavigableMap<Long, String> segments) { this.segments = segments; }
+
+    /**
+     * @param tail участки, еще не записанные в указатель (текущий сеанс пользователя)
+     * @param skip число последних строк, которые нужно пропустить
+     * @param maxBytes ограничение размера страницы - более ранние строки отбрасываются
+     **/
+    HistoryPage read(String login, List<Extent> tail, int skip, int count, int maxBytes) throws IOException {
+        LinkedList<byte[]> parts = new LinkedList<>();
+        int lines = 0, bytes = 0;
+        Iterator<Extent> it = extents(login, tail);
+        while (it.hasNext() && lines < count && bytes < maxBytes) {
+            Extent e = it.next();
+            if (e.lines <= 0) continue;
+            if (skip >= e.lines) {
+                skip -= e.lines;
+                continue;
+            }
+            int take = Math.min(count - lines, e.lines - skip);
+            long last = e.firstLine + e.lines - skip;
+            long from = offsetOf(login, e, last - take), to = offsetOf(login, e, last);
+            skip = 0;
+
+            byte[] b = read(login, e.source, from, to);
+            int cut = 0;
+            if (bytes + b.length > maxBytes) {
+                // не поместившиеся строки отбрасываются с начала - целиком
+                cut = b.length - (maxBytes - bytes);
+                while (cut < b.length && b[cut - 1] != '\n') cut++;
+                take = 0;
+                for (int i = cut; i < b.length; i++) if (b[i] == '\n') take++;
+                b = Arrays.copyOfRange(b, cut, b.length);
+            }
+            parts.addFirst(b);
+            lines += take;
+            bytes += b.length;
+            if (cut > 0) break;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes);
+        for (byte[] b : parts) out.write(b, 0, b.length);
+        return new HistoryPage(new String(out.toByteArray(), StandardCharsets.UTF_8), lines);
+    }
+
+    // участки истории от последнего к первому: сначала еще не записанные, затем из указателя
+    private Iterator<Extent> extents(String login, List<Extent> tail) throws IOException {
+        Path index = Paths.get(Journal.getIndexName(login));
+        if (!Files.exists(index)) {
+            // журнал, заведенный до появления указателей, - один личный участок
+            List<Extent> list = new ArrayList<>(tail);
+            Path personal = Paths.get(Journal.getFileName(login));
+            if (list.isEmpty() && Files.exists(personal)) {
+                long size = Files.size(personal);
+                list.add(new Extent(Extent.PERSONAL, 0, size, 0, countLines(login, Extent.PERSONAL, 0, size)));
+            }
+            Collections.reverse(list);
+            return list.iterator();
+        }
+
+        return new Iterator<Extent>() {
+            private final ListIterator<Extent> pending = tail.listIterator(tail.size());
+            private long pos = -1;
+            private final ArrayDeque<Extent> block = new ArrayDeque<>();
+
+            @Override public boolean hasNext() {
+                if (pending.hasPrevious() || !block.isEmpty()) return true;
+                try { readBlock(); }
+                catch (IOException ex) { throw new UncheckedIOException(ex); }
+                return !block.isEmpty();
+            }
+
+            @Override public Extent next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return pending.hasPrevious() ? pending.previous() : block.pop();
+            }
+
+            // очередной блок записей указателя - от конца файла к началу
+            private void readBlock() throws IOException {
+                try (FileChannel ch = FileChannel.open(index, StandardOpenOption.READ)) {
+                    if (pos < 0) pos = ch.size() - ch.size() % Extent.BYTES;
+                    if (pos == 0) return;
+                    int n = (int)Math.min(INDEX_BLOCK, pos / Extent.BYTES);
+                    pos -= (long)n * Extent.BYTES;
+                    ByteBuffer bb = ByteBuffer.allocate(n * Extent.BYTES);
+                    readFully(ch, bb, pos);
+                    bb.flip();
+                    while (bb.remaining() >= Extent.BYTES) block.push(Extent.readFrom(bb));
+                }
+            }
+        };
+    }
+
+    // смещение начала строки с номером line, принадлежащей участку (или его конца)
+    private long offsetOf(String login, Extent e, long line) throws IOException {
+        if (line <= e.firstLine) return e.start;
+        if (line >= e.firstLine + e.lines) return e.end;
+        long from = e.start, fromLine = e.firstLine;
+        long checkpoint = line / STEP * STEP;
+        if (checkpoint > e.firstLine) {
+            long offset = checkpoint(e.source == Extent.ROOM ? Journal.getRoomLinesName()
+                    : Journal.getLinesName(login), checkpoint / STEP);
+            if (offset > from && offset <= e.end) {
+                from = offset;
+                fromLine = checkpoint;
+            }
+        }
+        // от ближайшей отметки - вперед до нужной строки
+        long need = line - fromLine;
+        if (need == 0) return from; // строка начинается точно на отметке
+        while (from < e.end) {
+            byte[] b = read(login, e.source, from, Math.min(e.end, from + CHUNK));
+            if (b.length == 0) break;
+            for (int i = 0; i < b.length; i++)
+                if (b[i] == '\n' && --need == 0) return from + i + 1;
+            from += b.length;
+        }
+        return e.end;
+    }
+
+    // смещение строки с номером n * STEP по разреженному указателю строк, -1 если его нет
+    private static long checkpoint(String linesName, long n) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(linesName), StandardOpenOption.READ)) {
+            long pos = (n - 1) * Long.BYTES;
+            if (pos + Long.BYTES > ch.size()) return -1;
+            ByteBuffer bb = ByteBuffer.allocate(Long.BYTES);
+            readFully(ch, bb, pos);
+            return bb.getLong(0);
+        } catch (NoSuchFileException ex) { return -1; }
+    }
+
+    /**
+     * перебрать концы строк в пределах [from, to) источника
+     * @return число строк
+     **/
+    long countLines(String login, byte source, long from, long to) throws IOException {
+        return scanLines(login, source, from, to, null);
+    }
+
+    interface LineVisitor { void lineEnd(long offset); }
+
+    long scanLines(String login, byte source, long from, long to, LineVisitor visitor) throws IOException {
+        long lines = 0;
+        while (from < to) {
+            byte[] b = read(login, source, from, Math.min(to, from + CHUNK));
+            if (b.length == 0) break;
+            for (int i = 0; i < b.length; i++)
+                if (b[i] == '\n') {
+                    lines++;
+                    if (visitor != null) visitor.lineEnd(from + i + 1);
+                }
+            from += b.length;
+        }
+        return lines;
+    }
+
+    // байты источника в пределах [start, end); участок общего журнала может занимать несколько сегментов
+    byte[] read(String login, byte source, long start, long end) throws IOException {
+        if (source == Extent.PERSONAL)
+            return read(Journal.getFileName(login), start, end);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int)Math.min(end - start, CHUNK));
+        long pos = start;
+        while (pos < end) {
+            Map.Entry<Long, String> seg = segments.floorEntry(pos);
+            if (seg == null) break;
+            Long next = segments.higherKey(seg.getKey());
+            long to = next == null ? end : Math.min(end, next);
+            byte[] b = read(seg.getValue(), pos - seg.getKey(), to - seg.getKey());
+            out.write(b, 0, b.length);
+            if (b.length < to - pos) break;
+            pos = to;
+        }
+        return out.toByteArray();
+    }
+
+    // байты из файла в пределах [start, end), но не дальше его конца
+    private static byte[] read(String fileName, long start, long end) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            end = Math.min(end, ch.size());
+            if (end <= start) return new byte[0];
+            ByteBuffer bb = ByteBuffer.allocate((int)(end - start));
+            readFully(ch, bb, start);
+            return bb.array();
+        } catch (NoSuchFileException ex) { return new byte[0]; }
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer bb, long position) throws IOException {
+        while (bb.hasRemaining())
+            if (ch.read(bb, position + bb.position()) < 0) throw new EOFException();
+    }
+}
@@ -0,0 +1,701 @@
+/*
+    пакет содержит средства хранения истории сообщений пользователей
+*/
+package history;
+
+import prefs.*;
+import static prefs.Prefs.*;
+import metrics.*;
+
+import java.io.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    журналы (истории сообщений) пользователей
+
+    прежде каждая строка записывалась в файл и сбрасывалась (flush) в том потоке,
+    который доставлял сообщение, - широковещательная рассылка N пользователям
+    выполняла N синхронных записей в файлы прямо в цикле рассылки;
+
+    теперь строки только помещаются в неблокирующую очередь, а в файлы их записывает
+    отдельный поток - накопившиеся строки каждого файла одним вызовом (групповая запись);
+    когда записывать накопленное в файлы и когда сбрасывать файлы на диск (fsync),
+    определяется параметрами: через N мс, через N строк (0 - не использовать),
+    а при завершении работы - в любом случае
+
+    кроме того, широковещательное сообщение прежде записывалось целиком в журнал
+    каждого получателя - объем и число записей росли как сообщения × пользователи;
+    теперь оно записывается один раз в общий журнал (разбитый на сегменты), в личный
+    журнал пользователя попадают только его личные сообщения и события его сеансов,
+    а указатель истории пользователя перечисляет участки обоих журналов -
+    общего за время, пока пользователь был в чате, и личного - в порядке их появления
+ */
+public class Journal {
+    // наибольшее число одновременно открытых файлов журналов
+    private static final int MAX_OPEN_FILES = 256;
+    // наибольшее число личных журналов, размер и число строк которых хранятся в памяти
+    private static final int MAX_TRACKED_FILES = 4096;
+    // ограничение размера страницы истории - с запасом относительно 64 КБ кадра
+    private static final int MAX_PAGE_BYTES = 60 * 1024;
+    private static final String ROOM_FOLDER = Prefs.historyFolder + File.separator + "room";
+
+    private static final int PERSONAL = 0, ROOM = 1, OPEN = 2, CLOSE = 3, SYNC = 4, WARM = 5;
+
+    // шаблоны строк даты и времени, разбитые по %s: строка журнала собирается
+    // потоком-писателем из их байтов, готовых байтов даты и времени TimeVisor и текста
+    private static final byte[][] DATE_LINE = split(MSG_CURRENT_DATE), TIME_LINE = split(MSG_CURRENT_TIME);
+
+    // запись очереди: строка журнала (уже оформленная для записи в файл или текст
+    // с отметкой времени), вход/выход пользователя или отметка, по достижении которой
+    // писатель сообщает, что все помещенное в очередь до нее уже записано в файлы
+    private static final class Record {
+        final int kind;
+        final String login, text;
+        final CountDownLatch written;
+        // байты времени (и даты, если перед строкой нужна строка даты) на момент добавления
+        byte[] time, date;
+        // участки текущего сеанса пользователя, еще не попавшие в указатель
+        List<Extent> tail;
+        // последние строки истории: сколько нужно, найденные в памяти,
+        // признак того, что прочитанными с диска строками нужно заполнить кэш
+        int number;
+        byte[] recent;
+        boolean warm;
+
+        Record(int kind, String login, String text, CountDownLatch written) {
+            this.kind = kind;
+            this.login = login;
+            this.text = text;
+            this.written = written;
+        }
+    }
+
+    // сеанс пользователя, находящегося в чате
+    private static final class Session {
+        long roomFrom, roomFromLine;      // начало еще не учтенного участка общего журнала
+        long personalFrom = -1, personalFromLine, personalTo, personalToLine; // и личного
+        boolean indexed;                  // указатель уже существует
+        RecentLines recent;               // последние строки истории в памяти
+    }
+
+    // длительность записи накопленного в файлы и сброса файла на диск
+    private static final Histogram WRITE_TIME = Metrics.histogram("history.write", "запись журналов истории"),
+            FSYNC_TIME = Metrics.histogram("history.fsync", "сброс журнала истории на диск");
+
+    private final long flushNanos, fsyncNanos;
+    private final int flushRecords, fsyncRecords;
+    private final long segmentBytes;
+    private final int cacheLines;
+    private final long cacheBytes;
+    private final EventLogger logger;
+
+    private final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<>();
+    private final Thread writer;
+    // писатель ждет новых записей - его нужно разбудить
+    private volatile boolean sleeping;
+    private volatile boolean closed;
+
+    // сегменты общего журнала: смещение начала -> имя файла
+    private final ConcurrentSkipListMap<Long, String> segments = new ConcurrentSkipListMap<>();
+    private final HistoryReader reader = new HistoryReader(segments);
+
+    // далее - состояние, принадлежащее только потоку-писателю:
+    // накопленные, но еще не записанные байты каждого файла
+    private final Map<String, ByteArrayOutputStream> pending = new LinkedHashMap<>();
+    private int pendingRecords;
+    private long firstPending;
+    // записанные, но еще не сброшенные на диск файлы
+    private final Set<String> unsynced = new HashSet<>();
+    private int unsyncedRecords;
+    private long firstUnsynced;
+    // открытые файлы - давно не использовавшиеся закрываются
+    private final LinkedHashMap<String, FileChannel> files = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Session> sessions = new HashMap<>();
+    // размер и число строк личных журналов (с учетом еще не записанного) - {строки, байты};
+    // давно не использовавшиеся забываются, но только когда все их байты уже записаны
+    private final LinkedHashMap<String, long[]> personal = new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+            return size() > MAX_TRACKED_FILES
+                    && !pending.containsKey(getFileName(eldest.getKey()))
+                    && !pending.containsKey(getLinesName(eldest.getKey()));
+        }
+    };
+    private long roomOffset;  // конец общего журнала (с учетом еще не записанного)
+    private final long[] roomLines = new long[1]; // число строк в нем
+    private long roomDay = -1; // день последней строки общего журнала
+    // последние строки истории пользователей - в пределах общего ограничения памяти;
+    // давно не использовавшиеся вытесняются
+    private final LinkedHashMap<String, RecentLines> recent = new LinkedHashMap<>(16, 0.75f, true);
+    // последние строки общего журнала - одна копия, на которую ссылаются кэши пользователей
+    private final RoomTail roomTail;
+    private long recentBytes;
+
+    // счетчики
+    private volatile long appended, roomAppended, writes, fsyncs;
+    private volatile long cacheHits, cacheMisses, cacheEvictions;
+
+    /**
+     * @param cacheLines сколько последних строк истории каждого пользователя держать в памяти
+     * @param cacheBytes ограничение памяти для них всех
+     **/
+    public Journal(long flushMillis, int flushRecords, long fsyncMillis, int fsyncRecords,
+                   long segmentBytes, int cacheLines, long cacheBytes, EventLogger logger) {
+        this.flushNanos = TimeUnit.MILLISECONDS.toNanos(flushMillis);
+        this.flushRecords = flushRecords;
+        this.fsyncNanos = TimeUnit.MILLISECONDS.toNanos(fsyncMillis);
+        this.fsyncRecords = fsyncRecords;
+        this.segmentBytes = Math.max(1, segmentBytes);
+        this.cacheLines = cacheLines;
+        this.cacheBytes = cacheBytes;
+        this.logger = logger;
+        loadSegments();
+        roomTail = new RoomTail(cacheLines, roomOffset, roomLines[0]);
+        writer = new Thread(this::run, "journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public static String getFileName(String login) {
+        return Prefs.historyFolder + File.separator + Prefs.historyFolder + "_" + login + ".txt";
+    }
+
+    static String getIndexName(String login) {
+        return Prefs.historyFolder + File.separator + Prefs.historyFolder + "_" + login + ".idx";
+    }
+
+    // разреженные указатели строк - смещения начала каждой STEP-й строки
+    static String getLinesName(String login) {
+        return Prefs.historyFolder + File.separator + Prefs.historyFolder + "_" + login + ".lix";
+    }
+
+    static String getRoomLinesName() { return ROOM_FOLDER + File.separator + "room.lix"; }
+
+    private static String getSegmentName(long base) {
+        return ROOM_FOLDER + File.separator + String.format("room_%020d.txt", base);
+    }
+
+    // сегменты общего журнала, оставшиеся от прежних запусков
+    private void loadSegments() {
+        File[] list = new File(ROOM_FOLDER).listFiles((dir, name) -> name.matches("room_\\d{20}\\.txt"));
+        if (list == null) return;
+        for (File f : list) segments.put(Long.parseLong(f.getName().substring(5, 25)), f.getPath());
+        if (!segments.isEmpty())
+            roomOffset = segments.lastKey() + new File(segments.lastEntry().getValue()).length();
+        try { roomLines[0] = countLines(null, Extent.ROOM, getRoomLinesName(), roomOffset); }
+        catch (IOException ex) { logger.logError(ex); }
+    }
+
+    // добавить строки в личный журнал пользователя - вызывающий поток не ждет записи
+    public void append(String login, String text) {
+        if (login == null || text == null || text.length() == 0) return;
+        enqueue(new Record(PERSONAL, login, text, null));
+    }
+
+    /**
+     * добавить в личный журнал строку с текущим временем - оформляет ее поток-писатель
+     * @param newDay перед строкой нужна строка с датой
+     **/
+    public void appendLine(String login, String matter, boolean newDay) {
+        if (login == null || matter == null || matter.length() == 0) return;
+        Record r = new Record(PERSONAL, login, matter, null);
+        r.time = TimeVisor.getCurrentTimeBytes();
+        if (newDay) r.date = TimeVisor.getCurrentDateBytes();
+        enqueue(r);
+    }
+
+    // добавить строку с текущим временем в общий журнал - один раз,
+    // сколько бы пользователей ее ни получили
+    public void appendRoomLine(String matter) {
+        if (matter == null || matter.length() == 0) return;
+        Record r = new Record(ROOM, null, matter, null);
+        r.time = TimeVisor.getCurrentTimeBytes();
+        enqueue(r);
+    }
+
+    // пользователь вошел в чат - с этого момента ему принадлежит и общий журнал
+    public void open(String login) { if (login != null) enqueue(new Record(OPEN, login, null, null)); }
+
+    public void close(String login) { if (login != null) enqueue(new Record(CLOSE, login, null, null)); }
+
+    /**
+     * дождаться записи в файлы всех строк, добавленных до вызова, -
+     * перед чтением журнала, чтобы в прочитанном были и последние строки
+     * @return false если ожидание прервано или превысило заданное время
+     **/
+    public boolean sync(long timeoutMillis) { return sync(null, 0, timeoutMillis) != null; }
+
+    private Record sync(String login, int number, long timeoutMillis) {
+        Record r = new Record(SYNC, login, null, new CountDownLatch(1));
+        r.number = number;
+        if (closed) {
+            r.tail = new ArrayList<>();
+            return r;
+        }
+        enqueue(r);
+        try { return r.written.await(timeoutMillis, TimeUnit.MILLISECONDS) ? r : null; }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * последние строки истории пользователя - из общего и личного журналов
+     * @return null если ожидание записи журнала превысило заданное время
+     **/
+    public String readLast(String login, int number, long timeoutMillis) throws IOException {
+        Record r = sync(login, number <= cacheLines ? number : 0, timeoutMillis);
+        if (r == null) return null;
+        // строки нашлись в памяти - файлы не читаются
+        if (r.recent != null) return new String(r.recent, StandardCharsets.UTF_8);
+        // кэш заполняется всеми строками, которые он должен хранить, а не только запрошенными, -
+        // иначе следующий запрос большего числа строк получил бы из него лишь эти
+        HistoryPage page = reader.read(login, r.tail, 0, r.warm ? cacheLines : number, MAX_PAGE_BYTES);
+        String text = page.getText();
+        if (r.warm) {
+            Record w = new Record(WARM, login, null, null);
+            w.recent = text.getBytes(StandardCharsets.UTF_8);
+            enqueue(w);
+        }
+        if (page.getLines() > number) {
+            int from = text.length() - 1;
+            for (int n = 0; n < number; n++) from = text.lastIndexOf('\n', from - 1);
+            text = text.substring(from + 1);
+        }
+        return text;
+    }
+
+    /**
+     * страница истории пользователя: count строк, предшествующих skip последним
+     * (страница ограничена по размеру - строк может оказаться меньше)
+     * @return null если ожидание записи журнала превысило заданное время
+     **/
+    public HistoryPage readPage(String login, int skip, int count, long timeoutMillis) throws IOException {
+        Record r = sync(login, 0, timeoutMillis);
+        return r == null ? null : reader.read(login, r.tail, skip, count, MAX_PAGE_BYTES);
+    }
+
+    private void enqueue(Record r) {
+        if (closed && r.kind != SYNC) {
+            logger.logError(String.format(ERR_JOURNAL_FILE, r.login == null ? ROOM_FOLDER : r.login));
+            return;
+        }
+        queue.add(r);
+        if (sleeping) LockSupport.unpark(writer);
+    }
+
+    // записать накопленное, сбросить на диск и закрыть файлы
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try { writer.join(); }
+        catch (InterruptedException ex) { logger.logError(ex); }
+        logger.info(String.format(MSG_JOURNAL_STATS, appended, roomAppended, writes, fsyncs));
+        long lookups = cacheHits + cacheMisses;
+        logger.info(String.format(MSG_HISTORY_CACHE_STATS, cacheHits, cacheMisses,
+                lookups == 0 ? 0.0 : 100.0 * cacheHits / lookups, cacheEvictions, recentBytes));
+    }
+
+    // ------------------------------ поток-писатель ------------------------------
+    private void run() {
+        for (;;) {
+            Record r;
+            while ((r = queue.poll()) != null) {
+                process(r);
+                if (flushRecords > 0 && pendingRecords >= flushRecords) writePending();
+            }
+
+            long now = System.nanoTime();
+            if (pendingRecords > 0 && flushNanos > 0 && now - firstPending >= flushNanos)
+                writePending();
+            if (unsyncedRecords > 0 && (fsyncRecords > 0 && unsyncedRecords >= fsyncRecords
+                    || fsyncNanos > 0 && now - firstUnsynced >= fsyncNanos))
+                syncFiles();
+
+            if (closed && queue.isEmpty()) break;
+
+            // ждать новых записей или наступления срока записи/сброса на диск
+            long wait = Long.MAX_VALUE;
+            if (pendingRecords > 0 && flushNanos > 0) wait = firstPending + flushNanos - now;
+            if (unsyncedRecords > 0 && fsyncNanos > 0)
+                wait = Math.min(wait, firstUnsynced + fsyncNanos - now);
+            sleeping = true;
+            if (queue.isEmpty() && !closed) {
+                if (wait == Long.MAX_VALUE) LockSupport.park(this);
+                else if (wait > 0) LockSupport.parkNanos(this, wait);
+            }
+            sleeping = false;
+        }
+        // сеансы, не закрытые к завершению работы, закрываются здесь
+        for (String login : new ArrayList<>(sessions.keySet()))
+            try { closeSession(login); }
+            catch (IOException ex) { logger.logError(ex); }
+        writePending();
+        syncFiles();
+        for (FileChannel ch : files.values())
+            try { ch.close(); }
+            catch (IOException ex) { logger.logError(ex); }
+        files.clear();
+    }
+
+    private void process(Record r) {
+        try {
+            switch (r.kind) {
+                case PERSONAL:
+                    appendPersonal(r.login, line(r));
+                    break;
+                case ROOM:
+                    appendRoom(line(r));
+                    break;
+                case OPEN:
+                    if (!sessions.containsKey(r.login)) {
+                        Session s = new Session();
+                        s.roomFrom = roomOffset;
+                        s.roomFromLine = roomLines[0];
+                        s.recent = recent.get(r.login);
+                        if (s.recent != null) s.recent.openRoom();
+                        sessions.put(r.login, s);
+                    }
+                    break;
+                case CLOSE:
+                    closeSession(r.login);
+                    break;
+                case WARM:
+                    RecentLines lines = recent.get(r.login);
+                    if (lines != null && !lines.isComplete()) {
+                        recentBytes += lines.warm(r.recent);
+                        evictRecent();
+                    }
+                    break;
+                case SYNC:
+                    if (r.login != null && r.number > 0) findRecent(r);
+                    if (r.login != null && r.recent == null) {
+                        r.tail = new ArrayList<>(2);
+                        Session s = sessions.get(r.login);
+                        if (s != null) {
+                            if (s.personalFrom >= 0) r.tail.add(personalExtent(s));
+                            if (roomOffset > s.roomFrom) r.tail.add(roomExtent(s));
+                        }
+                    }
+            }
+        } catch (IOException ex) { logger.logError(ex); }
+        finally {
+            if (r.kind == SYNC) {
+                // строки, найденные в памяти, не требуют записи файлов до чтения
+                if (r.recent == null) writePending();
+                r.written.countDown();
+            }
+        }
+    }
+
+    /*
+        последние строки истории - из памяти; если их там нет, создается пустой кэш,
+        в который с этого момента попадают новые строки, а прочитанные с диска
+        (по состоянию файлов на этот момент) будут добавлены перед ними
+     */
+    private void findRecent(Record r) {
+        RecentLines lines = recent.get(r.login);
+        if (lines != null && lines.isComplete()) {
+            r.recent = lines.last(r.number, MAX_PAGE_BYTES);
+            // нужные строки общего журнала уже вытеснены из памяти - они читаются с диска
+            if (r.recent != null) cacheHits++;
+            else cacheMisses++;
+            return;
+        }
+        cacheMisses++;
+        if (lines == null) {
+            lines = new RecentLines(cacheLines, roomTail);
+            recent.put(r.login, lines);
+            Session s = sessions.get(r.login);
+            if (s != null) {
+                s.recent = lines;
+                lines.openRoom();
+            }
+        }
+        r.warm = true;
+    }
+
+    private void addRecent(RecentLines lines, byte[] b) {
+        recentBytes += lines.add(b);
+        evictRecent();
+    }
+
+    // вытеснить давно не использовавшиеся строки, пока не выполнится ограничение памяти
+    private void evictRecent() {
+        Iterator<Map.Entry<String, RecentLines>> it = recent.entrySet().iterator();
+        while (recentBytes > cacheBytes && it.hasNext()) {
+            Map.Entry<String, RecentLines> e = it.next();
+            it.remove();
+            recentBytes -= e.getValue().getBytes();
+            Session s = sessions.get(e.getKey());
+            if (s != null) s.recent = null;
+            cacheEvictions++;
+        }
+    }
+
+    private void appendPersonal(String login, byte[] b) throws IOException {
+        String name = getFileName(login);
+        long[] p = personalState(login);
+        Session s = sessions.get(login);
+        // участки записываются в указатель, только когда за ними появляется участок
+        // другого источника - подряд идущие личные строки дают один участок;
+        // полученное из общего журнала до этой строки попадает в указатель, пока ее байты
+        // не учтены в размере личного журнала, - иначе при первом участке сеанса
+        // строка была бы принята за часть журнала, заведенного до появления указателей
+        if (s != null && roomOffset > s.roomFrom) {
+            flushPersonal(login, s);
+            addExtent(login, s, roomExtent(s));
+            s.roomFrom = roomOffset;
+            s.roomFromLine = roomLines[0];
+        }
+        long start = p[1], firstLine = p[0];
+        accumulate(name, b);
+        p[1] += b.length;
+        track(getLinesName(login), start, b, p);
+        appended++;
+        RecentLines lines = recent.get(login);
+        if (lines != null) addRecent(lines, b);
+
+        if (s == null) {
+            addExtent(login, null, new Extent(Extent.PERSONAL, start, p[1], firstLine, p[0] - firstLine));
+            return;
+        }
+        if (s.personalFrom >= 0 && s.personalTo != start) flushPersonal(login, s);
+        if (s.personalFrom < 0) {
+            s.personalFrom = start;
+            s.personalFromLine = firstLine;
+        }
+        s.personalTo = p[1];
+        s.personalToLine = p[0];
+    }
+
+    private void appendRoom(byte[] b) {
+        long day = TimeVisor.getDay();
+        if (day != roomDay) {
+            roomDay = day;
+            appendRoomBytes(compose(DATE_LINE, TimeVisor.getCurrentDateBytes()));
+        }
+        appendRoomBytes(b);
+        roomAppended++;
+    }
+
+    // байты строки записи: текст - как есть или по шаблону, с датой и временем
+    private static byte[] line(Record r) {
+        byte[] text = r.text.getBytes(StandardCharsets.UTF_8);
+        if (r.time == null) return text;
+        byte[] line = compose(TIME_LINE, r.time, text);
+        return r.date == null ? line : compose(DATE_LINE, r.date, line);
+    }
+
+    private static byte[][] split(String format) {
+        String[] parts = format.split("%s", -1);
+        byte[][] b = new byte[parts.length][];
+        for (int i = 0; i < parts.length; i++) b[i] = parts[i].getBytes(StandardCharsets.UTF_8);
+        return b;
+    }
+
+    // шаблон, в котором на месте %s - значения (последнее может дописываться после шаблона)
+    private static byte[] compose(byte[][] format, byte[]... values) {
+        int size = 0;
+        for (byte[] p : format) size += p.length;
+        for (byte[] v : values) size += v.length;
+        byte[] b = new byte[size];
+        int pos = 0;
+        for (int i = 0; i < Math.max(format.length, values.length); i++) {
+            if (i < format.length) {
+                System.arraycopy(format[i], 0, b, pos, format[i].length);
+                pos += format[i].length;
+            }
+            if (i < values.length) {
+                System.arraycopy(values[i], 0, b, pos, values[i].length);
+                pos += values[i].length;
+            }
+        }
+        return b;
+    }
+
+    // сегмент заканчивается на границе строки, как только превысит заданный размер
+    private void appendRoomBytes(byte[] b) {
+        Map.Entry<Long, String> last = segments.lastEntry();
+        if (last == null || roomOffset - last.getKey() >= segmentBytes)
+            segments.put(roomOffset, getSegmentName(roomOffset));
+        accumulate(segments.lastEntry().getValue(), b);
+        track(getRoomLinesName(), roomOffset, b, roomLines);
+        // строка попадает в кэш находящихся в чате одной копией - их кэши ссылаются
+        // на открытые участки общего журнала и при рассылке не изменяются
+        if (cacheLines > 0) {
+            recentBytes += roomTail.add(roomOffset, b);
+            evictRecent();
+        }
+        roomOffset += b.length;
+    }
+
+    private void closeSession(String login) throws IOException {
+        Session s = sessions.remove(login);
+        if (s == null) return;
+        if (s.recent != null) recentBytes += s.recent.closeRoom();
+        flushPersonal(login, s);
+        if (roomOffset > s.roomFrom) addExtent(login, s, roomExtent(s));
+    }
+
+    private void flushPersonal(String login, Session s) throws IOException {
+        if (s.personalFrom < 0) return;
+        addExtent(login, s, personalExtent(s));
+        s.personalFrom = -1;
+    }
+
+    private Extent personalExtent(Session s) {
+        return new Extent(Extent.PERSONAL, s.personalFrom, s.personalTo,
+                s.personalFromLine, s.personalToLine - s.personalFromLine);
+    }
+
+    private Extent roomExtent(Session s) {
+        return new Extent(Extent.ROOM, s.roomFrom, roomOffset, s.roomFromLine, roomLines[0] - s.roomFromLine);
+    }
+
+    private void addExtent(String login, Session s, Extent e) throws IOException {
+        String name = getIndexName(login);
+        // журнал, заведенный до появления указателей, целиком становится первым участком
+        if (s == null || !s.indexed) {
+            if (!pending.containsKey(name) && !files.containsKey(name) && !new File(name).exists()) {
+                long[] p = personalState(login);
+                long old = e.source == Extent.PERSONAL ? e.start : p[1];
+                long oldLines = e.source == Extent.PERSONAL ? e.firstLine : p[0];
+                if (old > 0) addExtent(name, new Extent(Extent.PERSONAL, 0, old, 0, oldLines));
+            }
+            if (s != null) s.indexed = true;
+        }
+        addExtent(name, e);
+    }
+
+    // размер и число строк личного журнала
+    private long[] personalState(String login) throws IOException {
+        long[] p = personal.get(login);
+        if (p == null) {
+            long size = new File(getFileName(login)).length();
+            p = new long[] { countLines(login, Extent.PERSONAL, getLinesName(login), size), size };
+            personal.put(login, p);
+        }
+        return p;
+    }
+
+    /*
+        число строк источника - по разреженному указателю строк и хвосту после последней
+        отметки в нем; для журнала, заведенного до появления указателей (или указатель
+        которого отстал), недостающие отметки добавляются здесь же
+     */
+    private long countLines(String login, byte source, String linesName, long end) throws IOException {
+        File lix = new File(linesName);
+        long entries = lix.length() / Long.BYTES;
+        long from = 0;
+        if (entries > 0)
+            try (RandomAccessFile f = new RandomAccessFile(lix, "r")) {
+                f.seek((entries - 1) * Long.BYTES);
+                from = f.readLong();
+            }
+        long[] lines = { entries * HistoryReader.STEP };
+        reader.scanLines(login, source, from, end, offset -> {
+            if (++lines[0] % HistoryReader.STEP == 0) addCheckpoint(linesName, offset);
+        });
+        return lines[0];
+    }
+
+    // учесть строки добавленных байтов, отмечая в разреженном указателе каждую STEP-ю
+    private void track(String linesName, long offset, byte[] b, long[] lines) {
+        for (int i = 0; i < b.length; i++)
+            if (b[i] == '\n' && ++lines[0] % HistoryReader.STEP == 0)
+                addCheckpoint(linesName, offset + i + 1);
+    }
+
+    private void addCheckpoint(String linesName, long offset) {
+        ByteBuffer bb = ByteBuffer.allocate(Long.BYTES);
+        bb.putLong(offset);
+        accumulate(linesName, bb.array());
+    }
+
+    private void addExtent(String indexName, Extent e) {
+        ByteBuffer bb = ByteBuffer.allocate(Extent.BYTES);
+        e.writeTo(bb);
+        accumulate(indexName, bb.array());
+    }
+
+    private void accumulate(String name, byte[] b) {
+        ByteArrayOutputStream buf = pending.get(name);
+        if (buf == null) pending.put(name, buf = new ByteArrayOutputStream(256));
+        buf.write(b, 0, b.length);
+        if (pendingRecords++ == 0) firstPending = System.nanoTime();
+    }
+
+    // записать накопленные байты - одним вызовом на файл
+    private void writePending() {
+        if (pendingRecords == 0) return;
+        long start = System.nanoTime();
+        for (Map.Entry<String, ByteArrayOutputStream> e : pending.entrySet()) {
+            String name = e.getKey();
+            try {
+                FileChannel ch = openFile(name);
+                ByteBuffer bb = ByteBuffer.wrap(e.getValue().toByteArray());
+                while (bb.hasRemaining()) ch.write(bb);
+                writes++;
+                unsynced.add(name);
+            } catch (IOException ex) { logger.logError(ex); }
+        }
+        if (unsyncedRecords == 0) firstUnsynced = System.nanoTime();
+        unsyncedRecords += pendingRecords;
+        pending.clear();
+        pendingRecords = 0;
+        WRITE_TIME.recordSince(start);
+    }
+
+    private void syncFiles() {
+        for (String name : unsynced) {
+            FileChannel ch = files.get(name);
+            if (ch != null) force(ch);
+        }
+        unsynced.clear();
+        unsyncedRecords = 0;
+    }
+
+    private void force(FileChannel ch) {
+        try {
+            long start = System.nanoTime();
+            ch.force(false);
+            FSYNC_TIME.recordSince(start);
+            fsyncs++;
+        } catch (IOException ex) { logger.logError(ex); }
+    }
+
+    private FileChannel openFile(String name) throws IOException {
+        FileChannel ch = files.get(name);
+        if (ch != null) return ch;
+
+        File folder = new File(name).getParentFile();
+        if (!(folder.exists() ? folder.isDirectory() : folder.mkdirs()))
+            throw new IOException(String.format(ERR_LOG_FOLDER_CREATION, folder));
+        try {
+            ch = FileChannel.open(Paths.get(name),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException ex) {
+            throw new IOException(String.format(ERR_JOURNAL_FILE, name), ex);
+        }
+
+        if (files.size() >= MAX_OPEN_FILES) {
+            Iterator<Map.Entry<String, FileChannel>> it = files.entrySet().iterator();
+            Map.Entry<String, FileChannel> eldest = it.next();
+            it.remove();
+            // закрываемый файл, ожидающий сброса на диск, сбрасывается сейчас
+            if (unsynced.remove(eldest.getKey())) force(eldest.getValue());
+            eldest.getValue().close();
+        }
+        files.put(name, ch);
+        return ch;
+    }
+}
@@ -0,0 +1,182 @@
+package history;
+
+import java.util.*;
+
+/*
+    последние строки истории пользователя в памяти - в том виде, в каком они
+    записаны в журналы (UTF-8), без преобразования в String;
+    хранятся записи журнала (запись может состоять из нескольких строк) -
+    не меньше capacity последних строк;
+    широковещательные сообщения хранятся не строками, а границами участков
+    общего журнала, полученных пользователем, - сами строки один раз для всех
+    находятся в RoomTail; пока пользователь в чате, последний участок открыт,
+    и рассылка сообщения не затрагивает кэши находящихся в чате
+
+    принадлежит потоку-писателю журнала
+ */
+final class RecentLines {
+    // приблизительные накладные расходы на запись (ссылка и заголовок массива)
+    private static final int OVERHEAD = 24;
+
+    // строки личного журнала (или прочитанные с диска) либо участок общего журнала
+    private static final class Entry {
+        final byte[] bytes; // null - участок общего журнала [from, to)
+        final long from, to;
+        final int lines;
+
+        Entry(byte[] bytes) {
+            this.bytes = bytes;
+            this.from = this.to = 0;
+            this.lines = count(bytes);
+        }
+
+        Entry(long from, long to, int lines) {
+            this.bytes = null;
+            this.from = from;
+            this.to = to;
+            this.lines = lines;
+        }
+
+        long size() { return bytes == null ? OVERHEAD : bytes.length + OVERHEAD; }
+    }
+
+    private final int capacity;
+    private final RoomTail room;
+    private final ArrayDeque<Entry> records = new ArrayDeque<>();
+    private int lines;
+    private long bytes;
+    // содержит все последние строки истории (заполнен с диска), а не только добавленные после создания
+    private boolean complete;
+    // пользователь в чате - его истории принадлежит общий журнал с этого места
+    private long roomFrom = -1, roomFromLine;
+
+    RecentLines(int capacity, RoomTail room) {
+        this.capacity = capacity;
+        this.room = room;
+    }
+
+    boolean isComplete() { return complete; }
+    long getBytes() { return bytes; }
+
+    // пользователь вошел в чат
+    void openRoom() {
+        if (roomFrom >= 0) return;
+        roomFrom = room.end();
+        roomFromLine = room.endLine();
+    }
+
+    // пользователь вышел из чата; возвращается изменение занимаемой памяти
+    long closeRoom() {
+        long before = bytes;
+        cutRoom();
+        roomFrom = -1;
+        trim();
+        return bytes - before;
+    }
+
+    // добавить запись личного журнала; возвращается изменение занимаемой памяти
+    long add(byte[] b) {
+        long before = bytes;
+        cutRoom();
+        append(new Entry(b));
+        trim();
+        return bytes - before;
+    }
+
+    // строки, прочитанные с диска, предшествуют всем добавленным после создания
+    long warm(byte[] b) {
+        long before = bytes;
+        if (b.length > 0) {
+            Entry e = new Entry(b);
+            records.addFirst(e);
+            lines += e.lines;
+            bytes += e.size();
+        }
+        complete = true;
+        trim();
+        return bytes - before;
+    }
+
+    // строки общего журнала, полученные с начала открытого участка, - отдельной записью
+    private void cutRoom() {
+        if (roomFrom < 0 || room.end() == roomFrom) return;
+        append(new Entry(roomFrom, room.end(), (int)(room.endLine() - roomFromLine)));
+        roomFrom = room.end();
+        roomFromLine = room.endLine();
+    }
+
+    private void append(Entry e) {
+        records.addLast(e);
+        lines += e.lines;
+        bytes += e.size();
+    }
+
+    private void trim() {
+        long open = roomFrom < 0 ? 0 : room.endLine() - roomFromLine;
+        while (records.size() > (open > 0 ? 0 : 1)) {
+            int first = records.peekFirst().lines;
+            if (lines + open - first < capacity) break;
+            bytes -= records.pollFirst().size();
+            lines -= first;
+        }
+    }
+
+    /**
+     * последние строки - не больше number строк и maxBytes байт
+     * (лишние строки отбрасываются с начала целиком)
+     * @return null если нужных строк общего журнала в памяти уже нет
+     **/
+    byte[] last(int number, int maxBytes) {
+        int n = 0, size = 0;
+        LinkedList<byte[]> parts = new LinkedList<>();
+        Iterator<Entry> it = records.descendingIterator();
+        Entry e = roomFrom >= 0 && room.end() > roomFrom
+                ? new Entry(roomFrom, room.end(), 0)
+                : it.hasNext() ? it.next() : null;
+        boolean cutOff = false;
+        while (e != null && !cutOff && n < number && size < maxBytes) {
+            List<byte[]> chunks = e.bytes != null
+                    ? Collections.singletonList(e.bytes)
+                    : room.descending(e.from, e.to);
+            for (byte[] b : chunks) {
+                if (n >= number || size >= maxBytes) break;
+                int c = count(b);
+                int cut = 0;
+                // из первой (самой ранней) нужной записи - только ее последние строки
+                if (n + c > number) {
+                    for (int skip = n + c - number; skip > 0; cut++) if (b[cut] == '\n') skip--;
+                    c = number - n;
+                }
+                if (size + b.length - cut > maxBytes) {
+                    cut = Math.max(cut, b.length - (maxBytes - size));
+                    while (cut < b.length && b[cut - 1] != '\n') cut++;
+                }
+                if (cut > 0) b = Arrays.copyOfRange(b, cut, b.length);
+                parts.addFirst(b);
+                n += c;
+                size += b.length;
+                if (cut > 0) {
+                    cutOff = true;
+                    break;
+                }
+            }
+            // начало участка уже вытеснено из общего журнала в памяти
+            if (e.bytes == null && !cutOff && n < number && size < maxBytes && room.first() > e.from)
+                return null;
+            e = it.hasNext() ? it.next() : null;
+        }
+        byte[] result = new byte[size];
+        int pos = 0;
+        for (byte[] b : parts) {
+            System.arraycopy(b, 0, result, pos, b.length);
+            pos += b.length;
+        }
+        return result;
+    }
+
+    static int count(byte[] b) {
+        int n = 0;
+        for (byte x : b) if (x == '\n') n++;
+        return n;
+    }
+}
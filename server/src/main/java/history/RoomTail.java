@@ -0,0 +1,78 @@
+package history;
+
+import java.util.*;
+
+/*
+    последние строки общего журнала в памяти - одна копия на всех пользователей:
+    кэш истории пользователя хранит не сами широковещательные строки, а границы
+    участков общего журнала, полученных им, пока он был в чате, - строки этих
+    участков берутся отсюда;
+    хранятся записи (каждая - одно добавление в общий журнал) вместе со смещениями -
+    не меньше capacity последних строк
+
+    принадлежит потоку-писателю журнала
+ */
+final class RoomTail {
+    // приблизительные накладные расходы на запись (объект, ссылка и заголовок массива)
+    private static final int OVERHEAD = 48;
+
+    private static final class Record {
+        final long offset;
+        final byte[] bytes;
+        final int lines;
+
+        Record(long offset, byte[] bytes) {
+            this.offset = offset;
+            this.bytes = bytes;
+            this.lines = RecentLines.count(bytes);
+        }
+    }
+
+    private final int capacity;
+    private final ArrayDeque<Record> records = new ArrayDeque<>();
+    private int lines;
+    private long bytes;
+    // конец общего журнала и число строк в нем
+    private long end, endLine;
+
+    RoomTail(int capacity, long end, long endLine) {
+        this.capacity = capacity;
+        this.end = end;
+        this.endLine = endLine;
+    }
+
+    long end() { return end; }
+    long endLine() { return endLine; }
+
+    // смещение самой ранней строки в памяти
+    long first() { return records.isEmpty() ? end : records.peekFirst().offset; }
+
+    // добавить запись, начинающуюся со смещения offset; возвращается изменение занимаемой памяти
+    long add(long offset, byte[] b) {
+        long before = bytes;
+        Record r = new Record(offset, b);
+        records.addLast(r);
+        lines += r.lines;
+        bytes += b.length + OVERHEAD;
+        end = offset + b.length;
+        endLine += r.lines;
+        while (records.size() > 1 && lines - records.peekFirst().lines >= capacity) {
+            Record first = records.pollFirst();
+            lines -= first.lines;
+            bytes -= first.bytes.length + OVERHEAD;
+        }
+        return bytes - before;
+    }
+
+    // записи участка [from, to) - от последней к первой (только находящиеся в памяти)
+    List<byte[]> descending(long from, long to) {
+        List<byte[]> list = new ArrayList<>();
+        Iterator<Record> it = records.descendingIterator();
+        while (it.hasNext()) {
+            Record r = it.next();
+            if (r.offset < from) break;
+            if (r.offset < to) list.add(r.bytes);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,24 @@
+/*
+    пакет содержит средства учета работы сервера: счетчики и гистограммы длительностей,
+    доступные через JMX и по команде консоли сервера
+*/
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// счетчик событий: увеличение раскладывается по ячейкам (LongAdder) -
+// потоки не соперничают за одну переменную, а память выделяется лишь при первом соперничестве
+public final class Counter implements CounterMXBean {
+    private final String description;
+    private final LongAdder count = new LongAdder();
+
+    Counter(String description) { this.description = description; }
+
+    public void increment() { count.increment(); }
+
+    public void add(long n) { count.add(n); }
+
+    @Override public String getDescription() { return description; }
+
+    @Override public long getCount() { return count.sum(); }
+}
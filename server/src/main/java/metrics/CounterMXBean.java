@@ -0,0 +1,7 @@
+package metrics;
+
+// счетчик в JMX
+public interface CounterMXBean {
+    String getDescription();
+    long getCount();
+}
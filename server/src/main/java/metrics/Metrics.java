@@ -0,0 +1,70 @@
+package metrics;
+
+import prefs.*;
+import static prefs.Prefs.*;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.management.*;
+
+/*
+    реестр счетчиков и гистограмм сервера
+
+    показатели создаются один раз (обычно в статических полях использующих их классов)
+    и сразу регистрируются в JMX как MXBean - Chatty:type=Counter|Histogram,name=...;
+    та же сводка выводится по команде консоли сервера (/stats):
+    для счетчиков - еще и частота событий с момента предыдущей сводки
+ */
+public final class Metrics {
+    // computeIfAbsent ConcurrentHashMap вызывает функцию не больше одного раза -
+    // показатель не будет зарегистрирован в JMX дважды; по имени сводка упорядочивается сама
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final EventLogger logger = new EventLogger(Metrics.class.getName(), null);
+
+    // значения счетчиков при выводе предыдущей сводки
+    private static final Map<String, Long> reported = new HashMap<>();
+    private static long reportedAt = System.nanoTime();
+
+    private Metrics() {}
+
+    public static Counter counter(String name, String description) {
+        return counters.computeIfAbsent(name, k -> register("Counter", k, new Counter(description)));
+    }
+
+    public static Histogram histogram(String name, String description) {
+        return histograms.computeIfAbsent(name, k -> register("Histogram", k, new Histogram(description)));
+    }
+
+    private static <T> T register(String type, String name, T metric) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metric,
+                    new ObjectName(TITLE + ":type=" + type + ",name=" + name));
+        } catch (JMException ex) { logger.logError(ex); }
+        return metric;
+    }
+
+    // сводка всех показателей
+    public static synchronized String report() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-9, (now - reportedAt) / 1e9);
+        reportedAt = now;
+        StringBuilder sb = new StringBuilder(MSG_METRICS_HEADER);
+        for (Map.Entry<String, Counter> e : new TreeMap<>(counters).entrySet()) {
+            long count = e.getValue().getCount();
+            Long previous = reported.put(e.getKey(), count);
+            sb.append('\n').append(String.format(MSG_METRICS_COUNTER, e.getKey(), count,
+                    (count - (previous == null ? 0 : previous)) / seconds, e.getValue().getDescription()));
+        }
+        for (Map.Entry<String, Histogram> e : new TreeMap<>(histograms).entrySet()) {
+            Histogram h = e.getValue();
+            long[] q = h.quantiles(0.5, 0.9, 0.99, 0.999);
+            sb.append('\n').append(String.format(MSG_METRICS_HISTOGRAM, e.getKey(), h.getCount(), h.getMean(),
+                    q[0] / 1e3, q[1] / 1e3, q[2] / 1e3, q[3] / 1e3, h.getMax(), h.getDescription()));
+        }
+        return sb.toString();
+    }
+}
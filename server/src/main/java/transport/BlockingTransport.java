@@ -0,0 +1,151 @@
+/*
+    пакет содержит транспортный уровень сервера: доставку кадров между
+    сокетом клиента и его обработчиком - блокирующую (поток на соединение)
+    или неблокирующую (селектор и небольшое число потоков ввода-вывода)
+*/
+package transport;
+
+import protocol.*;
+
+import java.io.*;
+
+import java.net.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/*
+    прежний способ работы: на все время сеанса клиента поток из пула
+    блокируется на чтении очередного сообщения из сокета;
+
+    запись же выполняется отдельной задачей, которая запускается в пуле при появлении
+    кадров в очереди соединения и записывает их все сразу - медленный клиент
+    задерживает только ее, но не отправителя
+ */
+public class BlockingTransport implements Transport {
+    // ограничение размера данных, записываемых одним вызовом
+    static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final Executor executor;
+    private final OutboundQueue outbound;
+
+    private final AtomicBoolean writing = new AtomicBoolean();
+    private final List<Frame> batch = new ArrayList<>();
+
+    private volatile boolean closing, closed;
+    private volatile Protocol protocol = Protocol.TEXT;
+    private boolean negotiated;
+
+    public BlockingTransport(Socket socket, Executor executor, OutboundQueue outbound) throws IOException {
+        this.socket = socket;
+        this.executor = executor;
+        this.outbound = outbound;
+        in = new DataInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+    }
+
+    @Override public void start(SessionListener listener) {
+        executor.execute(() -> {
+            try {
+                while (!closing) {
+                    Message m = protocol == Protocol.BINARY
+                            ? BinaryCodec.read(in)
+                            : TextCodec.parse(in.readUTF().trim());
+                    if (!negotiated) {
+                        negotiated = true;
+                        if (m.opcode() == Opcode.PROTOCOL) {
+                            protocol = Negotiation.accept(this, m);
+                            continue;
+                        }
+                    }
+                    listener.onMessage(m);
+                }
+            } catch (SocketTimeoutException ex) {
+                listener.onTimeout();
+            } catch (IOException ex) {
+                // закрытие сокета по инициативе сервера ошибкой не является
+                if (!closing) listener.onError(ex);
+            } finally {
+                // сокет закроет "писатель" после отправки оставшихся кадров
+                close();
+                listener.onClosed();
+            }
+        });
+    }
+
+    @Override public void send(Frame frame) throws IOException {
+        if (closing) throw new SocketException("Socket closed");
+        if (!outbound.offer(frame)) {
+            abort();
+            throw new IOException("Outbound queue overflow (" + outbound.getPolicy() + ")");
+        }
+        scheduleWrite();
+    }
+
+    @Override public void setTimeout(int seconds) throws IOException { socket.setSoTimeout(1000 * seconds); }
+
+    @Override public void close() {
+        if (closing) return;
+        closing = true;
+        scheduleWrite();
+    }
+
+    @Override public OutboundQueue getOutboundQueue() { return outbound; }
+
+    // поток чтения, заблокированный на сокете, получит исключение и завершит сеанс
+    private void abort() {
+        closing = true;
+        outbound.clear();
+        closeSocket();
+    }
+
+    private void closeSocket() {
+        if (closed) return;
+        closed = true;
+        try { socket.close(); } catch (IOException ignored) {}
+    }
+
+    private void scheduleWrite() {
+        if (writing.compareAndSet(false, true)) executor.execute(this::drain);
+    }
+
+    // одновременно запись выполняет не более одной задачи, поэтому кадры не перемешиваются
+    private void drain() {
+        do {
+            try {
+                while (outbound.drainTo(batch, MAX_BATCH_BYTES) > 0) writeBatch();
+                if (closing) {
+                    socket.shutdownOutput();
+                    closeSocket();
+                }
+            } catch (IOException ex) {
+                abort();
+            } finally { batch.clear(); }
+            writing.set(false);
+        } while ((!outbound.isEmpty() || closing && !closed) && writing.compareAndSet(false, true));
+    }
+
+    // все накопившиеся кадры - одним вызовом записи
+    private void writeBatch() throws IOException {
+        Protocol p = protocol;
+        if (batch.size() == 1) {
+            batch.get(0).writeTo(p, out);
+        } else {
+            // буфер не хранится в соединении, чтобы простаивающие клиенты не занимали память
+            int size = 0;
+            for (Frame frame : batch) size += frame.length(p);
+            byte[] buf = new byte[size];
+            int pos = 0;
+            for (Frame frame : batch) {
+                frame.copyTo(p, buf, pos);
+                pos += frame.length(p);
+            }
+            out.write(buf);
+        }
+        batch.clear();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+    пакет содержит транспортный уровень сервера: доставку кадров между
+    сокетом клиента и его обработчиком - блокирующую (поток на соединение)
+    или неблокирующую (селектор и небольшое число потоков ввода-вывода)
+*/
+package transport;
+
+import java.io.IOException;
+
+import java.nio.channels.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+    поток ввода-вывода: один селектор обслуживает множество соединений,
+    выполняя только неблокирующие чтение и запись;
+    разбор полученных сообщений передается обработчикам в пул потоков,
+    чтобы обращения к БД и журналам не задерживали остальные соединения
+ */
+public class EventLoop implements Runnable {
+    // как часто проверять истечение времени ожидания сообщений, мс
+    private static final long TIMEOUT_CHECK_INTERVAL = 1000;
+
+    private final Selector selector;
+    private final Executor workers;
+    private final Thread thread;
+
+    // соединения, ожидающие регистрации в селекторе и отправки данных -
+    // обращаться к селектору можно только из его потока
+    private final Queue<NioConnection> registrations = new ConcurrentLinkedQueue<>();
+    private final Queue<NioConnection> flushes = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean running = true;
+
+    public EventLoop(String name, Executor workers) throws IOException {
+        this.workers = workers;
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    public void start() { thread.start(); }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    Executor getWorkers() { return workers; }
+
+    boolean inLoop() { return Thread.currentThread() == thread; }
+
+    void register(NioConnection connection) {
+        registrations.add(connection);
+        selector.wakeup();
+    }
+
+    // попросить поток селектора отправить накопленные в соединении данные
+    void requestFlush(NioConnection connection) {
+        flushes.add(connection);
+        selector.wakeup();
+    }
+
+    @Override public void run() {
+        long nextTimeoutCheck = System.currentTimeMillis() + TIMEOUT_CHECK_INTERVAL;
+        try {
+            while (running) {
+                selector.select(TIMEOUT_CHECK_INTERVAL);
+
+                NioConnection c;
+                while ((c = registrations.poll()) != null) c.register(selector);
+                while ((c = flushes.poll()) != null) c.flush();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    c = (NioConnection) key.attachment();
+                    if (key.isValid() && key.isReadable()) c.read();
+                    if (key.isValid() && key.isWritable()) c.flush();
+                }
+
+                long now = System.currentTimeMillis();
+                if (now >= nextTimeoutCheck) {
+                    for (SelectionKey key : selector.keys())
+                        if (key.isValid()) ((NioConnection) key.attachment()).checkTimeout(now);
+                    nextTimeoutCheck = now + TIMEOUT_CHECK_INTERVAL;
+                }
+            }
+        } catch (IOException | ClosedSelectorException ignored) {
+        } finally {
+            NioConnection c;
+            while ((c = registrations.poll()) != null) c.closeNow(null);
+            for (SelectionKey key : selector.keys())
+                ((NioConnection) key.attachment()).closeNow(null);
+            try { selector.close(); } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+    пакет содержит транспортный уровень сервера: доставку кадров между
+    сокетом клиента и его обработчиком - блокирующую (поток на соединение)
+    или неблокирующую (селектор и небольшое число потоков ввода-вывода)
+*/
+package transport;
+
+import prefs.Prefs;
+import protocol.*;
+
+import java.io.IOException;
+
+/*
+    выбор формата обмена выполняется транспортом - обработчик клиента
+    получает уже разобранные сообщения и о формате ничего не знает;
+    запрос учитывается, только если он пришел первым сообщением
+ */
+class Negotiation {
+    private Negotiation() {}
+
+    /**
+     * ответить на запрос формата (ответ - всегда в текстовом формате)
+     * @return выбранный формат, который нужно применить к последующим сообщениям
+     **/
+    static Protocol accept(Transport transport, Message request) throws IOException {
+        Protocol p = Protocol.of(request.size() > 0 ? request.arg(0) : null);
+        transport.send(Frame.textOnly(Prefs.getCommand(Prefs.SRV_PROTOCOL_OK, p.getName())));
+        return p;
+    }
+}
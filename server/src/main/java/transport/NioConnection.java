@@ -0,0 +1,223 @@
+/*
+    пакет содержит транспортный уровень сервера: доставку кадров между
+    сокетом клиента и его обработчиком - блокирующую (поток на соединение)
+    или неблокирующую (селектор и небольшое число потоков ввода-вывода)
+*/
+package transport;
+
+import protocol.*;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/*
+    неблокирующее соединение с клиентом;
+    формат кадров тот же, что у writeUTF/readUTF, поэтому клиенту
+    безразлично, в каком режиме работает сервер
+ */
+public class NioConnection implements Transport {
+    // начальный размер буфера чтения; при получении длинного кадра буфер увеличивается
+    private static final int INITIAL_READ_BUFFER = 512;
+
+    private final SocketChannel channel;
+    private final EventLoop loop;
+    private SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+
+    private final OutboundQueue outbound;
+    // кадры, извлеченные из очереди и записываемые одним вызовом (gathering write);
+    // частично записанный кадр остается здесь и не может быть отброшен политикой переполнения
+    private final List<Frame> batch = new ArrayList<>();
+    private ByteBuffer[] inFlight;
+    private int inFlightOffset;
+
+    // события соединения передаются обработчику строго по очереди
+    private final Queue<Runnable> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean dispatching = new AtomicBoolean();
+
+    private SessionListener listener;
+    private volatile long deadline; // момент истечения времени ожидания, 0 - не ограничено
+    private volatile int timeout;   // в секундах
+    private volatile boolean closing, aborted;
+    private volatile Protocol protocol = Protocol.TEXT;
+    private boolean negotiated;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    public NioConnection(SocketChannel channel, EventLoop loop, OutboundQueue outbound) throws IOException {
+        this.channel = channel;
+        this.loop = loop;
+        this.outbound = outbound;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+    }
+
+    @Override public void start(SessionListener listener) {
+        this.listener = listener;
+        loop.register(this);
+    }
+
+    @Override public void send(Frame frame) throws IOException {
+        if (closed.get()) throw new ClosedChannelException();
+        if (!outbound.offer(frame)) {
+            abort();
+            throw new IOException("Outbound queue overflow (" + outbound.getPolicy() + ")");
+        }
+        loop.requestFlush(this);
+    }
+
+    @Override public void setTimeout(int seconds) {
+        timeout = seconds;
+        deadline = seconds > 0 ? System.currentTimeMillis() + 1000L * seconds : 0;
+    }
+
+    @Override public void close() {
+        closing = true;
+        loop.requestFlush(this);
+    }
+
+    @Override public OutboundQueue getOutboundQueue() { return outbound; }
+
+    // отключение без отправки оставшихся кадров
+    private void abort() {
+        closing = true;
+        outbound.clear();
+        if (loop.inLoop()) closeNow(null);
+        else {
+            aborted = true;
+            loop.requestFlush(this);
+        }
+    }
+
+    // ------------------ методы, вызываемые только потоком селектора ------------------
+    void register(Selector selector) {
+        try {
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+        } catch (IOException ex) {
+            closeNow(ex);
+            return;
+        }
+        // кадры, отправленные (и закрытие, запрошенное) до регистрации
+        if (aborted || closing || !outbound.isEmpty()) flush();
+    }
+
+    void read() {
+        try {
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                closeNow(null);
+                return;
+            }
+            if (n == 0) return;
+            if (timeout > 0) deadline = System.currentTimeMillis() + 1000L * timeout;
+
+            readBuffer.flip();
+            Message message;
+            while ((message = decode()) != null) {
+                if (!negotiated) {
+                    negotiated = true;
+                    if (message.opcode() == Opcode.PROTOCOL) {
+                        protocol = Negotiation.accept(this, message);
+                        continue;
+                    }
+                }
+                Message m = message;
+                dispatch(() -> listener.onMessage(m));
+            }
+            // незавершенный кадр, не помещающийся в буфер, требует буфера большего размера
+            int len = frameLength();
+            if (len > readBuffer.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(len);
+                larger.put(readBuffer);
+                readBuffer = larger;
+            } else
+                readBuffer.compact();
+        } catch (IOException ex) { closeNow(ex); }
+    }
+
+    private Message decode() throws IOException {
+        if (protocol == Protocol.BINARY) return BinaryCodec.decode(readBuffer);
+        String s = FrameCodec.decode(readBuffer);
+        return s == null ? null : TextCodec.parse(s.trim());
+    }
+
+    private int frameLength() throws IOException {
+        if (protocol == Protocol.BINARY) return BinaryCodec.frameLength(readBuffer);
+        int len = FrameCodec.peekLength(readBuffer);
+        return len < 0 ? -1 : FrameCodec.HEADER_LENGTH + len;
+    }
+
+    void flush() {
+        // соединение еще не зарегистрировано - отправка произойдет при регистрации;
+        // повторный запрос здесь зациклил бы поток селектора, разбирающий эти запросы
+        if (key == null || !key.isValid()) return;
+        if (aborted) {
+            closeNow(null);
+            return;
+        }
+        try {
+            while (true) {
+                if (inFlight == null) {
+                    if (outbound.drainTo(batch, BlockingTransport.MAX_BATCH_BYTES) == 0) break;
+                    inFlight = new ByteBuffer[batch.size()];
+                    for (int i = 0; i < inFlight.length; i++) inFlight[i] = batch.get(i).buffer(protocol);
+                    inFlightOffset = 0;
+                    batch.clear();
+                }
+                channel.write(inFlight, inFlightOffset, inFlight.length - inFlightOffset);
+                while (inFlightOffset < inFlight.length && !inFlight[inFlightOffset].hasRemaining())
+                    inFlightOffset++;
+                if (inFlightOffset < inFlight.length) break; // буфер отправки сокета заполнен
+                inFlight = null;
+            }
+            if (inFlight == null && outbound.isEmpty()) {
+                if (closing) {
+                    closeNow(null);
+                    return;
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } else
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException ex) { closeNow(ex); }
+    }
+
+    void checkTimeout(long now) {
+        long d = deadline;
+        if (d > 0 && now >= d) {
+            deadline = 0;
+            dispatch(() -> listener.onTimeout());
+        }
+    }
+
+    void closeNow(Exception cause) {
+        if (!closed.compareAndSet(false, true)) return;
+        if (key != null) key.cancel();
+        try { channel.close(); } catch (IOException ignored) {}
+        outbound.clear();
+        inFlight = null;
+        // ошибка, возникшая после запроса на закрытие, ошибкой сеанса не является
+        if (cause != null && !closing) dispatch(() -> listener.onError(cause));
+        dispatch(() -> listener.onClosed());
+    }
+    // ------------------ методы, вызываемые только потоком селектора ------------------
+
+    private void dispatch(Runnable event) {
+        inbox.add(event);
+        if (dispatching.compareAndSet(false, true))
+            loop.getWorkers().execute(this::drain);
+    }
+
+    // обработка событий в пуле потоков; одновременно - не более одного потока на соединение
+    private void drain() {
+        do {
+            Runnable event;
+            while ((event = inbox.poll()) != null) event.run();
+            dispatching.set(false);
+        } while (!inbox.isEmpty() && dispatching.compareAndSet(false, true));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+    пакет содержит транспортный уровень сервера: доставку кадров между
+    сокетом клиента и его обработчиком - блокирующую (поток на соединение)
+    или неблокирующую (селектор и небольшое число потоков ввода-вывода)
+*/
+package transport;
+
+import protocol.Frame;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/*
+    ограниченная очередь исходящих кадров соединения;
+
+    отправитель (например, поток, выполняющий широковещательную рассылку) только
+    помещает кадр в очередь, а в сокет их записывает "писатель" соединения -
+    сразу все накопившиеся, одним вызовом;
+    если клиент не успевает принимать сообщения и очередь заполнилась,
+    поступают согласно выбранной политике
+
+    вместо synchronized используется ReentrantLock - ожидание на мониторе
+    закрепило бы виртуальный поток за потоком ОС
+ */
+public class OutboundQueue {
+    public enum OverflowPolicy {
+        DROP_OLDEST, // отбросить самый старый из еще не отправленных кадров
+        DISCONNECT,  // отключить клиента
+        BLOCK        // ждать освобождения места, но не дольше заданного времени, затем отключить
+    }
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final long blockNanos;
+
+    private final ArrayDeque<Frame> frames;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+
+    // счетчики сеанса
+    private int maxDepth;
+    private long enqueued, dropped, written, batches;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy, long blockMillis) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.blockNanos = TimeUnit.MILLISECONDS.toNanos(blockMillis);
+        frames = new ArrayDeque<>(Math.min(this.capacity, 16));
+    }
+
+    /**
+     * поместить кадр в очередь
+     * @return false если по политике переполнения клиента следует отключить
+     **/
+    public boolean offer(Frame frame) {
+        lock.lock();
+        try {
+            if (frames.size() >= capacity)
+                switch (policy) {
+                    case DROP_OLDEST:
+                        frames.poll();
+                        dropped++;
+                        break;
+                    case BLOCK:
+                        long nanos = blockNanos;
+                        while (frames.size() >= capacity) {
+                            if (nanos <= 0) return false;
+                            nanos = notFull.awaitNanos(nanos);
+                        }
+                        break;
+                    default:
+                        return false;
+                }
+            frames.add(frame);
+            enqueued++;
+            if (frames.size() > maxDepth) maxDepth = frames.size();
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally { lock.unlock(); }
+    }
+
+    /**
+     * извлечь накопившиеся кадры для записи одним вызовом
+     * @param maxBytes ограничение суммарного размера (кроме первого кадра)
+     * @return число извлеченных кадров
+     **/
+    public int drainTo(List<Frame> batch, int maxBytes) {
+        lock.lock();
+        try {
+            int n = 0, bytes = 0;
+            Frame frame;
+            while ((frame = frames.peek()) != null && (n == 0 || bytes + frame.length() <= maxBytes)) {
+                batch.add(frames.poll());
+                bytes += frame.length();
+                n++;
+            }
+            if (n > 0) {
+                written += n;
+                batches++;
+                notFull.signalAll();
+            }
+            return n;
+        } finally { lock.unlock(); }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try { return frames.isEmpty(); }
+        finally { lock.unlock(); }
+    }
+
+    // при разрыве соединения неотправленные кадры уже не нужны, а ожидающих отправителей нужно освободить
+    public void clear() {
+        lock.lock();
+        try {
+            dropped += frames.size();
+            frames.clear();
+            notFull.signalAll();
+        } finally { lock.unlock(); }
+    }
+
+    public OverflowPolicy getPolicy() { return policy; }
+
+    // ----------------------------- счетчики сеанса -----------------------------
+    public int getDepth() {
+        lock.lock();
+        try { return frames.size(); }
+        finally { lock.unlock(); }
+    }
+
+    public int getMaxDepth() { return maxDepth; }
+    public long getEnqueued() { return enqueued; }
+    public long getDropped() { return dropped; }
+    public long getWritten() { return written; }
+    public long getBatches() { return batches; }
+}
@@ -0,0 +1,21 @@
+/*
+    пакет содержит транспортный уровень сервера: доставку кадров между
+    сокетом клиента и его обработчиком - блокирующую (поток на соединение)
+    или неблокирующую (селектор и небольшое число потоков ввода-вывода)
+*/
+package transport;
+
+import protocol.Message;
+
+/*
+    получатель событий соединения - обработчик клиента;
+    сообщения передаются уже разобранными, в каком бы формате они ни были получены;
+    для одного соединения методы вызываются последовательно (не параллельно),
+    onClosed вызывается последним и ровно один раз
+ */
+public interface SessionListener {
+    void onMessage(Message message);
+    void onTimeout();
+    void onError(Exception ex);
+    void onClosed();
+}
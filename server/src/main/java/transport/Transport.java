@@ -0,0 +1,51 @@
+/*
+    пакет содержит транспортный уровень сервера: доставку кадров между
+    сокетом клиента и его обработчиком - блокирующую (поток на соединение)
+    или неблокирующую (селектор и небольшое число потоков ввода-вывода)
+*/
+package transport;
+
+import protocol.Frame;
+
+import java.io.IOException;
+
+/*
+    соединение с клиентом, через которое обработчик получает и отправляет сообщения
+    независимо от способа ввода-вывода
+ */
+public interface Transport {
+    /**
+     * начать доставку полученных сообщений обработчику
+     **/
+    void start(SessionListener listener);
+
+    /**
+     * отправить клиенту уже закодированное сообщение - один и тот же кадр
+     * можно отправлять многим клиентам;
+     * может вызываться из любого потока - сообщение помещается в очередь соединения,
+     * а запись в сокет выполняет его "писатель"
+     * @throws IOException в том числе при переполнении очереди, если политика
+     * переполнения требует отключения клиента (соединение при этом закрывается)
+     **/
+    void send(Frame frame) throws IOException;
+
+    default void send(String message) throws IOException { send(Frame.of(message)); }
+
+    /**
+     * установить время, за которое клиент должен прислать очередное сообщение
+     * (используется в цикле аутентификации)
+     * @param seconds 0 - без ограничения
+     **/
+    void setTimeout(int seconds) throws IOException;
+
+    /**
+     * завершить соединение после отправки уже переданных сообщений;
+     * по завершении обработчику будет вызван SessionListener.onClosed
+     **/
+    void close();
+
+    /**
+     * очередь исходящих кадров соединения и ее счетчики
+     **/
+    OutboundQueue getOutboundQueue();
+}
@@ -0,0 +1,134 @@
+package authentification.service;
+
+import authentification.UserData;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserStoreTest {
+    @TempDir Path dir;
+
+    private static UserData user(int id, String login, String nickname) {
+        UserData u = new UserData(login, "pass_" + login, nickname);
+        u.setId(id);
+        return u;
+    }
+
+    private static void assertUser(UserData expected, UserData actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getLogin(), actual.getLogin());
+        assertEquals(expected.getPassword(), actual.getPassword());
+        assertEquals(expected.getNickname(), actual.getNickname());
+    }
+
+    private UserStore open() throws IOException { return new UserStore(dir.toString()); }
+
+    @Test
+    void replayLog() throws IOException {
+        UserStore store = open();
+        assertTrue(store.load().isEmpty());
+        store.appendRegister(user(1, "first", "Первый"));
+        store.appendRegister(user(2, "second", "Второй"));
+        store.appendRename(1, "Новый");
+        store.sync();
+        store.close();
+
+        store = open();
+        Map<Integer, UserData> users = store.load();
+        assertEquals(2, users.size());
+        assertUser(user(1, "first", "Новый"), users.get(1));
+        assertUser(user(2, "second", "Второй"), users.get(2));
+        assertEquals(3, store.getLogRecords());
+        store.close();
+    }
+
+    // недописанная последняя запись отбрасывается, а журнал усекается до нее
+    @Test
+    void truncatedRecord() throws IOException {
+        UserStore store = open();
+        store.load();
+        store.appendRegister(user(1, "first", "Первый"));
+        store.appendRegister(user(2, "second", "Второй"));
+        store.close();
+
+        Path log = dir.resolve("users.log");
+        long size = Files.size(log);
+        for (long cut = 1; cut < 20; cut += 6) {
+            Path copy = Files.createDirectories(dir.resolve("cut" + cut)).resolve("users.log");
+            Files.copy(log, copy);
+            try (FileChannel ch = FileChannel.open(copy, StandardOpenOption.WRITE)) { ch.truncate(size - cut); }
+
+            UserStore damaged = new UserStore(copy.getParent().toString());
+            Map<Integer, UserData> users = damaged.load();
+            assertEquals(1, users.size());
+            assertUser(user(1, "first", "Первый"), users.get(1));
+            assertEquals(1, damaged.getLogRecords());
+            // новые записи дописываются сразу за последней целой
+            damaged.appendRegister(user(3, "third", "Третий"));
+            damaged.close();
+
+            damaged = new UserStore(copy.getParent().toString());
+            users = damaged.load();
+            assertEquals(new HashSet<>(Arrays.asList(1, 3)), users.keySet());
+            assertUser(user(3, "third", "Третий"), users.get(3));
+            damaged.close();
+        }
+    }
+
+    // испорченная контрольная сумма - запись и все после нее отбрасываются
+    @Test
+    void corruptedRecord() throws IOException {
+        UserStore store = open();
+        store.load();
+        store.appendRegister(user(1, "first", "Первый"));
+        store.appendRename(1, "Второй");
+        store.close();
+
+        Path log = dir.resolve("users.log");
+        byte[] b = Files.readAllBytes(log);
+        b[b.length - 1] ^= 1;
+        Files.write(log, b);
+
+        store = open();
+        Map<Integer, UserData> users = store.load();
+        assertUser(user(1, "first", "Первый"), users.get(1));
+        assertEquals(1, store.getLogRecords());
+        store.close();
+    }
+
+    // снимок и журнал после него
+    @Test
+    void compactAndReplay() throws IOException {
+        UserStore store = open();
+        Map<Integer, UserData> users = store.load();
+        for (int id = 1; id <= 100; id++) {
+            UserData u = user(id, "login" + id, "ник" + id);
+            store.appendRegister(u);
+            users.put(id, u);
+        }
+        store.compact(users.values());
+        assertEquals(0, store.getLogRecords());
+        assertEquals(0, Files.size(dir.resolve("users.log")));
+        store.appendRename(5, "пятый");
+        store.appendRegister(user(101, "login101", "ник101"));
+        store.close();
+
+        store = open();
+        Map<Integer, UserData> loaded = store.load();
+        assertEquals(101, loaded.size());
+        assertUser(user(5, "login5", "пятый"), loaded.get(5));
+        assertUser(user(101, "login101", "ник101"), loaded.get(101));
+        assertEquals(2, store.getLogRecords());
+        store.close();
+    }
+}
@@ -0,0 +1,180 @@
+package history;
+
+import prefs.*;
+
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+
+import java.nio.file.*;
+
+import java.util.*;
+import java.util.stream.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+    папка истории задается относительно рабочего каталога - тесты выполняются
+    в отдельном каталоге (см. настройку surefire), и перед каждым она очищается
+ */
+class JournalTest {
+    private static final long TIMEOUT = 5000;
+    private static final EventLogger LOGGER = new EventLogger("journal-test", null);
+
+    private Journal journal;
+
+    @BeforeEach
+    void clean() throws IOException {
+        Path dir = Paths.get(Prefs.historyFolder);
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) Files.delete(p);
+        }
+    }
+
+    @AfterEach
+    void close() {
+        if (journal != null) journal.close();
+    }
+
+    private Journal open(long segmentBytes, int cacheLines) {
+        return journal = new Journal(5, 0, 0, 0, segmentBytes, cacheLines, 1 << 20, LOGGER);
+    }
+
+    private static String join(List<String> lines, int from, int to) {
+        StringBuilder sb = new StringBuilder();
+        for (String s : lines.subList(Math.max(0, from), Math.max(0, to))) sb.append(s).append('\n');
+        return sb.toString();
+    }
+
+    // строки общего журнала - без отметки времени, строки даты пропускаются
+    private static List<String> matters(String text) {
+        List<String> list = new ArrayList<>();
+        for (String s : text.split("\n")) {
+            if (s.isEmpty() || s.startsWith("Сегодня")) continue;
+            list.add(s.substring(s.indexOf('\t') + 1));
+        }
+        return list;
+    }
+
+    private String page(String login, int skip, int count) throws IOException {
+        HistoryPage page = journal.readPage(login, skip, count, TIMEOUT);
+        assertNotNull(page);
+        assertEquals(RecentLines.count(page.getText().getBytes("UTF-8")), page.getLines());
+        return page.getText();
+    }
+
+    // страницы с конца истории, собранные вместе, совпадают со всей историей
+    private void assertPaging(String login, int total, int count) throws IOException {
+        String all = page(login, 0, total);
+        StringBuilder sb = new StringBuilder();
+        for (int skip = 0; skip < total; skip += count) sb.insert(0, page(login, skip, count));
+        assertEquals(all, sb.toString());
+        assertEquals("", page(login, total, count));
+    }
+
+    // страница, начинающаяся ровно на контрольной точке указателя строк (каждая 64-я строка)
+    @Test
+    void personalPagingAcrossCheckpoints() throws IOException {
+        open(1 << 20, 0);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            lines.add("строка " + i);
+            journal.append("user", "строка " + i + "\n");
+        }
+        int n = lines.size();
+        for (int count : new int[] { 1, 63, 64, 65, 100, 400 })
+            for (int skip = 0; skip <= n; skip += 7)
+                assertEquals(join(lines, n - skip - count, n - skip), page("user", skip, count),
+                        "skip " + skip + ", count " + count);
+        for (int start = 0; start <= n; start += 64)
+            assertEquals(join(lines, start, n), page("user", 0, n - start), "с строки " + start);
+        assertEquals(join(lines, n - 10, n), journal.readLast("user", 10, TIMEOUT));
+    }
+
+    // история из участков общего журнала, разбитого на множество сегментов, и личного
+    @Test
+    void roomPagingAcrossSegments() throws IOException {
+        open(200, 0);
+        List<String> a = new ArrayList<>(), b = new ArrayList<>();
+        journal.open("a");
+        for (int i = 0; i < 400; i++) {
+            if (i == 100) journal.open("b");
+            if (i == 250) journal.close("b");
+            if (i == 300) journal.open("b");
+            if (i % 7 == 0) {
+                journal.append("a", "личное " + i + "\n");
+                a.add("личное " + i);
+            }
+            journal.appendRoomLine("общее " + i);
+            a.add("общее " + i);
+            if (i >= 100 && i < 250 || i >= 300) b.add("общее " + i);
+        }
+        // часть участков - еще не в указателе, а в открытом сеансе
+        journal.close("a");
+        assertTrue(journal.sync(TIMEOUT));
+
+        String[] segments = new File(Prefs.historyFolder, "room").list((dir, name) -> name.endsWith(".txt"));
+        assertNotNull(segments);
+        assertTrue(segments.length > 10, "сегментов " + segments.length);
+
+        assertEquals(a, matters(page("a", 0, 1000)));
+        assertEquals(b, matters(page("b", 0, 1000)));
+        for (int count : new int[] { 1, 13, 64, 100 }) {
+            assertPaging("a", 1000, count);
+            assertPaging("b", 1000, count);
+        }
+        assertEquals(b.subList(b.size() - 30, b.size()), matters(journal.readLast("b", 30, TIMEOUT)));
+    }
+
+    // последние строки из памяти совпадают с прочитанными с диска -
+    // и когда строки общего журнала уже вытеснены из памяти
+    @Test
+    void cachedLinesMatchFiles() throws IOException {
+        open(300, 20);
+        Random rnd = new Random(1);
+        String[] users = { "u0", "u1", "u2", "u3" };
+        boolean[] online = new boolean[users.length];
+        for (int step = 0; step < 3000; step++) {
+            int u = rnd.nextInt(users.length);
+            switch (rnd.nextInt(10)) {
+                case 0:
+                    if (online[u]) journal.close(users[u]);
+                    else journal.open(users[u]);
+                    online[u] = !online[u];
+                    break;
+                case 1: case 2:
+                    journal.append(users[u], "личное " + step + "\n");
+                    break;
+                case 3:
+                    int n = 1 + rnd.nextInt(30);
+                    assertEquals(page(users[u], 0, n), journal.readLast(users[u], n, TIMEOUT),
+                            "шаг " + step + ", " + users[u] + ", строк " + n);
+                    break;
+                default:
+                    journal.appendRoomLine("общее " + step + (rnd.nextInt(5) == 0 ? "\nвторая " + step : ""));
+            }
+        }
+    }
+
+    // история, записанная до перезапуска, читается после него так же
+    @Test
+    void reopen() throws IOException {
+        open(256, 10);
+        journal.open("user");
+        for (int i = 0; i < 100; i++) {
+            journal.appendRoomLine("общее " + i);
+            if (i % 10 == 0) journal.append("user", "личное " + i + "\n");
+        }
+        journal.close("user");
+        String before = page("user", 0, 1000);
+        journal.close();
+
+        open(256, 10);
+        assertEquals(before, page("user", 0, 1000));
+        assertEquals(page("user", 0, 10), journal.readLast("user", 10, TIMEOUT));
+        journal.open("user");
+        journal.appendRoomLine("после перезапуска");
+        assertEquals("после перезапуска", matters(journal.readLast("user", 1, TIMEOUT)).get(0));
+    }
+}
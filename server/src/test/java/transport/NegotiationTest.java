@@ -0,0 +1,178 @@
+package transport;
+
+import prefs.Prefs;
+import protocol.*;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.*;
+
+import java.net.*;
+
+import java.nio.channels.*;
+
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/*
+    выбор формата обмена и обмен сообщениями через настоящий сокет -
+    для обоих транспортов сервера: блокирующего (io=blocking) и неблокирующего (io=nio)
+ */
+class NegotiationTest {
+    private static final int TIMEOUT = 5; // с
+
+    // события соединения, полученные обработчиком
+    private static final class Listener implements SessionListener {
+        final BlockingQueue<Message> messages = new LinkedBlockingQueue<>();
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override public void onMessage(Message message) { messages.add(message); }
+        @Override public void onTimeout() {}
+        @Override public void onError(Exception ex) {}
+        @Override public void onClosed() { closed.countDown(); }
+
+        Message next() throws InterruptedException {
+            Message m = messages.poll(TIMEOUT, TimeUnit.SECONDS);
+            assertNotNull(m, "сообщение не получено");
+            return m;
+        }
+    }
+
+    private ExecutorService workers;
+    private EventLoop loop;
+    private ServerSocket server;
+    private ServerSocketChannel serverChannel;
+
+    private final Listener listener = new Listener();
+    private Transport transport;
+    private Socket client;
+    private DataInputStream in;
+    private DataOutputStream out;
+
+    @BeforeEach
+    void start() { workers = Executors.newCachedThreadPool(); }
+
+    @AfterEach
+    void stop() throws IOException {
+        if (client != null) client.close();
+        if (server != null) server.close();
+        if (serverChannel != null) serverChannel.close();
+        if (loop != null) loop.shutdown();
+        workers.shutdownNow();
+    }
+
+    // подключиться к серверу, соединение с которым обслуживает транспорт заданного вида
+    private void connect(String io) throws IOException {
+        OutboundQueue queue = new OutboundQueue(64, OutboundQueue.OverflowPolicy.DISCONNECT, 0);
+        InetAddress host = InetAddress.getLoopbackAddress();
+        if (io.equals("nio")) {
+            serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress(host, 0));
+            client = new Socket(host, serverChannel.socket().getLocalPort());
+            loop = new EventLoop("io-test", workers);
+            loop.start();
+            transport = new NioConnection(serverChannel.accept(), loop, queue);
+        } else {
+            server = new ServerSocket(0, 1, host);
+            client = new Socket(host, server.getLocalPort());
+            transport = new BlockingTransport(server.accept(), workers, queue);
+        }
+        client.setSoTimeout(TIMEOUT * 1000);
+        in = new DataInputStream(client.getInputStream());
+        out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+        transport.start(listener);
+    }
+
+    private static void assertMessage(Message m, Opcode opcode, String... args) {
+        assertEquals(opcode, m.opcode());
+        assertEquals(args.length, m.size());
+        for (int i = 0; i < args.length; i++) assertEquals(args[i], m.arg(i));
+    }
+
+    private static String repeat(char c, int n) {
+        char[] chars = new char[n];
+        java.util.Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    // запрос формата и первые двоичные кадры - одной записью: переход на двоичный
+    // формат происходит посреди прочитанных из сокета данных
+    @ParameterizedTest
+    @ValueSource(strings = { "blocking", "nio" })
+    void binaryAfterNegotiation(String io) throws Exception {
+        connect(io);
+        out.writeUTF(Prefs.getCommand(Prefs.COM_PROTOCOL, Protocol.BINARY.getName()));
+        out.write(BinaryCodec.encode(new Message(Opcode.PRIVATE_MSG, "Ник", "текст  с пробелами")));
+        out.write(BinaryCodec.encode(new Message(Opcode.TEXT, "/не команда")));
+        out.flush();
+
+        // ответ - в текстовом формате, все последующее - в двоичном
+        assertEquals(Prefs.getCommand(Prefs.SRV_PROTOCOL_OK, Protocol.BINARY.getName()), in.readUTF());
+        assertMessage(listener.next(), Opcode.PRIVATE_MSG, "Ник", "текст  с пробелами");
+        assertMessage(listener.next(), Opcode.TEXT, "/не команда");
+
+        transport.send(Frame.of(Prefs.getCommand(Prefs.SRV_AUTH_OK, "Ник")));
+        transport.send(Frame.of("[ Ник ]: сообщение всем"));
+        assertMessage(BinaryCodec.read(in), Opcode.AUTH_OK, "Ник");
+        assertMessage(BinaryCodec.read(in), Opcode.TEXT, "[ Ник ]: сообщение всем");
+
+        client.close();
+        assertTrue(listener.closed.await(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    // длинные двоичные кадры, приходящие по частям
+    @ParameterizedTest
+    @ValueSource(strings = { "blocking", "nio" })
+    void binaryFramesInParts(String io) throws Exception {
+        connect(io);
+        out.writeUTF(Prefs.getCommand(Prefs.COM_PROTOCOL, Protocol.BINARY.getName()));
+        out.flush();
+        assertEquals(Prefs.getCommand(Prefs.SRV_PROTOCOL_OK, Protocol.BINARY.getName()), in.readUTF());
+
+        String text = repeat('ж', 100_000);
+        byte[] frame = BinaryCodec.encode(new Message(Opcode.TEXT, text));
+        for (int pos = 0; pos < frame.length; pos += 50_000) {
+            out.write(frame, pos, Math.min(50_000, frame.length - pos));
+            out.flush();
+            Thread.sleep(20);
+        }
+        assertMessage(listener.next(), Opcode.TEXT, text);
+
+        String reply = repeat('ы', 20_000);
+        transport.send(Frame.of(reply));
+        assertMessage(BinaryCodec.read(in), Opcode.TEXT, reply);
+    }
+
+    // клиент, не запрашивающий формат, работает в текстовом
+    @ParameterizedTest
+    @ValueSource(strings = { "blocking", "nio" })
+    void textWithoutNegotiation(String io) throws Exception {
+        connect(io);
+        out.writeUTF("/w Ник текст сообщения");
+        // запрос формата не первым сообщением - обычное сообщение обработчику
+        out.writeUTF(Prefs.getCommand(Prefs.COM_PROTOCOL, Protocol.BINARY.getName()));
+        out.flush();
+        assertMessage(listener.next(), Opcode.PRIVATE_MSG, "Ник", "текст сообщения");
+        assertMessage(listener.next(), Opcode.PROTOCOL, Protocol.BINARY.getName());
+
+        transport.send(Frame.of(Prefs.getCommand(Prefs.SRV_AUTH_OK, "Ник")));
+        assertEquals(Prefs.getCommand(Prefs.SRV_AUTH_OK, "Ник"), in.readUTF());
+    }
+
+    // неизвестный формат - остается текстовый
+    @ParameterizedTest
+    @ValueSource(strings = { "blocking", "nio" })
+    void unknownProtocol(String io) throws Exception {
+        connect(io);
+        out.writeUTF(Prefs.getCommand(Prefs.COM_PROTOCOL, "json"));
+        out.writeUTF("текст");
+        out.flush();
+        assertEquals(Prefs.getCommand(Prefs.SRV_PROTOCOL_OK, Protocol.TEXT.getName()), in.readUTF());
+        assertMessage(listener.next(), Opcode.TEXT, "текст");
+
+        transport.send(Frame.of("[ Ник ]: ответ"));
+        assertEquals("[ Ник ]: ответ", in.readUTF());
+    }
+}